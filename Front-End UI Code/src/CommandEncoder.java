@@ -0,0 +1,76 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Builds a complete command (int header followed by its float payload) in one
+ * buffer so GridControlCommunicator can hand it to the link in a single write
+ * and a single flush, instead of one flush per field.
+ * Until setFraming() says otherwise the bytes are identical to what the robot
+ * has always read; once version 2 is agreed each command is a WireFrame.
+ * @author Corey Short
+ */
+public class CommandEncoder {
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(32);
+	private final DataOutputStream out = new DataOutputStream(buffer);
+	private final CRC32 crc = new CRC32();
+	private volatile int framing = 1;
+
+	/**
+	 * @param version - 1 for bare headers, WireFrame.VERSION for frames
+	 */
+	public void setFraming(int version) {
+		framing = version;
+	}
+
+	public int getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Encodes a command.
+	 * @param type - the MessageType sent as the header
+	 * @param payload - the floats that follow the header, in order
+	 * @return the framed command, ready to be written
+	 */
+	public synchronized byte[] encode(MessageType type, float... payload) {
+		buffer.reset();
+		boolean isFramed = framing == WireFrame.VERSION;
+		try {
+			if (!isFramed) {
+				out.writeInt(type.ordinal());
+			}
+			for (int i = 0; i < payload.length; i++) {
+				out.writeFloat(payload[i]);
+			}
+		}
+		catch (IOException e) {
+			// cannot happen writing to a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		if (!isFramed) {
+			return buffer.toByteArray();
+		}
+		byte[] frame = new byte[WireFrame.HEADER_SIZE + buffer.size() + WireFrame.CRC_SIZE];
+		WireFrame.encode(type.ordinal(), buffer.toByteArray(), 0, buffer.size(), crc, frame);
+		return frame;
+	}
+
+	/**
+	 * Encodes a command behind a SEQ carrying its number, as one write.
+	 * @param sequence - from InFlightCommands.nextSequence()
+	 * @param type - the MessageType sent as the header
+	 * @param payload - the floats that follow the header, in order
+	 * @return the SEQ and the command, ready to be written
+	 */
+	public synchronized byte[] encode(int sequence, MessageType type, float... payload) {
+		byte[] seq = encode(MessageType.SEQ, sequence);
+		byte[] command = encode(type, payload);
+		byte[] both = new byte[seq.length + command.length];
+		System.arraycopy(seq, 0, both, 0, seq.length);
+		System.arraycopy(command, 0, both, seq.length, command.length);
+		return both;
+	}
+}
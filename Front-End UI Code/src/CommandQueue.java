@@ -0,0 +1,214 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of framed commands waiting to go to the robot, drained by a
+ * dedicated writer thread so a stalled Bluetooth write never blocks the Swing
+ * event thread. Whatever is queued when the writer wakes up is written with a
+ * single flush.
+ *
+ * Setpoints, such as teleoperation DRIVE commands, are not queued: there is
+ * one slot for them and each new one replaces any still waiting, so however
+ * slow the link, the robot is never sent a backlog of stale ones.
+ * @author Corey Short
+ */
+public class CommandQueue implements Runnable {
+
+	public static final int DEFAULT_CAPACITY = 64;
+	private static final EventLog log = new EventLog("CommandQueue");
+
+	private final ArrayDeque<byte[]> queue;
+	private final int capacity;
+	private OutputStream out;
+	private Thread writer;
+	private volatile boolean isRunning = false;
+	private byte[] latest; // the setpoint waiting to be written, if any
+	private long rejected = 0;
+	private long written = 0;
+	private long replaced = 0;
+
+	public CommandQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity - the most commands that may wait for the writer
+	 */
+	public CommandQueue(int capacity) {
+		this.capacity = capacity;
+		this.queue = new ArrayDeque<byte[]>(capacity);
+	}
+
+	/**
+	 * Starts a writer thread draining the queue onto the given stream.
+	 * Anything still queued from an earlier link is discarded.
+	 * @param out - the stream to the robot
+	 */
+	public synchronized void start(OutputStream out) {
+		stop();
+		queue.clear();
+		latest = null;
+		this.out = out;
+		isRunning = true;
+		writer = new Thread(this, "CommandQueue writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stops the writer thread; commands still queued are dropped.
+	 */
+	public synchronized void stop() {
+		isRunning = false;
+		notifyAll();
+		writer = null;
+	}
+
+	/**
+	 * Queues a command behind any already waiting.
+	 * @param frame - a command built by the CommandEncoder
+	 * @return false if the queue is full or there is no link; the command was dropped
+	 */
+	public synchronized boolean offer(byte[] frame) {
+		if (!isRunning || queue.size() >= capacity) {
+			rejected++;
+			return false;
+		}
+		queue.addLast(frame);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Puts a setpoint in the setpoint slot, replacing any not yet written.
+	 * It goes out after the commands already queued.
+	 * @param frame - a command built by the CommandEncoder
+	 * @return false if there is no link
+	 */
+	public synchronized boolean offerLatest(byte[] frame) {
+		if (!isRunning) {
+			rejected++;
+			return false;
+		}
+		if (latest != null) {
+			replaced++;
+		}
+		latest = frame;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Queues a command ahead of everything already waiting. Used for STOP so it
+	 * is never stuck behind queued motion commands; a waiting setpoint is
+	 * dropped too, since it is older than the STOP. If the queue is full the
+	 * newest waiting command is dropped to make room, and handed back so the
+	 * sender can report it.
+	 * @param frame - a command built by the CommandEncoder
+	 * @return the command dropped: frame itself if there is no link, the
+	 * newest waiting one if the queue was full, otherwise null
+	 */
+	public synchronized byte[] offerFirst(byte[] frame) {
+		if (!isRunning) {
+			rejected++;
+			return frame;
+		}
+		if (latest != null) {
+			latest = null;
+			replaced++;
+		}
+		byte[] dropped = null;
+		if (queue.size() >= capacity) {
+			dropped = queue.pollLast();
+			rejected++;
+		}
+		queue.addFirst(frame);
+		notifyAll();
+		return dropped;
+	}
+
+	/**
+	 * @return the number of commands waiting for the writer, a setpoint
+	 * included
+	 */
+	public synchronized int getDepth() {
+		return queue.size() + (latest != null ? 1 : 0);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return how many commands have been dropped because the queue was full
+	 * or the link was down
+	 */
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	/**
+	 * @return how many setpoints were replaced by a newer one, or dropped for
+	 * a STOP, before they could be written
+	 */
+	public synchronized long getReplacedCount() {
+		return replaced;
+	}
+
+	/**
+	 * @return how many commands have been written to the link
+	 */
+	public synchronized long getWrittenCount() {
+		return written;
+	}
+
+	/**
+	 * Waits for commands, then writes everything queued with one flush.
+	 */
+	public void run() {
+		OutputStream link;
+		synchronized (this) {
+			link = out;
+		}
+		ByteArrayOutputStream pending = new ByteArrayOutputStream(512);
+		while (isRunning) {
+			int count = 0;
+			synchronized (this) {
+				while (isRunning && queue.isEmpty() && latest == null) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!isRunning || link != out) {
+					return;
+				}
+				pending.reset();
+				while (!queue.isEmpty()) {
+					byte[] frame = queue.pollFirst();
+					pending.write(frame, 0, frame.length);
+					count++;
+				}
+				if (latest != null) {
+					pending.write(latest, 0, latest.length);
+					latest = null;
+					count++;
+				}
+			}
+			try {
+				pending.writeTo(link);
+				link.flush();
+				synchronized (this) {
+					written += count;
+				}
+			}
+			catch (IOException e) {
+				log.warn("Command write failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Quantized pose messages for high-rate telemetry over a slow link, sent
+ * only to a PC that offered them in its HELLO; otherwise the robot keeps
+ * sending float POS_UPDATE and STD_DEV. Lengths and angles are fixed point:
+ * millimetres for x, y and standard deviations, and 1/65536 of a turn for
+ * headings, so a 16 bit value covers the whole arena at better than the
+ * robot's own accuracy.
+ * 	POSE_COMPACT    short x, short y, short heading            6 bytes
+ * 	STD_DEV_COMPACT POSE_COMPACT, then short standard
+ * 	                deviation of x, of y, of heading          12 bytes
+ * 	POSE_DELTA      byte dx, byte dy, byte dheading            3 bytes
+ * A delta is in millimetres and in DELTA_HEADING steps, from the previous
+ * pose exactly as the PC decoded it, so rounding never accumulates. The
+ * robot sends a full POSE_COMPACT when a delta would not fit in a byte, and
+ * at least every KEYFRAME_INTERVAL poses, so a lost message is soon repaired.
+ * Decoded poses are handed on as ordinary POS_UPDATE and STD_DEV floats.
+ * @author Corey Short
+ */
+public class CompactPose {
+
+	/**
+	 * HELLO capability bits.
+	 */
+	public static final int CAPABILITY_COMPACT = 1; // POSE_COMPACT and STD_DEV_COMPACT
+	public static final int CAPABILITY_DELTA = 2; // POSE_DELTA as well
+
+	public static final int KEYFRAME_INTERVAL = 10;
+	public static final int DELTA_HEADING = 16; // heading units per step of a delta
+
+	private static final float CM_PER_UNIT = 0.1f;
+	private static final float DEGREES_PER_UNIT = 360f / 65536;
+
+	// the last pose decoded, in units; Reader thread only
+	private int x;
+	private int y;
+	private int heading;
+	private boolean hasBase = false;
+
+	/**
+	 * Forgets the last pose; call when a new link opens.
+	 */
+	public void reset() {
+		hasBase = false;
+	}
+
+	/**
+	 * Reads POSE_COMPACT into x, y, heading floats.
+	 */
+	public final MessageRegistry.Decoder poseDecoder = new MessageRegistry.Decoder() {
+		public int decode(DataInputStream in, float[] values, int length) throws IOException {
+			if (length >= 0 && length != 6) {
+				return -1;
+			}
+			x = in.readShort();
+			y = in.readShort();
+			heading = in.readShort();
+			hasBase = true;
+			return pose(values);
+		}
+	};
+
+	/**
+	 * Reads POSE_DELTA into x, y, heading floats.
+	 */
+	public final MessageRegistry.Decoder deltaDecoder = new MessageRegistry.Decoder() {
+		public int decode(DataInputStream in, float[] values, int length) throws IOException {
+			if (length >= 0 && length != 3) {
+				return -1;
+			}
+			int dx = in.readByte();
+			int dy = in.readByte();
+			int dh = in.readByte();
+			if (!hasBase) {
+				return -1; // nothing to add it to until the next full pose
+			}
+			x += dx;
+			y += dy;
+			heading = (short) (heading + dh * DELTA_HEADING);
+			return pose(values);
+		}
+	};
+
+	/**
+	 * Reads STD_DEV_COMPACT into the six floats of a STD_DEV.
+	 */
+	public final MessageRegistry.Decoder stdDevDecoder = new MessageRegistry.Decoder() {
+		public int decode(DataInputStream in, float[] values, int length) throws IOException {
+			if (length >= 0 && length != 12) {
+				return -1;
+			}
+			values[0] = in.readShort() * CM_PER_UNIT;
+			values[1] = in.readShort() * CM_PER_UNIT;
+			values[2] = in.readShort() * DEGREES_PER_UNIT;
+			values[3] = in.readShort() * CM_PER_UNIT;
+			values[4] = in.readShort() * CM_PER_UNIT;
+			values[5] = in.readShort() * DEGREES_PER_UNIT;
+			return 6;
+		}
+	};
+
+	private int pose(float[] values) {
+		values[0] = x * CM_PER_UNIT;
+		values[1] = y * CM_PER_UNIT;
+		values[2] = heading * DEGREES_PER_UNIT;
+		return 3;
+	}
+
+	/**
+	 * @return a length in cm as millimetres, clamped to a short
+	 */
+	static int toUnits(float cm) {
+		return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(cm / CM_PER_UNIT)));
+	}
+
+	/**
+	 * @return an angle in degrees as a signed 1/65536 of a turn
+	 */
+	static int toAngle(float degrees) {
+		return (short) Math.round(degrees / DEGREES_PER_UNIT);
+	}
+
+	/**
+	 * Writes a STD_DEV_COMPACT payload.
+	 */
+	public static void writeStdDev(DataOutputStream out, float x, float y, float heading,
+			float devX, float devY, float devHeading) throws IOException {
+		out.writeShort(toUnits(x));
+		out.writeShort(toUnits(y));
+		out.writeShort(toAngle(heading));
+		out.writeShort(toUnits(devX));
+		out.writeShort(toUnits(devY));
+		out.writeShort(toAngle(devHeading));
+	}
+
+	/**
+	 * The robot's side: picks POSE_COMPACT or POSE_DELTA for each pose and
+	 * tracks the pose the PC will have decoded.
+	 */
+	public static class Encoder {
+		private final boolean isDeltaEnabled;
+		private int x;
+		private int y;
+		private int heading;
+		private int dx;
+		private int dy;
+		private int dh;
+		private int sinceKeyframe = KEYFRAME_INTERVAL;
+		private MessageType next;
+
+		/**
+		 * @param isDeltaEnabled - true if the PC accepted CAPABILITY_DELTA
+		 */
+		public Encoder(boolean isDeltaEnabled) {
+			this.isDeltaEnabled = isDeltaEnabled;
+		}
+
+		/**
+		 * Quantizes a pose and chooses how to send it.
+		 * @return POSE_COMPACT or POSE_DELTA; write it with writePayload()
+		 */
+		public MessageType choose(float xCm, float yCm, float degrees) {
+			int ux = toUnits(xCm);
+			int uy = toUnits(yCm);
+			int uh = toAngle(degrees);
+			dx = ux - x;
+			dy = uy - y;
+			dh = Math.round((short) (uh - heading) / (float) DELTA_HEADING);
+			if (isDeltaEnabled && sinceKeyframe < KEYFRAME_INTERVAL && fitsByte(dx) && fitsByte(dy)
+					&& fitsByte(dh)) {
+				x = ux;
+				y = uy;
+				heading = (short) (heading + dh * DELTA_HEADING); // what the PC will decode
+				sinceKeyframe++;
+				next = MessageType.POSE_DELTA;
+			}
+			else {
+				x = ux;
+				y = uy;
+				heading = uh;
+				sinceKeyframe = 0;
+				next = MessageType.POSE_COMPACT;
+			}
+			return next;
+		}
+
+		/**
+		 * Writes the payload of the pose last passed to choose().
+		 */
+		public void writePayload(DataOutputStream out) throws IOException {
+			if (next == MessageType.POSE_DELTA) {
+				out.writeByte(dx);
+				out.writeByte(dy);
+				out.writeByte(dh);
+			}
+			else {
+				out.writeShort(x);
+				out.writeShort(y);
+				out.writeShort(heading);
+			}
+		}
+
+		private static boolean fitsByte(int value) {
+			return value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+/**
+ * Where the link to the robot is in its lifecycle, as reported by
+ * GridControlCommunicator:
+ * 	DISCONNECTED - no link, and none being made
+ * 	CONNECTING   - opening the first link after connect()
+ * 	CONNECTED    - the link is up and the Reader is decoding from it
+ * 	DEGRADED     - the link was lost; reconnecting with backoff
+ * @author Corey Short
+ */
+public enum ConnectionState {
+	DISCONNECTED, CONNECTING, CONNECTED, DEGRADED
+}
@@ -0,0 +1,254 @@
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Fixed-capacity list model behind the Coordinate List. Lines are kept in a
+ * ring buffer, so once the retention limit is reached each new line replaces
+ * the oldest one and memory stays constant however long the mission runs.
+ * Change events are coalesced: any number of appends made in one pass of the
+ * Swing event thread produce a single event, delivered after that pass.
+ *
+ * Telemetry is stored as records, a kind and three floats, rather than text:
+ * appending one allocates nothing, and a row's text is only built when the
+ * list asks for it, which it does just for the rows on screen.
+ * Use only from the Swing event thread.
+ * @author Corey Short
+ */
+public class CoordinateLogModel extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Lines kept when no retention limit is given.
+	 */
+	public static final int DEFAULT_RETENTION = 2000;
+
+	/**
+	 * Record kinds for append(int, float, float, float).
+	 */
+	public static final int POSITION = 1;
+	public static final int CRASH = 2;
+	public static final int MAPPING = 3;
+	public static final int STD_DEV = 4;
+	public static final int SCAN = 5; // a: the number of points, b: the heading
+	public static final int MISSION = 6; // a: the mission, b: the step, c: a MissionStep state
+
+	// per kind: the title row, and the labels before each of the three values
+	private static final String[] TITLES = {
+		null, "Current robot position is:", "CRASHED!! Oh No! at:", "Mapping:", "Standard deviation is:",
+		"Scan received:", "Mission progress:"
+	};
+	private static final String[][] LABELS = {
+		null,
+		{"x: ", ", y: ", ", h: "},
+		{"x: ", ", y: ", ", h: "},
+		{"x: ", ", y: ", ", h: "},
+		{"x: ", ", y: ", ", h:"},
+		{"points: ", ", h: "},
+		{"mission: ", ", step: ", ", "}
+	};
+	private static final String[] MISSION_STATES = { "started", "finished", "aborted" };
+
+	private String[] lines; // text rows; null for record rows
+	private byte[] kinds; // record rows: kind for the title, -kind for the values
+	private float[] fields; // three per row
+	private int first = 0; // ring index of the oldest line
+	private int size = 0;
+	private int firedSize = 0; // the size listeners were last told about
+	private boolean isEvicted = false; // lines dropped since the last event
+	private boolean isFirePending = false;
+	private final Runnable fire = new Runnable() {
+		public void run() {
+			fireChanges();
+		}
+	};
+
+	public CoordinateLogModel() {
+		this(DEFAULT_RETENTION);
+	}
+
+	/**
+	 * @param retention - the most lines to keep
+	 */
+	public CoordinateLogModel(int retention) {
+		allocate(Math.max(1, retention));
+	}
+
+	/**
+	 * @return the text of a record as one message, title and values on two
+	 * lines, as it appears in the list
+	 */
+	public static String format(int kind, float a, float b, float c) {
+		StringBuilder text = new StringBuilder(64).append(TITLES[kind]).append('\n');
+		return appendValues(text, kind, a, b, c).toString();
+	}
+
+	private static StringBuilder appendValues(StringBuilder text, int kind, float a, float b, float c) {
+		String[] label = LABELS[kind];
+		if (kind == SCAN) {
+			return text.append(label[0]).append((int) a).append(label[1]).append(b);
+		}
+		if (kind == MISSION) {
+			int state = (int) c;
+			return text.append(label[0]).append((int) a).append(label[1]).append((int) b + 1)
+					.append(label[2]).append(state >= 0 && state < MISSION_STATES.length ? MISSION_STATES[state] : "?");
+		}
+		return text.append(label[0]).append(a).append(label[1]).append(b).append(label[2]).append(c);
+	}
+
+	/**
+	 * Appends a message; each line of a multi-line message becomes a row.
+	 * @param message - the text to add
+	 */
+	public void append(String message) {
+		int start = 0;
+		int end;
+		while ((end = message.indexOf('\n', start)) >= 0) {
+			add(message.substring(start, end));
+			start = end + 1;
+		}
+		add(message.substring(start));
+		scheduleFire();
+	}
+
+	/**
+	 * Appends a telemetry record as two rows, a title and its values, without
+	 * building any text.
+	 * @param kind - POSITION, CRASH, MAPPING, STD_DEV, SCAN or MISSION
+	 * @param a - x, or the standard deviation of x
+	 * @param b - y, or the standard deviation of y
+	 * @param c - the heading, or its standard deviation
+	 */
+	public void append(int kind, float a, float b, float c) {
+		add(null, kind, 0, 0, 0);
+		add(null, -kind, a, b, c);
+		scheduleFire();
+	}
+
+	/**
+	 * Changes the retention limit, keeping the newest lines that still fit.
+	 * @param retention - the most lines to keep
+	 */
+	public void setRetention(int retention) {
+		String[] oldLines = lines;
+		byte[] oldKinds = kinds;
+		float[] oldFields = fields;
+		int oldFirst = first;
+		int kept = Math.min(size, Math.max(1, retention));
+		allocate(Math.max(1, retention));
+		for (int i = 0; i < kept; i++) {
+			int from = (oldFirst + size - kept + i) % oldLines.length;
+			lines[i] = oldLines[from];
+			kinds[i] = oldKinds[from];
+			System.arraycopy(oldFields, 3 * from, fields, 3 * i, 3);
+		}
+		isEvicted |= kept < size;
+		first = 0;
+		size = kept;
+		scheduleFire();
+	}
+
+	public int getRetention() {
+		return lines.length;
+	}
+
+	/**
+	 * Removes every line.
+	 */
+	public void clear() {
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = null;
+			kinds[i] = 0;
+		}
+		first = 0;
+		size = 0;
+		isEvicted = true;
+		scheduleFire();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the row's text; record rows are formatted here, on demand
+	 */
+	public String getElementAt(int index) {
+		int row = (first + index) % lines.length;
+		int kind = kinds[row];
+		if (kind == 0) {
+			return lines[row];
+		}
+		if (kind > 0) {
+			return TITLES[kind];
+		}
+		int field = 3 * row;
+		return appendValues(new StringBuilder(48), -kind, fields[field], fields[field + 1], fields[field + 2])
+				.toString();
+	}
+
+	private void allocate(int capacity) {
+		lines = new String[capacity];
+		kinds = new byte[capacity];
+		fields = new float[3 * capacity];
+	}
+
+	private void add(String line) {
+		add(line, 0, 0, 0, 0);
+	}
+
+	private void add(String line, int kind, float a, float b, float c) {
+		int row;
+		if (size < lines.length) {
+			row = (first + size) % lines.length;
+			size++;
+		}
+		else {
+			row = first; // overwrite the oldest
+			first = (first + 1) % lines.length;
+			isEvicted = true;
+		}
+		lines[row] = line;
+		kinds[row] = (byte) kind;
+		int field = 3 * row;
+		fields[field] = a;
+		fields[field + 1] = b;
+		fields[field + 2] = c;
+	}
+
+	/**
+	 * Arranges for one change event once the current event-thread task ends.
+	 */
+	private void scheduleFire() {
+		if (isFirePending) {
+			return;
+		}
+		isFirePending = true;
+		SwingUtilities.invokeLater(fire);
+	}
+
+	/**
+	 * Tells listeners about everything appended since the last event: rows
+	 * added at the end if nothing was dropped, otherwise every row changed.
+	 */
+	private void fireChanges() {
+		isFirePending = false;
+		int oldSize = firedSize;
+		firedSize = size;
+		if (isEvicted) {
+			isEvicted = false;
+			if (oldSize > size) {
+				fireIntervalRemoved(this, size, oldSize - 1);
+			}
+			else if (size > oldSize) {
+				fireIntervalAdded(this, oldSize, size - 1);
+			}
+			if (size > 0) {
+				fireContentsChanged(this, 0, size - 1);
+			}
+		}
+		else if (size > oldSize) {
+			fireIntervalAdded(this, oldSize, size - 1);
+		}
+	}
+}
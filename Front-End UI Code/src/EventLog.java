@@ -0,0 +1,250 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled event log for the PC side. Each entry is an event name plus up to
+ * three float fields, so hot paths can log without building strings.
+ * Entries are handed to a background appender thread that formats and writes
+ * them, so a slow console never stalls the Reader or the event thread.
+ *
+ * The level is read from -Dmissioncontrol.log=TRACE|DEBUG|INFO|WARN|ERROR|OFF
+ * and defaults to INFO, which leaves the per-message TRACE and DEBUG events
+ * off. A disabled call does no work and allocates nothing; guard anything
+ * that builds its own string with isEnabled().
+ * @author Corey Short
+ */
+public class EventLog {
+
+	public enum Level {
+		TRACE, DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static String unknownLevel; // set by parseLevel, before the appender exists
+	private static volatile Level threshold = parseLevel(System.getProperty("missioncontrol.log"));
+	private static final Appender appender = new Appender();
+
+	static {
+		if (unknownLevel != null) {
+			new EventLog("EventLog").warn("Unknown log level " + unknownLevel + "; using INFO");
+		}
+	}
+
+	private final String source;
+
+	/**
+	 * @param source - the name printed with every event, usually the class name
+	 */
+	public EventLog(String source) {
+		this.source = source;
+	}
+
+	public static void setLevel(Level level) {
+		threshold = level;
+	}
+
+	public static Level getLevel() {
+		return threshold;
+	}
+
+	/**
+	 * @return the number of events dropped because the appender fell behind
+	 */
+	public static long getDroppedCount() {
+		return appender.dropped.get();
+	}
+
+	public boolean isEnabled(Level level) {
+		return level.ordinal() >= threshold.ordinal();
+	}
+
+	public void trace(String event) {
+		if (isEnabled(Level.TRACE)) {
+			appender.add(new Entry(Level.TRACE, source, event, 0, 0, 0, 0, null));
+		}
+	}
+
+	public void trace(String event, float a, float b) {
+		if (isEnabled(Level.TRACE)) {
+			appender.add(new Entry(Level.TRACE, source, event, 2, a, b, 0, null));
+		}
+	}
+
+	public void trace(String event, float a, float b, float c) {
+		if (isEnabled(Level.TRACE)) {
+			appender.add(new Entry(Level.TRACE, source, event, 3, a, b, c, null));
+		}
+	}
+
+	public void debug(String event) {
+		if (isEnabled(Level.DEBUG)) {
+			appender.add(new Entry(Level.DEBUG, source, event, 0, 0, 0, 0, null));
+		}
+	}
+
+	public void debug(String event, float a) {
+		if (isEnabled(Level.DEBUG)) {
+			appender.add(new Entry(Level.DEBUG, source, event, 1, a, 0, 0, null));
+		}
+	}
+
+	public void debug(String event, float a, float b) {
+		if (isEnabled(Level.DEBUG)) {
+			appender.add(new Entry(Level.DEBUG, source, event, 2, a, b, 0, null));
+		}
+	}
+
+	public void debug(String event, float a, float b, float c) {
+		if (isEnabled(Level.DEBUG)) {
+			appender.add(new Entry(Level.DEBUG, source, event, 3, a, b, c, null));
+		}
+	}
+
+	public void info(String event) {
+		if (isEnabled(Level.INFO)) {
+			appender.add(new Entry(Level.INFO, source, event, 0, 0, 0, 0, null));
+		}
+	}
+
+	public void warn(String event) {
+		if (isEnabled(Level.WARN)) {
+			appender.add(new Entry(Level.WARN, source, event, 0, 0, 0, 0, null));
+		}
+	}
+
+	public void warn(String event, Throwable cause) {
+		if (isEnabled(Level.WARN)) {
+			appender.add(new Entry(Level.WARN, source, event, 0, 0, 0, 0, cause));
+		}
+	}
+
+	public void error(String event, Throwable cause) {
+		if (isEnabled(Level.ERROR)) {
+			appender.add(new Entry(Level.ERROR, source, event, 0, 0, 0, 0, cause));
+		}
+	}
+
+	private static Level parseLevel(String name) {
+		if (name != null) {
+			try {
+				return Level.valueOf(name.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				unknownLevel = name; // logged once the appender is running
+			}
+		}
+		return Level.INFO;
+	}
+
+	/**
+	 * One logged event, formatted later by the appender thread.
+	 */
+	private static class Entry {
+		final long time = System.currentTimeMillis();
+		final Level level;
+		final String thread = Thread.currentThread().getName();
+		final String source;
+		final String event;
+		final int fields;
+		final float a;
+		final float b;
+		final float c;
+		final Throwable cause;
+
+		Entry(Level level, String source, String event, int fields, float a, float b, float c,
+				Throwable cause) {
+			this.level = level;
+			this.source = source;
+			this.event = event;
+			this.fields = fields;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.cause = cause;
+		}
+	}
+
+	/**
+	 * Drains queued events to stdout on its own thread, flushing once per batch.
+	 * If the queue fills, new events are dropped and counted rather than
+	 * blocking the thread that logged them.
+	 */
+	private static class Appender implements Runnable {
+		private static final int CAPACITY = 8192;
+
+		private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(CAPACITY);
+		private final AtomicLong dropped = new AtomicLong();
+		private final PrintStream out = new PrintStream(
+				new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 16384), false);
+		private final SimpleDateFormat clock = new SimpleDateFormat("HH:mm:ss.SSS");
+		private final StringBuilder line = new StringBuilder(128);
+
+		Appender() {
+			Thread thread = new Thread(this, "EventLog appender");
+			thread.setDaemon(true);
+			thread.start();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					flushQueue();
+				}
+			});
+		}
+
+		void add(Entry entry) {
+			if (!queue.offer(entry)) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Entry first = queue.take();
+					synchronized (this) {
+						write(first);
+						flushQueue();
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				flushQueue();
+			}
+		}
+
+		synchronized void flushQueue() {
+			ArrayList<Entry> batch = new ArrayList<Entry>();
+			queue.drainTo(batch);
+			for (Entry entry : batch) {
+				write(entry);
+			}
+			out.flush();
+		}
+
+		private void write(Entry entry) {
+			line.setLength(0);
+			line.append(clock.format(new Date(entry.time))).append(' ')
+					.append(entry.level).append(' ')
+					.append('[').append(entry.thread).append("] ")
+					.append(entry.source).append(": ").append(entry.event);
+			if (entry.fields > 0) {
+				line.append(' ').append(entry.a);
+			}
+			if (entry.fields > 1) {
+				line.append(", ").append(entry.b);
+			}
+			if (entry.fields > 2) {
+				line.append(", ").append(entry.c);
+			}
+			out.println(line);
+			if (entry.cause != null) {
+				entry.cause.printStackTrace(out);
+			}
+		}
+	}
+}
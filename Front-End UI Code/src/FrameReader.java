@@ -0,0 +1,169 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads version 2 WireFrames from a stream. Bytes are read in blocks into a
+ * buffer, so when a frame turns out to be bad the reader can go back and look
+ * for the next sync marker just after the bad one's, rather than losing any
+ * good frame that was hidden inside it. Nothing is allocated per frame.
+ * @author Corey Short
+ */
+public class FrameReader {
+
+	private static final int FRAME_LIMIT = WireFrame.HEADER_SIZE + WireFrame.MAX_PAYLOAD + WireFrame.CRC_SIZE;
+
+	private final InputStream in;
+	private final LinkStats stats;
+	private final byte[] buffer = new byte[2 * FRAME_LIMIT];
+	private int start = 0; // first unread byte
+	private int end = 0; // one past the last byte read
+	private final CRC32 crc = new CRC32();
+	private final Payload payloadBytes = new Payload();
+	private final DataInputStream payload = new DataInputStream(payloadBytes);
+
+	/**
+	 * @param in - the link's input, positioned at the start of a frame or of
+	 * bytes to skip
+	 * @param stats - counts corrupt frames and skipped bytes; may be null
+	 */
+	public FrameReader(InputStream in, LinkStats stats) {
+		this.in = in;
+		this.stats = stats;
+	}
+
+	/**
+	 * Blocks until the next frame that passes its length and CRC checks.
+	 * @return the frame's MessageType ordinal; its payload is then readable
+	 * from getPayload() until the next call
+	 */
+	public int next() throws IOException {
+		int skipped = 0;
+		try {
+			while (true) {
+				fill(WireFrame.HEADER_SIZE);
+				if (buffer[start] != WireFrame.SYNC_0 || buffer[start + 1] != WireFrame.SYNC_1) {
+					start++;
+					skipped++;
+					continue;
+				}
+				int length = (buffer[start + 3] & 0xff) << 8 | buffer[start + 4] & 0xff;
+				if (length > WireFrame.MAX_PAYLOAD) {
+					corrupt();
+					skipped++;
+					continue;
+				}
+				int size = WireFrame.HEADER_SIZE + length + WireFrame.CRC_SIZE;
+				fill(size);
+				crc.reset();
+				crc.update(buffer, start + 2, WireFrame.HEADER_SIZE - 2 + length);
+				int at = start + WireFrame.HEADER_SIZE + length;
+				int sent = (buffer[at] & 0xff) << 24 | (buffer[at + 1] & 0xff) << 16
+						| (buffer[at + 2] & 0xff) << 8 | buffer[at + 3] & 0xff;
+				if (sent != (int) crc.getValue()) {
+					corrupt();
+					skipped++;
+					continue;
+				}
+				int type = buffer[start + 2] & 0xff;
+				payloadBytes.set(start + WireFrame.HEADER_SIZE, length);
+				start += size;
+				return type;
+			}
+		}
+		finally {
+			if (skipped > 0 && stats != null) {
+				stats.countResync();
+				stats.countSkipped(skipped);
+			}
+		}
+	}
+
+	/**
+	 * @return the payload of the frame last returned by next()
+	 */
+	public DataInputStream getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return the length in bytes of the frame last returned by next()
+	 */
+	public int getPayloadLength() {
+		return payloadBytes.length;
+	}
+
+	/**
+	 * @return payload bytes not yet read
+	 */
+	public int getPayloadRemaining() {
+		return payloadBytes.available();
+	}
+
+	/**
+	 * Counts a bad frame and moves past its first sync byte, so the search for
+	 * the next frame starts inside this one.
+	 */
+	private void corrupt() {
+		if (stats != null) {
+			stats.countCorrupt();
+		}
+		start++;
+	}
+
+	/**
+	 * Reads until at least count bytes from start are buffered.
+	 */
+	private void fill(int count) throws IOException {
+		if (end - start >= count) {
+			return;
+		}
+		if (start + count > buffer.length) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		while (end - start < count) {
+			int read = in.read(buffer, end, buffer.length - end);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			end += read;
+		}
+	}
+
+	/**
+	 * The current frame's payload, as a stream over the buffer.
+	 */
+	private class Payload extends InputStream {
+		int position;
+		int limit;
+		int length;
+
+		void set(int offset, int length) {
+			this.position = offset;
+			this.limit = offset + length;
+			this.length = length;
+		}
+
+		public int read() {
+			return position < limit ? buffer[position++] & 0xff : -1;
+		}
+
+		public int read(byte[] into, int offset, int count) {
+			if (position >= limit) {
+				return -1;
+			}
+			int n = Math.min(count, limit - position);
+			System.arraycopy(buffer, position, into, offset, n);
+			position += n;
+			return n;
+		}
+
+		public int available() {
+			return limit - position;
+		}
+	}
+}
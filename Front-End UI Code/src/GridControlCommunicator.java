@@ -1,81 +1,489 @@
 
 import java.awt.Color;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-import lejos.pc.comm.*;
+import javax.swing.SwingUtilities;
 
 /**
  * Communicator on the PC(GUI) side
  * @author Corey Short, Khoa Tran
  * Created on 12/9/13.
  */ 
-public class GridControlCommunicator {
+public class GridControlCommunicator implements TelemetrySink {
 	
 	/**
 	 * Instance variables.
 	 */
 	MissionControlGUI control; // call back reference; calls setMessage, drawRobotPosition, drawObstacle;
-	private NXTConnector connector = new NXTConnector(); // connects to NXT using bluetooth
+	private static final EventLog log = new EventLog("GridControlCommunicator");
+	private Transport transport; // connects to NXT using bluetooth unless told otherwise
+	private SimulatedRobot simulator; // started when connecting to "sim"
 	private DataInputStream dataIn;
 	private DataOutputStream dataOut;
-	private Reader reader = new Reader(); // listens for incoming data from the NXT
+	private Transport link; // the open link, if any
+	private Reader reader; // listens for incoming data on the current link
+	private Thread connector; // opens the link and reopens it when it is lost
+	private volatile boolean isClosing = false; // set by disconnect() and sendDisconnect()
+	private volatile ConnectionState state = ConnectionState.DISCONNECTED;
+	private static final long MIN_BACKOFF = 500; // ms before the first reconnect attempt
+	private static final long MAX_BACKOFF = 30000; // longest wait between attempts
+	private static final long CLOSE_TIMEOUT = 500; // ms to let queued commands out before closing
+
+	/**
+	 * Most points one SCAN_BATCH may carry, so it fits a TelemetryRing message.
+	 */
+	public static final int MAX_SCAN_POINTS = (TelemetryRing.MAX_FLOATS - 1) / 2;
+	private final TelemetryDispatcher dispatcher; // draws what the reader decodes, on the event thread
+	private final TelemetryDecimator decimator; // holds the dispatcher to the display rates
+	private volatile TelemetrySink[] sinks; // everything the reader hands decoded messages to
+	private final CommandEncoder encoder = new CommandEncoder();
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream(256);
+	private int batchDepth = 0; // > 0 while commands are being coalesced
+	private final List<byte[]> batched = new ArrayList<byte[]>(); // each command in batch
+	private final CommandQueue commands = new CommandQueue(); // drained onto dataOut by its own thread
+	private final MessageRegistry registry = new MessageRegistry(); // what the reader decodes, by header
+	private volatile LinkStats stats = new LinkStats(); // counters for the current link
+	private int offeredFraming = Integer.getInteger("missioncontrol.framing", 1); // asked for at connect
+	private int offeredCapabilities = Integer.getInteger("missioncontrol.capabilities", 0); // HELLO bits
+	private volatile int capabilities = 0; // the bits the robot agreed to on this link
+	private final CompactPose compactPose = new CompactPose(); // delta base for the current link
+	private volatile CountDownLatch helloReply; // released when the robot answers a HELLO
+	private static final long HELLO_TIMEOUT = 1000; // ms to wait for that answer
+	private final InFlightCommands inFlight = new InFlightCommands(CommandQueue.DEFAULT_CAPACITY);
+	private static final long EXPIRY_PERIOD = 100; // ms between checks for unanswered commands
+
+	/**
+	 * Milliseconds the robot keeps following a DRIVE setpoint without a new one.
+	 */
+	public static final long DRIVE_TIMEOUT = 500;
+
+	/**
+	 * Rate for sendSubscribe() that puts a type back to the robot's own rate.
+	 */
+	public static final float ROBOT_RATE = -1;
+
+	/**
+	 * HELLO bit: the robot takes SUBSCRIBE and sends telemetry at the rates asked.
+	 */
+	public static final int CAPABILITY_SUBSCRIBE = 32;
+	private int missionId = 0; // the id of the last mission sent
 	
 	/**
 	 * Constructor for Communicator on the PC side
 	 * @param control - the CommListener interface object
 	 */
 	public GridControlCommunicator(MissionControlGUI control) {
+		this(control, null);
+	}
+
+	/**
+	 * Constructor for a Communicator that always uses the given transport.
+	 * @param control - the CommListener interface object; null to run without
+	 * a GUI, with messages going only to the sinks added later
+	 * @param transport - the link to the robot; null to pick one from the name
+	 * passed to connect()
+	 */
+	public GridControlCommunicator(MissionControlGUI control, Transport transport) {
 		this.control = control; // callback path
-		System.out.println("GridControlCom built");
+		this.transport = transport;
+		if (control != null) {
+			this.dispatcher = new TelemetryDispatcher(control);
+			this.decimator = new TelemetryDecimator(dispatcher);
+			dispatcher.setDecimator(decimator);
+			dispatcher.start();
+			sinks = new TelemetrySink[] { decimator };
+		}
+		else {
+			this.dispatcher = null;
+			this.decimator = null;
+			sinks = new TelemetrySink[0];
+		}
+		registerTelemetry();
+		log.debug("GridControlCom built");
 	}
 
 	/**
-	 * Establishes a bluetooth connection to the robot ; needs the robot name
+	 * Establishes a connection to the robot ; needs the robot name.
+	 * Unless a Transport was given to the constructor the name also picks the link:
+	 * "tcp:host:port" connects to a SimulatedRobot over a socket, "sim" starts
+	 * a SimulatedRobot in-process and connects to it, anything else is the
+	 * name of an NXT to reach over bluetooth.
+	 *
+	 * Returns at once; the link is opened on a connector thread, so a slow
+	 * Bluetooth pairing never holds up the caller. If the first attempt fails
+	 * the state goes back to DISCONNECTED. If an open link is later lost the
+	 * state becomes DEGRADED and the connector reopens it, waiting twice as
+	 * long after each failure, until it succeeds or disconnect() is called.
 	 * @param robotName - our robot's name is t: short for Terminator
 	 */
-	public void connect(String robotName) {
+	public synchronized void connect(final String robotName) {
+		if (connector != null && connector.isAlive()) {
+			log.warn("Already connected or connecting");
+			return;
+		}
+		isClosing = false;
+		connector = new Thread("Connector") {
+			public void run() {
+				runConnection(robotName);
+			}
+		};
+		connector.setDaemon(true);
+		connector.start();
+	}
+
+	/**
+	 * Closes the link and stops reconnecting. Commands already queued, such
+	 * as a DISCONNECT, are given a moment to go out first. Returns at once.
+	 */
+	public synchronized void disconnect() {
+		isClosing = true;
+		if (connector != null) {
+			connector.interrupt();
+		}
+	}
+
+	/**
+	 * @return where the link to the robot is in its lifecycle
+	 */
+	public ConnectionState getConnectionState() {
+		return state;
+	}
+
+	/**
+	 * The connector thread: opens the link, waits for it to be lost, and
+	 * reopens it with exponential backoff.
+	 */
+	private void runConnection(String robotName) {
+		long backoff = MIN_BACKOFF;
+		boolean wasConnected = false;
+		try {
+			while (!isClosing) {
+				if (!wasConnected) {
+					setState(ConnectionState.CONNECTING, "Connecting to " + robotName);
+				}
+				if (!open(robotName)) {
+					if (!wasConnected) {
+						setState(ConnectionState.DISCONNECTED, "No connection to " + robotName);
+						return;
+					}
+					setState(ConnectionState.DEGRADED, "Link to " + robotName + " lost; retrying in "
+							+ backoff + " ms");
+					Thread.sleep(backoff);
+					backoff = Math.min(2 * backoff, MAX_BACKOFF);
+					continue;
+				}
+				wasConnected = true;
+				backoff = MIN_BACKOFF;
+				setState(ConnectionState.CONNECTED, "Connected to " + robotName);
+				while (reader.isAlive()) {
+					reader.join(EXPIRY_PERIOD);
+					expireCommands();
+				}
+				if (!isClosing) {
+					log.warn("Link to " + robotName + " lost");
+					setState(ConnectionState.DEGRADED, "Link to " + robotName + " lost; reconnecting");
+				}
+				closeLink();
+			}
+		}
+		catch (InterruptedException e) {
+			// disconnect() wakes the connector from a wait
+		}
+		finally {
+			if (reader != null && reader.isRunning) {
+				awaitCommands();
+			}
+			closeLink();
+			if (state != ConnectionState.DISCONNECTED) {
+				// keep "No connection to" when the link never opened
+				setState(ConnectionState.DISCONNECTED, "Disconnected from " + robotName);
+			}
+		}
+	}
+
+	/**
+	 * Opens the link, starts a Reader on it, agrees the framing, and starts
+	 * the command writer.
+	 * @return false if the link could not be opened
+	 */
+	private boolean open(String robotName) {
+		Transport opening = transport;
+		String address = robotName;
+		if (opening == null) {
+			if (robotName.startsWith("tcp:")) {
+				opening = new SocketTransport();
+				address = robotName.substring(4);
+			}
+			else if (robotName.equals("sim")) {
+				opening = new SocketTransport();
+				address = Integer.toString(startSimulator());
+			}
+			else {
+				opening = new NXTTransport();
+			}
+		}
+
+		log.info("Connecting to " + robotName);
+
+		boolean connected = false;
 		try {
-			connector.close();
+			connected = opening.open(address);
 		}
 		catch (Exception e) {
-			System.out.println(e);
+			log.warn("Could not open link to " + robotName, e);
+		}
+		if (!connected) {
+			log.warn("No connection");
+			return false;
 		}
 
-		System.out.println("Connecting to " + robotName);
-
-		if (connector.connectTo(robotName, "", NXTCommFactory.BLUETOOTH)) {
-			control.setMessage("Connected to " + robotName);
-			System.out.println("Connection successful!");
-			dataIn = new DataInputStream(connector.getInputStream());
-			dataOut = new DataOutputStream(connector.getOutputStream());
+		log.info("Connection successful!");
+		synchronized (this) {
+			link = opening;
+			dataIn = new DataInputStream(opening.getInputStream());
+			dataOut = new DataOutputStream(opening.getOutputStream());
+			stats = new LinkStats();
+			encoder.setFraming(1);
+			capabilities = 0;
+			compactPose.reset();
+			inFlight.clear();
+			reader = new Reader(dataIn);
+			reader.start();
+		}
+		if (offeredFraming == WireFrame.VERSION || offeredCapabilities != 0) {
+			negotiate();
+		}
+		commands.start(dataOut);
+		return true;
+	}
 
-			if (dataIn == null) {
-				System.out.println("No Data.");
+	/**
+	 * Waits a little for the command writer to empty its queue.
+	 */
+	private void awaitCommands() {
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		while (commands.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
 			}
-			else if (!reader.isRunning) {
-				reader.start();
+			catch (InterruptedException e) {
+				return;
 			}
+		}
+	}
 
+	/**
+	 * Sends again, or gives up, commands the robot has not answered.
+	 */
+	private void expireCommands() {
+		int expired = inFlight.expire(commands, System.nanoTime());
+		if (expired > 0 && control != null) {
+			final String message = expired + " command(s) not answered by the robot";
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					control.setMessage(message);
+				}
+			});
 		}
-		else {
-			System.out.println("No connection");
+	}
+
+	/**
+	 * Stops the reader and the command writer and closes the link, which
+	 * unblocks the reader if it is waiting for data.
+	 */
+	private synchronized void closeLink() {
+		commands.stop();
+		if (reader != null) {
+			reader.shutdown();
 		}
+		if (link != null) {
+			link.close();
+			link = null;
+		}
+		dataIn = null;
+		dataOut = null;
 	}
-	
+
 	/**
-	 * Sends the DISCONNECT MessageType to the robot to disconnect and close open streams.
+	 * Records a state change and shows it in the GUI's status field.
 	 */
-	public void sendDisconnect() {
-		System.out.println("Communicator sending: DISCONNECT");
+	private void setState(ConnectionState next, final String message) {
+		if (state != next) {
+			log.info(next + ": " + message);
+		}
+		state = next;
+		if (control != null) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					control.setMessage(message);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends a HELLO offering the framing version and capabilities asked for,
+	 * and waits briefly for the robot to say which it agrees to; called
+	 * before any command is queued, so nothing unframed can follow the
+	 * switch. Stays on version 1 and float poses if the robot does not answer.
+	 */
+	private void negotiate() {
+		helloReply = new CountDownLatch(1);
 		try {
-			dataOut.writeInt(MessageType.DISCONNECT.ordinal());
+			dataOut.write(encoder.encode(MessageType.HELLO, offeredFraming, offeredCapabilities));
 			dataOut.flush();
+			if (!helloReply.await(HELLO_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				log.warn("Robot did not answer HELLO; using version 1");
+				return;
+			}
+			if (stats.getFraming() == WireFrame.VERSION) {
+				encoder.setFraming(WireFrame.VERSION);
+			}
+			log.info("Using framing version " + stats.getFraming() + ", capabilities " + capabilities);
 		}
 		catch (IOException e) {
-			e.printStackTrace();
+			log.warn("Could not send HELLO", e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Chooses the optional features offered at the next connect, as
+	 * capability bits; the default comes from -Dmissioncontrol.capabilities
+	 * and is 0, float poses and untracked commands. Robots that do not
+	 * understand HELLO are only sent one if something is offered.
+	 * @param bits - CompactPose.CAPABILITY_COMPACT, optionally with
+	 * CAPABILITY_DELTA, InFlightCommands.CAPABILITY_SEQUENCE,
+	 * MissionStep.CAPABILITY_MISSION, Teleop.CAPABILITY_DRIVE and
+	 * CAPABILITY_SUBSCRIBE
+	 */
+	public void setCapabilities(int bits) {
+		offeredCapabilities = bits;
+	}
+
+	/**
+	 * @return the capability bits the robot agreed to on the current link
+	 */
+	public int getCapabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * Chooses the wire format offered at the next connect; the default comes
+	 * from -Dmissioncontrol.framing and is 1. Only offer version 2 to robots
+	 * whose firmware understands HELLO.
+	 * @param version - 1 for bare headers, WireFrame.VERSION for frames
+	 */
+	public void setFraming(int version) {
+		offeredFraming = version;
+	}
+
+	/**
+	 * Starts an in-process SimulatedRobot on a free port, once.
+	 * @return the port the simulator is listening on, or -1 if it could not start
+	 */
+	private int startSimulator() {
+		if (simulator == null) {
+			try {
+				simulator = new SimulatedRobot(0);
+				simulator.start();
+			}
+			catch (IOException e) {
+				log.error("Could not start the simulator", e);
+				return -1;
+			}
+		}
+		return simulator.getPort();
+	}
+
+	/**
+	 * @return the commands sent with sequence numbers and not yet done, with
+	 * their acknowledgement and completion latencies
+	 */
+	public InFlightCommands getInFlightCommands() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the in-process simulator started by connect("sim"), or null
+	 */
+	public SimulatedRobot getSimulator() {
+		return simulator;
+	}
+	
+	/**
+	 * Encodes a command, behind a SEQ and tracked until done if the robot
+	 * agreed to CAPABILITY_SEQUENCE on this link.
+	 * @return the command, ready to be queued
+	 */
+	private byte[] sequenced(MessageType type, float... payload) {
+		if ((capabilities & InFlightCommands.CAPABILITY_SEQUENCE) == 0) {
+			return encoder.encode(type, payload);
 		}
+		int sequence = inFlight.nextSequence();
+		byte[] frame = encoder.encode(sequence, type, payload);
+		inFlight.track(sequence, type, frame, System.nanoTime());
+		return frame;
+	}
+
+	/**
+	 * Sends the DISCONNECT MessageType to the robot to disconnect and close open streams.
+	 * The robot hangs up in answer, so the link is not reopened when it does.
+	 */
+	public void sendDisconnect() {
+		log.debug("Sending DISCONNECT");
+		isClosing = true;
+		send(encoder.encode(MessageType.DISCONNECT));
+	}
+
+	/**
+	 * Sends the SUBSCRIBE MessageType to the robot.
+	 * Asks the robot to send a telemetry type at a given rate; for poses this
+	 * covers the compact encodings as well. The robot picks its own rate
+	 * until asked. Nothing is sent unless the robot agreed to
+	 * CAPABILITY_SUBSCRIBE on this link; setDisplayRate() works regardless.
+	 * @param type - POS_UPDATE, STD_DEV or another telemetry type
+	 * @param messagesPerSecond - 0 to stop the type being sent, or ROBOT_RATE
+	 * to let the robot pick again
+	 * @return false if the robot does not take SUBSCRIBE
+	 */
+	public boolean sendSubscribe(MessageType type, float messagesPerSecond) {
+		if ((capabilities & CAPABILITY_SUBSCRIBE) == 0) {
+			log.debug("Not sending SUBSCRIBE; robot did not agree to it");
+			return false;
+		}
+		log.debug("Sending SUBSCRIBE", type.ordinal(), messagesPerSecond);
+		send(sequenced(MessageType.SUBSCRIBE, type.ordinal(), messagesPerSecond));
+		return true;
+	}
+
+	/**
+	 * Limits how many messages of a type per second reach the GUI, whatever
+	 * rate the robot sends at. Recorders and other sinks still receive every
+	 * message. Takes effect at once.
+	 * @param type - the telemetry type to limit
+	 * @param messagesPerSecond - 0 to show every message
+	 */
+	public void setDisplayRate(MessageType type, float messagesPerSecond) {
+		if (decimator != null) {
+			decimator.setRate(type, messagesPerSecond);
+		}
+	}
+
+	/**
+	 * @return the number of messages kept from the GUI by setDisplayRate()
+	 */
+	public long getDecimatedCount() {
+		return decimator == null ? 0 : decimator.getDecimatedCount();
 	}
 
 	/**
@@ -86,43 +494,49 @@ public class GridControlCommunicator {
 	 * @param y    the y coordinate to travel to
 	 */
 	public void sendGoto(float x, float y) {
-		System.out.println("Communicator sending: GOTO " + x + ", " + y);
-		try {
-			dataOut.writeInt(MessageType.GOTO.ordinal());
-			dataOut.flush();
-			writeXAndYAndFlush(x, y);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending GOTO", x, y);
+		send(sequenced(MessageType.GOTO, x, y));
 	}
 
 	/**
 	 * Sends the STOP MessageType from the UI to the robot.
 	 */
 	public void sendStop() {
-		System.out.println("Communicator sending: STOP ");
-		try {
-			dataOut.writeInt(MessageType.STOP.ordinal());
-			dataOut.flush();
+		log.debug("Sending STOP");
+		sendPriority(sequenced(MessageType.STOP));
+	}
+	
+	/**
+	 * Sends the DRIVE MessageType to the robot.
+	 * A setpoint the robot follows until the next one, or until it has had
+	 * none for DRIVE_TIMEOUT, when it stops by itself. Setpoints are not
+	 * queued: one not yet written when the next is sent is replaced by it.
+	 * Nothing is sent unless the robot agreed to Teleop.CAPABILITY_DRIVE on
+	 * this link, since firmware without DRIVE would read its floats as the
+	 * next commands.
+	 * @param speed - cm per second, negative to reverse
+	 * @param turnRate - degrees per second, positive to turn left
+	 * @return true if the setpoint was queued
+	 */
+	public boolean sendDrive(float speed, float turnRate) {
+		if ((capabilities & Teleop.CAPABILITY_DRIVE) == 0) {
+			log.trace("Not sending DRIVE; robot did not agree to it");
+			return false;
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+		log.trace("Sending DRIVE", speed, turnRate);
+		if (!commands.offerLatest(encoder.encode(MessageType.DRIVE, speed, turnRate))) {
+			reportRejected();
+			return false;
 		}
+		return true;
 	}
-	
+
 	/**
 	 * Sends the GRAB_BOMB MessageType to the robot.
 	 */
 	public void sendGrabBomb() {
-		System.out.println("Communicator sending: Grab Bomb ");
-		try {
-			dataOut.writeInt(MessageType.GRAB_BOMB.ordinal());
-			dataOut.flush();
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending GRAB_BOMB");
+		send(sequenced(MessageType.GRAB_BOMB));
 	}
 
 	/**
@@ -132,16 +546,8 @@ public class GridControlCommunicator {
 	 * @param heading - heading of new position.
 	 */
 	public void sendSetPose(float x, float y, float heading) {
-		System.out.println("Communicator sending: SET POSE");
-		try {
-			dataOut.writeInt(MessageType.SET_POSE.ordinal());
-			dataOut.flush();
-			writeXAndYAndFlush(x, y);
-			writeHeadingAndFlush(heading);
-		}
-		catch (IOException ioe) {
-			ioe.printStackTrace();
-		}
+		log.debug("Sending SET_POSE", x, y, heading);
+		send(sequenced(MessageType.SET_POSE, x, y, heading));
 	}
 
 	/**
@@ -149,14 +555,8 @@ public class GridControlCommunicator {
 	 * Sends a FIX_POS to fix the pose to the NXT robot.
 	 */
 	public void sendFix() {
-		System.out.println("Communicator sending: FIX_POS");
-		try {
-			dataOut.writeInt(MessageType.FIX_POS.ordinal());
-			dataOut.flush();
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending FIX_POS");
+		send(sequenced(MessageType.FIX_POS));
 	}
 	
 	/**
@@ -164,15 +564,8 @@ public class GridControlCommunicator {
 	 * Sends a ping to robot.
 	 */
 	public void sendEcho(float angle) {
-		System.out.println(" Communicator sending: ECHO");
-		try {
-			dataOut.writeInt(MessageType.ECHO.ordinal());
-			dataOut.flush();
-			writeAngleOrDistAndFlush(angle);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending ECHO", angle);
+		send(sequenced(MessageType.ECHO, angle));
 	}
 	
 	/**
@@ -181,15 +574,8 @@ public class GridControlCommunicator {
 	 * @param dist - distance to travel.
 	 */
 	public void sendTravel(float dist) {
-		System.out.println(" Communicator sending: TRAVEL");
-		try {
-			dataOut.writeInt(MessageType.TRAVEL.ordinal());
-			dataOut.flush();
-			writeAngleOrDistAndFlush(dist);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending TRAVEL", dist);
+		send(sequenced(MessageType.TRAVEL, dist));
 	}
 	
 	/**
@@ -198,15 +584,8 @@ public class GridControlCommunicator {
 	 * @param angle - amount to rotate by.
 	 */
 	public void sendRotate(float angle) {
-		System.out.println(" Communicator sending: ROTATE");
-		try {
-			dataOut.writeInt(MessageType.ROTATE.ordinal());
-			dataOut.flush();
-			writeAngleOrDistAndFlush(angle);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending ROTATE", angle);
+		send(sequenced(MessageType.ROTATE, angle));
 	}
 	
 	/**
@@ -215,15 +594,8 @@ public class GridControlCommunicator {
 	 * @param angle - angle to rotate to.
 	 */
 	public void sendRotateTo(float angle) {
-		System.out.println("Communicator sending: ROTATE TO");
-		try {
-			dataOut.writeInt(MessageType.ROTATE_TO.ordinal());
-			dataOut.flush();
-			writeAngleOrDistAndFlush(angle);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending ROTATE_TO", angle);
+		send(sequenced(MessageType.ROTATE_TO, angle));
 	}
 	
 	
@@ -233,16 +605,8 @@ public class GridControlCommunicator {
 	 * Sends an angle value to rotate the robot head to.
 	 */
 	public void sendMapLeft(float x, float y, float angle) {
-		System.out.println("Communicator sending: MAP LEFT TO " + x + ", " + y);
-		try {
-			dataOut.writeInt(MessageType.SEND_MAP.ordinal());
-			dataOut.flush();
-			writeXAndYAndFlush(x, y);
-			writeAngleOrDistAndFlush(angle);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending SEND_MAP left", x, y, angle);
+		send(sequenced(MessageType.SEND_MAP, x, y, angle));
 	}
 	
 	/**
@@ -251,194 +615,438 @@ public class GridControlCommunicator {
 	 * Sends an angle value to rotate the robot head to.
 	 */
 	public void sendMapRight(float x, float y, float angle) {
-		System.out.println("Communicator sending: MAP RIGHT TO " + x + ", " + y);
-		try {
-			dataOut.writeInt(MessageType.SEND_MAP.ordinal());
-			dataOut.flush();
-			writeXAndYAndFlush(x, y);
-			writeAngleOrDistAndFlush(angle);
+		log.debug("Sending SEND_MAP right", x, y, angle);
+		send(sequenced(MessageType.SEND_MAP, x, y, angle));
+	}
+	
+	/**
+	 * Sends the MISSION MessageType to the robot.
+	 * Uploads a list of steps in one message; the robot runs them in order
+	 * without waiting for the PC between steps, and reports each step's
+	 * start and finish in a MISSION_PROGRESS. A new mission or a STOP ends
+	 * the one running. Nothing is sent if the robot did not agree to
+	 * MissionStep.CAPABILITY_MISSION: its single commands would all arrive
+	 * at once and each replace the last, so only the final step would run.
+	 * @param steps - 1 to MissionStep.MAX_STEPS steps
+	 * @return the mission's id, as reported in its progress, or -1 if the
+	 * robot takes no missions
+	 */
+	public synchronized int sendMission(List<MissionStep> steps) {
+		if (steps.isEmpty() || steps.size() > MissionStep.MAX_STEPS) {
+			throw new IllegalArgumentException("A mission has 1 to " + MissionStep.MAX_STEPS + " steps, not "
+					+ steps.size());
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+		if ((capabilities & MissionStep.CAPABILITY_MISSION) == 0) {
+			log.debug("Not sending MISSION; robot did not agree to it");
+			return -1;
 		}
+		missionId = (missionId + 1) & (InFlightCommands.SEQUENCE_LIMIT - 1);
+		float[] payload = new float[2 + MissionStep.FLOATS * steps.size()];
+		payload[0] = missionId;
+		payload[1] = steps.size();
+		for (int i = 0; i < steps.size(); i++) {
+			steps.get(i).write(payload, 2 + MissionStep.FLOATS * i);
+		}
+		log.debug("Sending MISSION", missionId, steps.size());
+		send(sequenced(MessageType.MISSION, payload));
+		return missionId;
 	}
-	
+
 	/**
 	 * Sends the EXPLORE MessageType to the robot.
 	 * Sends an angle value to rotate the robot head to.
 	 */
 	public void sendMapExplore(float angle) {
-		System.out.println("Communicator sending: MAP EXPLORE");
-		try {
-			dataOut.writeInt(MessageType.EXPLORE.ordinal());
-			dataOut.flush();
-			writeAngleOrDistAndFlush(angle);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		log.debug("Sending EXPLORE", angle);
+		send(sequenced(MessageType.EXPLORE, angle));
 	}
 	
 
 	/**
-	 * Reads the DataInputStream of MessageTypes from the robot, calls MissonControl's
-	 * drawRobotPath(), drawObstacle(), updateCoordList(), updateXAndYDataFields(),
-	 * and drawWall().
+	 * Reads the DataInputStream of MessageTypes from the robot and decodes
+	 * each one through the MessageRegistry, whose handlers hand it to the
+	 * TelemetryDispatcher, which calls MissonControl's drawRobotPath(),
+	 * drawObstacle(), updateCoordList(), updateXAndYDataFields(), and
+	 * drawWall() on the Swing event thread.
 	 * @author Corey Short, Roger Glassey
 	 */
 	class Reader extends Thread {
 
-		int count = 0;
-		boolean isRunning = false;
+		private final DataInputStream dataIn;
+		volatile boolean isRunning = false;
+
+		/**
+		 * @param dataIn - the link to read; the reader ends when it fails or closes
+		 */
+		Reader(DataInputStream dataIn) {
+			super("Reader");
+			this.dataIn = dataIn;
+			setDaemon(true);
+			isRunning = true;
+		}
+
+		/**
+		 * Asks the reader to end; it notices once its current read returns,
+		 * which closing the link makes happen at once.
+		 */
+		void shutdown() {
+			isRunning = false;
+		}
 
 		/**
 		 * Runs the reader and takes in MessageTypes that the robot sends to it.
-		 * Sends back the appropriate action to MissionControl.
-		 * The robot's communications will contain three pieces of information in
-		 * order:
-		 * 
-		 * 1) A header that indicates the type of message sent:
-		 * 	0 for the robot's position
-		 * 	1 for an obstacle's position 
-		 * 2) the x coordinate of that position 
-		 * 3) the y coordinate of that position
-		 * 
-		 * Exceptions are: Updating the standard deviation, drawing walls, and
-		 * receiving echo's.
+		 * Each message is an int header, the MessageType's ordinal, followed by
+		 * the payload its MessageRegistry layout declares; or, once version 2
+		 * is agreed, a WireFrame holding the same.
+		 *
+		 * Unframed, a header that is not registered or a payload that fails
+		 * the registry's checks means the stream has lost step with the robot.
+		 * The reader then slides forward a byte at a time until the next four
+		 * bytes form a registered header, and carries on from there. Framed,
+		 * the FrameReader finds the next good frame and a bad message costs
+		 * only itself.
 		 */
 		public void run() {
-			System.out.println("Reader started GridControlComm ");
-			isRunning = true;
-			float x = 0;
-			float y = 0;
-			float heading = 0;
-			float sDevX = 0;
-			float sDevY = 0;
-			float sDevHeading = 0;
-			String message = "";
+			log.info("Reader started");
+			float[] values = new float[Math.max(TelemetryRing.STRIDE, registry.getMaxFloats())];
+			FrameReader frames = null;
 			while (isRunning) {
 				try {
-					int index = dataIn.readInt();
-					MessageType header = null;
-					try {
-						header = MessageType.values()[index];
-						System.out.println("Message received - "
-								+ header.toString());
-					} catch (ArrayIndexOutOfBoundsException e) {
-						System.out.println("Header out of bounds, retrying.");
-						header = MessageType.STOP;
+					LinkStats link = stats;
+					if (values.length < registry.getMaxFloats()) {
+						values = new float[registry.getMaxFloats()]; // a longer type was registered
+					}
+					if (link.getFraming() == WireFrame.VERSION) {
+						if (frames == null) {
+							frames = new FrameReader(dataIn, link);
+						}
+						int header = frames.next();
+						if (registry.isRegistered(header)
+								&& registry.decode(frames.getPayload(), header, values, frames.getPayloadLength())) {
+							link.countReceived();
+						}
+						else {
+							link.countDropped();
+						}
+						continue;
+					}
+					frames = null;
+					int header = dataIn.readInt();
+					if (!registry.isRegistered(header)) {
+						log.warn("Unknown header; resynchronising");
+						header = resynchronise(header, link);
 					}
-					switch (header) {
-					case POS_UPDATE:
-						x = dataIn.readFloat();
-						y = dataIn.readFloat();
-						heading = dataIn.readFloat();
-						System.out.println("Robot position: " + x + "," + y + "," + heading);
-						message = "Current robot position is:\n" + 
-											"x: " + x + ", y: " + y + ", h: " + heading;
-						control.drawRobotPath((int) x, (int) y, (int) heading);
-						control.updateCoordList(message);
-						control.updateXAndYDataFields(x, y);
-						break;
-					case CRASH:
-						x = dataIn.readFloat();
-						y = dataIn.readFloat();
-						System.out.println("Crashed!!");
-						message = "CRASHED!! Oh No! at:\n" + 
-											"x: " + x + ", y: " + y + ", h: " + heading;
-						control.drawObstacle((int) x, (int) y);
-						control.updateCoordList(message);
-						break;
-					case WALL:
-						x = dataIn.readFloat();
-						y = dataIn.readFloat();
-						System.out.println("Begin scanning for wall at: " + x + "," + y);
-						message = "Mapping:\n" + "x: " + x + ", y: " + y + ", h: " + heading;
-						control.drawWall((int) x, (int) y, Color.magenta);
-						control.updateCoordList(message);
-						break;
-					case EXPLORE_RECEIVED:
-						x = dataIn.readFloat();
-						y = dataIn.readFloat();
-						System.out.println("Begin scanning for wall at: " + x + "," + y);
-						message = "Mapping:\n" + "x: " + x + ", y: " + y + ", h: " + heading;
-						control.drawWall((int) x, (int) y, Color.yellow);
-						control.updateCoordList(message);
-						break;
-					case STD_DEV:
-						x = dataIn.readFloat();
-						y = dataIn.readFloat();
-						heading = dataIn.readFloat();
-						sDevX = dataIn.readFloat();
-						sDevY = dataIn.readFloat();
-						sDevHeading = dataIn.readFloat();
-						System.out.println("Standard deviation is: " + "x: " + sDevX + ", y: " + sDevY + ", h: " + sDevHeading);
-						message = "Standard deviation is:\n" + "x: " + sDevX + ", y: " + sDevY + ", h:" + sDevHeading;
-						control.drawStdDev((int) x, (int) y, (int) sDevX, (int) sDevY);
-						control.updateCoordList(message);
-					case ECHO:
-						x = dataIn.readFloat();
-						y = dataIn.readFloat();
-						System.out.println("Begin scanning for wall at: " + x + "," + y);
-						message = "Mapping:\n" + "x: " + x + ", y: " + y + ", h: " + heading;
-						control.drawWall((int) x, (int) y, Color.cyan);
-						control.updateCoordList(message);
-						break;
-					default:
-						break;
+					// a rejected payload may have been read only in part, so the
+					// next header is found the same way as after an unknown one
+					while (!registry.decode(dataIn, header, values, -1)) {
+						log.warn("Implausible " + MessageType.of(header) + " payload; resynchronising");
+						link.countDropped();
+						header = resynchronise(dataIn.readInt(), link);
 					}
+					link.countReceived();
 				} 
 				catch (IOException e) {
-					System.out.println("Read Exception in GridControlComm");
-					count++;
+					if (isRunning && !isClosing) {
+						log.warn("Read Exception in GridControlComm", e);
+					}
+					else if (isRunning) {
+						log.debug("Link closed: " + e.getMessage()); // the robot hanging up after DISCONNECT
+					}
+					isRunning = false; // the link is gone; the connector decides what next
+				}
+			}
+			log.info("Reader stopped");
+		}
+
+		/**
+		 * Slides forward a byte at a time until the last four bytes read form
+		 * a registered header.
+		 * @param header - the last four bytes read
+		 * @return the registered header found
+		 */
+		private int resynchronise(int header, LinkStats link) throws IOException {
+			link.countResync();
+			int skipped = 0;
+			while (!registry.isRegistered(header)) {
+				header = (header << 8) | dataIn.readUnsignedByte();
+				skipped++;
+			}
+			link.countSkipped(skipped);
+			return header;
+		}
+	}
+
+	/**
+	 * Registers the messages the robot sends, each handed to every sink.
+	 */
+	private void registerTelemetry() {
+		MessageRegistry.Handler publisher = new MessageRegistry.Handler() {
+			public void handle(MessageType type, float[] values, int count) {
+				log.trace(type.name(), values[0], values[1]);
+				publish(type, values, count);
+			}
+		};
+		registry.register(MessageType.POS_UPDATE, 3, publisher); // x, y, heading
+		registry.register(MessageType.WALL, 2, publisher); // x, y
+		registry.register(MessageType.EXPLORE_RECEIVED, 2, publisher);
+		registry.register(MessageType.ECHO, 2, publisher);
+		// x, y, heading and the standard deviation of each
+		registry.register(MessageType.STD_DEV, 6, publisher);
+		// the type the points would otherwise have been sent as, then x, y pairs
+		registry.register(MessageType.SCAN_BATCH, 1, 2, MAX_SCAN_POINTS, publisher);
+		// mission id, step index, MissionStep state
+		registry.register(MessageType.MISSION_PROGRESS, 3, publisher);
+		registry.register(MessageType.CRASH, 2, new MessageRegistry.Handler() {
+			public void handle(MessageType type, float[] values, int count) {
+				log.info("Crashed!!");
+				publish(type, values, count);
+			}
+		});
+		// quantized poses, handed on as the float messages they stand for
+		registry.register(MessageType.POSE_COMPACT, 3, compactPose.poseDecoder,
+				publishAs(MessageType.POS_UPDATE));
+		registry.register(MessageType.POSE_DELTA, 3, compactPose.deltaDecoder,
+				publishAs(MessageType.POS_UPDATE));
+		registry.register(MessageType.STD_DEV_COMPACT, 6, compactPose.stdDevDecoder,
+				publishAs(MessageType.STD_DEV));
+		// replies to sequenced commands: the sequence, then for DONE a status
+		registry.register(MessageType.ACK, 1, new MessageRegistry.Handler() {
+			public void handle(MessageType type, float[] values, int count) {
+				inFlight.acknowledge((int) values[0], System.nanoTime());
+			}
+		});
+		registry.register(MessageType.DONE, 2, new MessageRegistry.Handler() {
+			public void handle(MessageType type, float[] values, int count) {
+				MessageType command = inFlight.complete((int) values[0], (int) values[1], System.nanoTime());
+				if (command != null && (int) values[1] != InFlightCommands.STATUS_OK) {
+					log.info(command + " #" + (int) values[0] + " abandoned by the robot");
+				}
+			}
+		});
+		// the robot's answer to a HELLO: the framing version and capabilities
+		// it will use from now on
+		registry.register(MessageType.HELLO, 2, new MessageRegistry.Handler() {
+			public void handle(MessageType type, float[] values, int count) {
+				CountDownLatch waiting = helloReply;
+				if (waiting == null) {
+					return;
+				}
+				if ((int) values[0] == WireFrame.VERSION && offeredFraming == WireFrame.VERSION) {
+					stats.setFraming(WireFrame.VERSION);
 				}
-				control.setMessage(message);
+				capabilities = (int) values[1] & offeredCapabilities;
+				waiting.countDown();
 			}
+		});
+	}
+
+	/**
+	 * @return a handler that publishes messages as another type
+	 */
+	private MessageRegistry.Handler publishAs(final MessageType as) {
+		return new MessageRegistry.Handler() {
+			public void handle(MessageType type, float[] values, int count) {
+				publish(as, values, count);
+			}
+		};
+	}
+
+	/**
+	 * Hands a decoded message to every sink: the dispatcher, through the
+	 * decimator, which draws it on the Swing event thread at the next frame,
+	 * and any recorder.
+	 */
+	private void publish(MessageType header, float[] values, int count) {
+		long now = System.nanoTime();
+		TelemetrySink[] current = sinks;
+		for (int i = 0; i < current.length; i++) {
+			current[i].accept(now, header.ordinal(), values, count);
 		}
 	}
+
+	/**
+	 * @return the registry the Reader decodes with; register a handler here
+	 * to receive a new message type
+	 */
+	public MessageRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return counters for the current link: messages received and dropped,
+	 * corrupt frames, and resynchronisations
+	 */
+	public LinkStats getLinkStats() {
+		return stats;
+	}
 	
 	/**
-	 * A method that writes and flushes x and y values to the NXT's communicator
-	 * @param x - the x value to write to the NXT
-	 * @param y - the y value to write to the NXT
+	 * Hands a message to every sink as if the Reader had just received it, so
+	 * a MissionReplay can drive the GUI. The display rates apply as they do
+	 * to the Reader. Unlike the Reader, this pushes back:
+	 * if the dispatcher is full the message is given to no sink at all and
+	 * the caller may offer it again. Only replay while not connected, since
+	 * the sinks expect a single thread feeding them.
+	 * @return false if the dispatcher was full
 	 */
-	private void writeXAndYAndFlush(float x, float y) {
-		try {
-			dataOut.writeFloat(x);
-			dataOut.flush();
-			dataOut.writeFloat(y);
-			dataOut.flush();
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		TelemetrySink[] current = sinks;
+		int first = 0;
+		if (decimator != null) {
+			if (!decimator.accept(timeNanos, type, values, count)) {
+				return false;
+			}
+			first = 1;
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+		for (int i = first; i < current.length; i++) {
+			current[i].accept(timeNanos, type, values, count);
 		}
+		return true;
 	}
-	
+
 	/**
-	 * A method that writes and flushes an angle to the NXT's communicator
-	 * @param angle - the angle to write to the NXT
+	 * @return true from connect() until disconnect() finishes or the first
+	 * attempt fails, including while reconnecting
 	 */
-	private void writeAngleOrDistAndFlush(float angle) {
-		try {
-			dataOut.writeFloat(angle);
-			dataOut.flush();
+	public boolean isConnected() {
+		return state != ConnectionState.DISCONNECTED;
+	}
+
+	/**
+	 * Lets the GUI list each mapped feature once; see
+	 * TelemetryDispatcher.setSpatialIndex(). Add the index as a sink too.
+	 * @param index - the features mapped so far; null to list every wall point
+	 */
+	public void setFeatureIndex(SpatialIndex index) {
+		if (dispatcher != null) {
+			dispatcher.setSpatialIndex(index);
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+	}
+
+	/**
+	 * Adds a sink that receives every message the Reader decodes, on the
+	 * Reader thread. Sinks must not block.
+	 */
+	public synchronized void addTelemetrySink(TelemetrySink sink) {
+		TelemetrySink[] grown = new TelemetrySink[sinks.length + 1];
+		System.arraycopy(sinks, 0, grown, 0, sinks.length);
+		grown[sinks.length] = sink;
+		sinks = grown;
+	}
+
+	public synchronized void removeTelemetrySink(TelemetrySink sink) {
+		for (int i = 0; i < sinks.length; i++) {
+			if (sinks[i] == sink) {
+				TelemetrySink[] shrunk = new TelemetrySink[sinks.length - 1];
+				System.arraycopy(sinks, 0, shrunk, 0, i);
+				System.arraycopy(sinks, i + 1, shrunk, i, sinks.length - i - 1);
+				sinks = shrunk;
+				return;
+			}
 		}
 	}
-	
+
 	/**
-	 * A method that writes and flushes a heading to the NXT's communicator
-	 * @param angle - the heading to write to the NXT
+	 * Starts coalescing commands. Until the matching endBatch() every sendXxx
+	 * call is appended to one buffer instead of being written, so a burst of
+	 * commands (a run of GOTO waypoints, say) goes out as a single write.
+	 * Batches may nest; only the outermost endBatch() writes.
 	 */
-	private void writeHeadingAndFlush(float heading) {
-		try {
-			dataOut.writeFloat(heading);
-			dataOut.flush();
+	public synchronized void beginBatch() {
+		batchDepth++;
+	}
+
+	/**
+	 * Writes every command sent since the matching beginBatch() with one flush.
+	 */
+	public synchronized void endBatch() {
+		if (batchDepth == 0) {
+			return;
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+		batchDepth--;
+		if (batchDepth == 0 && batch.size() > 0) {
+			byte[] frames = batch.toByteArray();
+			batch.reset();
+			if (commands.offer(frames)) {
+				batched.clear();
+				return;
+			}
+			for (byte[] frame : batched) {
+				inFlight.forget(frame);
+			}
+			batched.clear();
+			reportRejected();
+		}
+	}
+
+	/**
+	 * @return the number of commands waiting to be written to the robot
+	 */
+	public int getQueueDepth() {
+		return commands.getDepth();
+	}
+
+	/**
+	 * @return the number of DRIVE setpoints replaced by a newer one before
+	 * they were written
+	 */
+	public long getReplacedSetpointCount() {
+		return commands.getReplacedCount();
+	}
+
+	/**
+	 * @return the number of commands dropped because the queue was full or
+	 * there was no connection
+	 */
+	public long getRejectedCommandCount() {
+		return commands.getRejectedCount();
+	}
+
+	/**
+	 * Queues a framed command for the writer thread, or holds it back if a
+	 * batch is open. Never blocks the caller. A command the queue will not
+	 * take is no longer tracked, so it is reported dropped and nothing more.
+	 * @param frame - one or more commands built by the CommandEncoder
+	 */
+	private synchronized void send(byte[] frame) {
+		if (batchDepth > 0) {
+			batch.write(frame, 0, frame.length);
+			batched.add(frame);
+			return;
+		}
+		if (!commands.offer(frame)) {
+			inFlight.forget(frame);
+			reportRejected();
+		}
+	}
+
+	/**
+	 * Queues a framed command ahead of everything waiting to be written. The
+	 * command dropped instead, this one or the newest waiting, is no longer
+	 * tracked and is reported.
+	 * @param frame - a command built by the CommandEncoder
+	 */
+	private void sendPriority(byte[] frame) {
+		byte[] dropped = commands.offerFirst(frame);
+		if (dropped != null) {
+			inFlight.forget(dropped);
+			reportRejected();
+		}
+	}
+
+	/**
+	 * Tells the GUI a command was dropped rather than sent.
+	 */
+	private void reportRejected() {
+		if (control == null) {
+			return;
+		}
+		if (state != ConnectionState.CONNECTED) {
+			control.setMessage("Not connected; command not sent");
+		}
+		else {
+			control.setMessage("Command queue full (" + commands.getCapacity()
+					+ "); command dropped");
 		}
 	}
 }
@@ -0,0 +1,286 @@
+/**
+ * Tracks commands sent with a sequence number until the robot reports them
+ * done. Once both sides agree CAPABILITY_SEQUENCE in their HELLO, each
+ * command goes out behind a SEQ message carrying its number; the robot
+ * answers ACK when it takes the command and DONE, with a status, when it
+ * has finished or abandoned it.
+ * 	SEQ   float sequence
+ * 	ACK   float sequence
+ * 	DONE  float sequence, float status (STATUS_OK or STATUS_ABORTED)
+ * A command not acknowledged within ACK_TIMEOUT is sent again, with the same
+ * number, if repeating it cannot change the outcome (see isIdempotent());
+ * otherwise, or after MAX_ATTEMPTS, it is given up. Since only those
+ * commands are repeated, the robot may simply carry a repeat out again; it
+ * acknowledges each copy, and the first answer stops the resends.
+ *
+ * The table is a ring indexed by sequence number, so a slot is found without
+ * searching; a command still unfinished when its slot comes round again is
+ * given up to make room.
+ * @author Corey Short
+ */
+public class InFlightCommands {
+
+	/**
+	 * HELLO capability bit for SEQ, ACK and DONE.
+	 */
+	public static final int CAPABILITY_SEQUENCE = 4;
+
+	public static final int STATUS_OK = 0;
+	public static final int STATUS_ABORTED = 1;
+
+	/**
+	 * Sequence numbers wrap here, so every one is exact as a float.
+	 */
+	public static final int SEQUENCE_LIMIT = 1 << 24;
+
+	public static final long ACK_TIMEOUT = 1000000000L; // ns to wait for an ACK
+	public static final int MAX_ATTEMPTS = 3; // sends of one command, the first included
+	public static final long DONE_TIMEOUT = 120000000000L; // ns to wait for a DONE once acknowledged
+
+	private static final EventLog log = new EventLog("InFlightCommands");
+
+	private final int mask;
+	private final int[] sequences; // -1 for a free slot
+	private final MessageType[] types;
+	private final byte[][] frames; // as queued, for sending again
+	private final long[] firstSent;
+	private final long[] deadlines;
+	private final int[] attempts;
+	private final boolean[] isAcknowledged;
+	private int nextSequence = 0;
+	private int inFlight = 0;
+	private long retried = 0;
+	private long givenUp = 0;
+	private long aborted = 0;
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	private final LatencyHistogram completion = new LatencyHistogram();
+
+	/**
+	 * @param capacity - the most commands tracked at once; rounded up to a
+	 * power of two
+	 */
+	public InFlightCommands(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		sequences = new int[size];
+		types = new MessageType[size];
+		frames = new byte[size][];
+		firstSent = new long[size];
+		deadlines = new long[size];
+		attempts = new int[size];
+		isAcknowledged = new boolean[size];
+		clear();
+	}
+
+	/**
+	 * @return true for commands whose effect is the same however many times
+	 * the robot carries them out: absolute moves, STOP and settings.
+	 * Relative moves and scans are never sent twice.
+	 */
+	public static boolean isIdempotent(MessageType type) {
+		switch (type) {
+		case GOTO:
+		case STOP:
+		case SET_POSE:
+		case ROTATE_TO:
+		case SCANNER_ROTATE:
+		case SUBSCRIBE:
+		case MISSION: // the robot ignores a mission it is already running
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Forgets every command, as when a new link opens; the robot at the other
+	 * end will not answer for them.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < sequences.length; i++) {
+			sequences[i] = -1;
+			types[i] = null;
+			frames[i] = null;
+		}
+		inFlight = 0;
+	}
+
+	/**
+	 * @return the number for the next command
+	 */
+	public synchronized int nextSequence() {
+		int sequence = nextSequence;
+		nextSequence = (nextSequence + 1) & (SEQUENCE_LIMIT - 1);
+		return sequence;
+	}
+
+	/**
+	 * Starts tracking a command; call before it is queued, so its ACK cannot
+	 * arrive first, and forget() it if the queue turns it away.
+	 * @param sequence - from nextSequence()
+	 * @param frame - the SEQ and the command, as queued
+	 * @param now - System.nanoTime()
+	 */
+	public synchronized void track(int sequence, MessageType type, byte[] frame, long now) {
+		int slot = sequence & mask;
+		if (sequences[slot] >= 0) {
+			log.warn(types[slot] + " #" + sequences[slot] + " still unfinished; no longer tracked");
+			givenUp++;
+			inFlight--;
+		}
+		sequences[slot] = sequence;
+		types[slot] = type;
+		frames[slot] = frame;
+		firstSent[slot] = now;
+		deadlines[slot] = now + ACK_TIMEOUT;
+		attempts[slot] = 1;
+		isAcknowledged[slot] = false;
+		inFlight++;
+	}
+
+	/**
+	 * Stops tracking a command the queue would not take, without counting it
+	 * as given up; the robot never saw it. Its number is handed out again if
+	 * no later one has been, so a run of dropped commands does not walk the
+	 * ring over commands still in flight.
+	 * @param frame - the frame passed to track(), compared by identity
+	 * @return true if the command was being tracked
+	 */
+	public synchronized boolean forget(byte[] frame) {
+		for (int slot = 0; slot < frames.length; slot++) {
+			if (frames[slot] == frame) {
+				if (((sequences[slot] + 1) & (SEQUENCE_LIMIT - 1)) == nextSequence) {
+					nextSequence = sequences[slot];
+				}
+				release(slot);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records an ACK. Only commands acknowledged on their first send count
+	 * towards the round trip, since an ACK after a resend could answer either.
+	 */
+	public synchronized void acknowledge(int sequence, long now) {
+		int slot = find(sequence);
+		if (slot < 0 || isAcknowledged[slot]) {
+			return;
+		}
+		isAcknowledged[slot] = true;
+		deadlines[slot] = now + DONE_TIMEOUT;
+		if (attempts[slot] == 1) {
+			roundTrip.record(now - firstSent[slot]);
+		}
+	}
+
+	/**
+	 * Records a DONE and stops tracking the command; a DONE also stands for
+	 * an ACK that was lost.
+	 * @return the command's type, or null if it was not being tracked
+	 */
+	public synchronized MessageType complete(int sequence, int status, long now) {
+		int slot = find(sequence);
+		if (slot < 0) {
+			return null;
+		}
+		MessageType type = types[slot];
+		if (status == STATUS_OK) {
+			completion.record(now - firstSent[slot]);
+		}
+		else {
+			aborted++;
+		}
+		release(slot);
+		return type;
+	}
+
+	/**
+	 * Sends again, or gives up, every command whose deadline has passed.
+	 * @param queue - takes the frames sent again
+	 * @param now - System.nanoTime()
+	 * @return the number of commands given up
+	 */
+	public synchronized int expire(CommandQueue queue, long now) {
+		if (inFlight == 0) {
+			return 0;
+		}
+		int expired = 0;
+		for (int slot = 0; slot < sequences.length; slot++) {
+			if (sequences[slot] < 0 || now - deadlines[slot] < 0) {
+				continue;
+			}
+			if (!isAcknowledged[slot] && isIdempotent(types[slot]) && attempts[slot] < MAX_ATTEMPTS
+					&& queue.offer(frames[slot])) {
+				attempts[slot]++;
+				deadlines[slot] = now + ACK_TIMEOUT;
+				retried++;
+				if (log.isEnabled(EventLog.Level.DEBUG)) {
+					log.debug("Resending " + types[slot] + " #" + sequences[slot]);
+				}
+				continue;
+			}
+			log.warn(types[slot] + " #" + sequences[slot]
+					+ (isAcknowledged[slot] ? " never finished" : " not acknowledged"));
+			givenUp++;
+			expired++;
+			release(slot);
+		}
+		return expired;
+	}
+
+	private int find(int sequence) {
+		int slot = sequence & mask;
+		return sequences[slot] == sequence ? slot : -1;
+	}
+
+	private void release(int slot) {
+		sequences[slot] = -1;
+		types[slot] = null;
+		frames[slot] = null;
+		inFlight--;
+	}
+
+	/**
+	 * @return the number of commands sent and not yet done
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return how many times a command has been sent again
+	 */
+	public synchronized long getRetriedCount() {
+		return retried;
+	}
+
+	/**
+	 * @return how many commands were given up unacknowledged or unfinished
+	 */
+	public synchronized long getGivenUpCount() {
+		return givenUp;
+	}
+
+	/**
+	 * @return how many commands the robot reported abandoning
+	 */
+	public synchronized long getAbortedCount() {
+		return aborted;
+	}
+
+	/**
+	 * @return time from sending a command to its ACK
+	 */
+	public LatencyHistogram getRoundTrip() {
+		return roundTrip;
+	}
+
+	/**
+	 * @return time from sending a command to its successful DONE
+	 */
+	public LatencyHistogram getCompletion() {
+		return completion;
+	}
+}
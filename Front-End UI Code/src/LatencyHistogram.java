@@ -0,0 +1,113 @@
+/**
+ * Counts latencies in logarithmic buckets, four to each doubling, so a
+ * percentile is known to within 25% from a few hundred longs,
+ * whether it was a millisecond ACK or a minute-long GOTO. Recording takes a
+ * lock but never allocates; reading is meant for the GUI's once-a-second
+ * refresh.
+ * @author Corey Short
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 4; // per doubling; a power of two
+	private static final int SUB_BITS = 2;
+
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+	private long total = 0;
+	private long max = 0;
+	private long sum = 0;
+
+	/**
+	 * @param nanos - a latency; negative values count as 0
+	 */
+	public synchronized void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts[bucket(micros)]++;
+		total++;
+		sum += micros;
+		max = Math.max(max, micros);
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		total = 0;
+		max = 0;
+		sum = 0;
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public synchronized long getCount() {
+		return total;
+	}
+
+	/**
+	 * @return the largest latency recorded, in microseconds
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the mean latency, in microseconds, or 0 if none was recorded
+	 */
+	public synchronized long getMean() {
+		return total == 0 ? 0 : sum / total;
+	}
+
+	/**
+	 * @param fraction - 0.5 for the median, 0.99 for the 99th percentile
+	 * @return the upper bound, in microseconds, of the bucket holding that
+	 * fraction of the recorded latencies, or 0 if none was recorded
+	 */
+	public synchronized long getPercentile(double fraction) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Values below SUB_BUCKETS get a bucket each; above, each doubling is
+	 * split by the bits just below the highest set bit.
+	 */
+	private static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value that falls in a bucket
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS - 1 + SUB_BITS;
+		int sub = bucket & (SUB_BUCKETS - 1);
+		long low = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return low + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * @return count, median, 99th percentile and maximum, in milliseconds
+	 */
+	public synchronized String toString() {
+		return String.format("n=%d p50=%.1fms p99=%.1fms max=%.1fms", total,
+				getPercentile(0.5) / 1000.0, getPercentile(0.99) / 1000.0, max / 1000.0);
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * Counters for one link to the robot, kept by the Reader so the quality of
+ * the link, typically Bluetooth under load, can be measured. Each counter is
+ * written only by the Reader thread and may be read from any thread.
+ * @author Corey Short
+ */
+public class LinkStats {
+
+	private volatile int framing = 1; // the wire format version in use
+	private volatile long received = 0; // messages decoded and handed on
+	private volatile long dropped = 0; // well framed, but rejected by the MessageRegistry
+	private volatile long corrupt = 0; // version 2 frames with a bad length or CRC
+	private volatile long resyncs = 0; // times the reader lost step and searched for the next message
+	private volatile long skipped = 0; // bytes passed over while searching
+
+	void setFraming(int version) {
+		framing = version;
+	}
+
+	void countReceived() {
+		received++;
+	}
+
+	void countDropped() {
+		dropped++;
+	}
+
+	void countCorrupt() {
+		corrupt++;
+	}
+
+	void countResync() {
+		resyncs++;
+	}
+
+	void countSkipped(int bytes) {
+		skipped += bytes;
+	}
+
+	/**
+	 * @return 1 for bare headers, WireFrame.VERSION once framing was agreed
+	 */
+	public int getFraming() {
+		return framing;
+	}
+
+	public long getReceivedCount() {
+		return received;
+	}
+
+	/**
+	 * @return messages that arrived whole but had an unknown type, a payload
+	 * that did not fit the type's layout, or implausible values
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * @return version 2 frames that failed their length or CRC check
+	 */
+	public long getCorruptCount() {
+		return corrupt;
+	}
+
+	/**
+	 * @return the number of times the stream lost step with the robot
+	 */
+	public long getResyncCount() {
+		return resyncs;
+	}
+
+	/**
+	 * @return bytes skipped while finding the next message
+	 */
+	public long getSkippedByteCount() {
+		return skipped;
+	}
+
+	public String toString() {
+		return "v" + framing + " rx " + received + ", dropped " + dropped + ", corrupt " + corrupt
+				+ ", resyncs " + resyncs + ", skipped " + skipped + " B";
+	}
+}
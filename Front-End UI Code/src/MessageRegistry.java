@@ -0,0 +1,199 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Table of the messages the robot may send: for each MessageType, the layout
+ * of its payload and the Handler that receives it. The Reader looks a header
+ * up by its ordinal, reads exactly the floats the layout declares, checks
+ * them, and passes them on, so adding a telemetry type means registering it
+ * here rather than editing the Reader.
+ *
+ * A layout is either a fixed number of floats, or a fixed number of floats
+ * followed by an int item count and that many items of a fixed number of
+ * floats each. Payloads that are not floats, such as CompactPose's packed
+ * integers, register a Decoder that turns them into floats. A header with no entry, a count above the declared maximum,
+ * a framed payload whose length does not match the layout, or a float that
+ * is NaN, infinite or beyond PLAUSIBLE_LIMIT means the stream is out of step
+ * with the robot; decode() reports that instead of handing on garbage.
+ * @author Corey Short
+ */
+public class MessageRegistry {
+
+	/**
+	 * Largest magnitude a decoded float may have; the arena is a few hundred
+	 * centimetres across, so anything near this came from misaligned bytes.
+	 */
+	public static final float PLAUSIBLE_LIMIT = 1e6f;
+
+	/**
+	 * Receives decoded messages; called on the Reader thread.
+	 */
+	public interface Handler {
+		/**
+		 * @param type - the message type
+		 * @param values - the payload, in wire order; only valid during the call
+		 * @param count - the number of floats in values, not counting an item
+		 * count, which is implied by the layout
+		 */
+		void handle(MessageType type, float[] values, int count);
+	}
+
+	/**
+	 * Turns a payload that is not plain floats into floats; called on the
+	 * Reader thread.
+	 */
+	public interface Decoder {
+		/**
+		 * @param in - positioned at the start of the payload
+		 * @param values - receives the decoded floats
+		 * @param length - the payload's length in bytes if the message was
+		 * framed, or -1
+		 * @return the number of floats decoded, or -1 if the payload is not valid
+		 */
+		int decode(DataInputStream in, float[] values, int length) throws IOException;
+	}
+
+	private final Handler[] handlers = new Handler[MessageType.count()];
+	private final int[] fixedFloats = new int[MessageType.count()];
+	private final int[] itemFloats = new int[MessageType.count()]; // 0 for fixed layouts
+	private final int[] maxItems = new int[MessageType.count()];
+	private final Decoder[] decoders = new Decoder[MessageType.count()]; // null for float layouts
+	private volatile int maxFloats = 0;
+
+	/**
+	 * Registers a message with a fixed payload, replacing any earlier entry.
+	 * @param type - the header the robot sends
+	 * @param floats - the number of floats that follow the header
+	 * @param handler - receives each decoded message
+	 */
+	public synchronized void register(MessageType type, int floats, Handler handler) {
+		register(type, floats, 0, 0, handler);
+	}
+
+	/**
+	 * Registers a message whose payload is some fixed floats, then an int
+	 * item count, then that many items, replacing any earlier entry.
+	 * @param type - the header the robot sends
+	 * @param floats - the floats before the item count
+	 * @param floatsPerItem - the floats in each item
+	 * @param itemLimit - the most items a message may carry
+	 * @param handler - receives each decoded message
+	 */
+	public synchronized void register(MessageType type, int floats, int floatsPerItem, int itemLimit,
+			Handler handler) {
+		int i = type.ordinal();
+		fixedFloats[i] = floats;
+		itemFloats[i] = floatsPerItem;
+		maxItems[i] = itemLimit;
+		decoders[i] = null;
+		handlers[i] = handler;
+		maxFloats = Math.max(maxFloats, floats + floatsPerItem * itemLimit);
+	}
+
+	/**
+	 * Registers a message whose payload a Decoder reads, replacing any
+	 * earlier entry.
+	 * @param type - the header the robot sends
+	 * @param floats - the most floats the decoder produces
+	 * @param decoder - reads the payload
+	 * @param handler - receives each decoded message
+	 */
+	public synchronized void register(MessageType type, int floats, Decoder decoder, Handler handler) {
+		register(type, floats, 0, 0, handler);
+		decoders[type.ordinal()] = decoder;
+	}
+
+	/**
+	 * @return true if a header value names a registered message
+	 */
+	public boolean isRegistered(int header) {
+		return header >= 0 && header < handlers.length && handlers[header] != null;
+	}
+
+	/**
+	 * @return the most floats any registered message can carry; the size of
+	 * the values array decode() needs
+	 */
+	public int getMaxFloats() {
+		return maxFloats;
+	}
+
+	/**
+	 * Reads the payload of a registered message and hands it to its handler.
+	 * @param in - positioned just after the header
+	 * @param header - a header for which isRegistered() is true
+	 * @param values - at least getMaxFloats() long
+	 * @param length - the payload's length in bytes if the message was framed,
+	 * or -1 if it is only known from the layout
+	 * @return false if the payload failed its checks and was not handled;
+	 * unframed, that means the stream has lost its alignment with the robot's
+	 * messages
+	 */
+	public boolean decode(DataInputStream in, int header, float[] values, int length) throws IOException {
+		MessageType type = MessageType.of(header);
+		int count = fixedFloats[header];
+		int perItem = itemFloats[header];
+		Decoder decoder = decoders[header];
+		if (decoder != null) {
+			count = decoder.decode(in, values, length);
+			if (count < 0 || !isPlausible(values, count)) {
+				return false;
+			}
+			handlers[header].handle(type, values, count);
+			return true;
+		}
+		if (length >= 0 && length < 4 * count + (perItem > 0 ? 4 : 0)) {
+			return false; // too short for the fixed part
+		}
+		boolean isPlausible = readFloats(in, values, 0, count);
+		if (perItem > 0) {
+			int items = in.readInt();
+			if (items < 0 || items > maxItems[header]) {
+				return false;
+			}
+			if (length >= 0 && length != 4 * (count + items * perItem) + 4) {
+				return false;
+			}
+			isPlausible &= readFloats(in, values, count, items * perItem);
+			count += items * perItem;
+		}
+		else if (length >= 0 && length != 4 * count) {
+			return false;
+		}
+		if (!isPlausible) {
+			return false;
+		}
+		handlers[header].handle(type, values, count);
+		return true;
+	}
+
+	/**
+	 * @return false if any of the first count values is NaN, infinite or
+	 * beyond PLAUSIBLE_LIMIT
+	 */
+	private static boolean isPlausible(float[] values, int count) {
+		for (int i = 0; i < count; i++) {
+			if (!(Math.abs(values[i]) <= PLAUSIBLE_LIMIT)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads floats into values, all of them even if one is implausible, so a
+	 * good message is never cut short.
+	 * @return false if any was NaN, infinite or beyond PLAUSIBLE_LIMIT
+	 */
+	private static boolean readFloats(DataInputStream in, float[] values, int offset, int count)
+			throws IOException {
+		boolean isPlausible = true;
+		for (int i = offset; i < offset + count; i++) {
+			float value = in.readFloat();
+			values[i] = value;
+			// NaN fails this comparison too
+			isPlausible &= Math.abs(value) <= PLAUSIBLE_LIMIT;
+		}
+		return isPlausible;
+	}
+}
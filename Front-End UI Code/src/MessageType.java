@@ -7,5 +7,29 @@
 public enum MessageType {
 	GOTO, STOP, SET_POSE, FIX_POS, POS_UPDATE, 
 	CRASH, ECHO, ROTATE, TRAVEL, ROTATE_TO, SCANNER_ROTATE, SEND_MAP, WALL,
-	EXPLORE, STD_DEV, DISCONNECT, EXPLORE_RECEIVED, GRAB_BOMB
+	EXPLORE, STD_DEV, DISCONNECT, EXPLORE_RECEIVED, GRAB_BOMB,
+	HELLO, // offers, then confirms, a framing version; see WireFrame
+	SCAN_BATCH, // a whole sweep of scanned points in one message
+	POSE_COMPACT, STD_DEV_COMPACT, POSE_DELTA, // quantized poses; see CompactPose
+	SUBSCRIBE, // asks the robot to send a telemetry type at a given rate
+	SEQ, ACK, DONE, // command sequence numbers and replies; see InFlightCommands
+	MISSION, MISSION_PROGRESS, // a list of steps run by the robot; see MissionStep
+	DRIVE; // a teleoperation setpoint: speed and turn rate
+
+	// values() clones its array on every call; decoders look types up here
+	private static final MessageType[] TYPES = values();
+
+	/**
+	 * @return the type with the given ordinal, or null if there is none
+	 */
+	public static MessageType of(int ordinal) {
+		return ordinal >= 0 && ordinal < TYPES.length ? TYPES[ordinal] : null;
+	}
+
+	/**
+	 * @return the number of message types
+	 */
+	public static int count() {
+		return TYPES.length;
+	}
 }
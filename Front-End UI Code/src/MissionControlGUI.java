@@ -7,20 +7,36 @@ import java.awt.GridLayout;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.event.AdjustmentEvent;
-import java.awt.event.AdjustmentListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.JToggleButton;
+import javax.swing.JScrollBar;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import java.awt.Font;
 import java.awt.FlowLayout;
@@ -40,17 +56,37 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 	private JPanel contentPane, topPanel, centerPanel;
 	private JTextField nameField, xField, yField, xField2, yField2; 
+	private float shownX, shownY; // the pose last put in xField and yField
+	private String xText, yText; // its text, reused while the pose is unchanged
 	private JTextField headingField, echoField, amountField, statusField;
-	private JTextArea coordListTextArea;
+	private JList<String> coordList;
+	private CoordinateLogModel coordLog = new CoordinateLogModel(
+			Integer.getInteger("coordlist.retention", CoordinateLogModel.DEFAULT_RETENTION));
 	private JScrollPane scrollPane;
-	private JLabel lblDataY, lblPoseY, lblAngle, lblHeading, timerLabel;
+	private JLabel lblDataY, lblPoseY, lblAngle, lblHeading, timerLabel, queueLabel;
 	private JLabel lblDataX, lblPoseX, lblEcho, lblStatus, lblStatusArea;
 	private JButton stopButton, setPoseButton, gotoButton, map1Button, map2Button;
 	private JButton fixButton, travelButton, rotateButton, rotateToButton, echoButton;
 	private JButton connectButton, map3Button, grabBombButton;
+	private JToggleButton recordButton, replayButton;
+	private JComboBox<String> replaySpeedBox, poseRateBox, displayRateBox;
+	private JTextField seekField;
+	private MissionRecorder recorder;
+	private MissionReplay replay;
+	private int routeMission = -1; // the mission driving the route on the map, if any
+	
+	private static final EventLog log = new EventLog("MissionControlGUI");
 	
 	private GridControlCommunicator communicator = new GridControlCommunicator(this);
 	private OffScreenDrawing oSGrid = new OffScreenDrawing();
+	private Teleop teleop = new Teleop(communicator);
+	private OccupancyGrid occupancy = new OccupancyGrid(); // mapped from every message received
+	private SpatialIndex features = new SpatialIndex(); // every distinct point mapped
+	private WallExtractor walls = new WallExtractor(features); // segments fitted to the features
+	private float[] loadedMap; // walls from a saved map, localized against in place of those fitted
+	private ParticleFilter localizer; // made at the first Localize, then kept
+	private boolean isLocalizing = false; // Localize is selected
+	private static final int PARTICLES = 100000;
 	
 	/**
 	 * Launch the front-end Mission Control UI application.
@@ -63,7 +99,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 					MissionControlGUI frame = new MissionControlGUI();
 					frame.setVisible(true);
 				} catch (Exception e) {
-					e.printStackTrace();
+					log.error("Could not start Mission Control", e);
 				}
 			}
 		});
@@ -113,7 +149,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		centerPanel.add(oSGrid);	// adds offScreenDrawing to center of UI.
 		contentPane.add(centerPanel, BorderLayout.CENTER);
 		
-		// Creates the scrollable JTextArea, coordListTextArea, in the centerPanel's
+		// Creates the scrollable JList, coordList, in the centerPanel's
 		// EAST section to display the current robot position, heading, standard
 		// deviation, objects mapped via the map left right or explore buttons,
 		// and the get echo button.
@@ -128,6 +164,20 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		oSGrid.textX = this.xField;
 		oSGrid.textY = this.yField;
 		
+		// Walls go into the occupancy grid at full rate and are shown from it.
+		communicator.addTelemetrySink(occupancy);
+		oSGrid.setOccupancyGrid(occupancy);
+		
+		// Repeated wall points merge into one feature, listed once; clicking
+		// the map shows the nearest.
+		communicator.setFeatureIndex(features);
+		communicator.addTelemetrySink(features);
+		oSGrid.setSpatialIndex(features);
+		oSGrid.textStatus = this.statusField;
+		
+		// Walls can be shown, and exported, as segments fitted to the features.
+		communicator.addTelemetrySink(walls);
+		oSGrid.setWallExtractor(walls);
 	}
 	
 	/**
@@ -278,6 +328,58 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		echoButton = new JButton("Get echo");
 		echoButton.addActionListener(new EchoButtonActionListener());
 		messegeSendPanel.add(echoButton);
+		
+		// Drives the waypoints shift-clicked on the map as one mission.
+		JButton runRouteButton = new JButton("Run route");
+		runRouteButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				sendRoute();
+			}
+		});
+		messegeSendPanel.add(runRouteButton);
+		
+		JButton clearRouteButton = new JButton("Clear route");
+		clearRouteButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				routeMission = -1;
+				oSGrid.clearRoute();
+			}
+		});
+		messegeSendPanel.add(clearRouteButton);
+		
+		// Drives the robot with the arrow keys or WASD while selected.
+		final JToggleButton teleopButton = new JToggleButton("Teleop");
+		teleopButton.setToolTipText("Drive with the arrow keys or WASD; let go to stop");
+		teleopButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				if (teleopButton.isSelected()) {
+					if (!teleop.enable()) {
+						teleopButton.setSelected(false);
+						setMessage("Robot does not take DRIVE; teleop is off");
+					}
+				}
+				else {
+					teleop.disable();
+				}
+			}
+		});
+		messegeSendPanel.add(teleopButton);
+		
+		// Localizes the robot on the PC against the arena and the walls
+		// mapped so far, while selected.
+		final JToggleButton localizeButton = new JToggleButton("Localize");
+		localizeButton.setToolTipText("Particle filter over odometry and sonar; " + PARTICLES + " particles");
+		localizeButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				if (localizeButton.isSelected()) {
+					startLocalizing();
+				}
+				else {
+					stopLocalizing();
+				}
+			}
+		});
+		messegeSendPanel.add(localizeButton);
 	}
 	
 	/**
@@ -297,13 +399,75 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		statusField.setEditable(false);
 		statusField.setColumns(35);
 		statusPanel.add(statusField);
+		
+		// Records every message from the robot to missions/ while selected.
+		recordButton = new JToggleButton("Record");
+		recordButton.addActionListener(new RecordButtonActionListener());
+		statusPanel.add(recordButton);
+		
+		// Replays a recorded mission at the chosen speed; Seek jumps to a
+		// minute of the recording.
+		replaySpeedBox = new JComboBox<String>(new String[] { "1x", "4x", "16x", "max" });
+		replaySpeedBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				if (replay != null) {
+					replay.setSpeed(selectedReplaySpeed());
+				}
+			}
+		});
+		statusPanel.add(replaySpeedBox);
+		
+		replayButton = new JToggleButton("Replay");
+		replayButton.addActionListener(new ReplayButtonActionListener());
+		statusPanel.add(replayButton);
+		
+		seekField = new JTextField();
+		seekField.setColumns(4);
+		statusPanel.add(seekField);
+		
+		JButton seekButton = new JButton("Seek (min)");
+		seekButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				seekReplay();
+			}
+		});
+		statusPanel.add(seekButton);
+		
+		// Shows walls as fitted segments rather than points while selected.
+		final JToggleButton segmentsButton = new JToggleButton("Segments");
+		segmentsButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				oSGrid.setShowingSegments(segmentsButton.isSelected());
+			}
+		});
+		statusPanel.add(segmentsButton);
+		
+		JButton exportButton = new JButton("Export map");
+		exportButton.setToolTipText("Save the wall segments to maps/");
+		exportButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				exportMap();
+			}
+		});
+		statusPanel.add(exportButton);
+		
+		JButton loadMapButton = new JButton("Load map");
+		loadMapButton.setToolTipText("Localize against walls saved by Export map");
+		loadMapButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				loadMap();
+			}
+		});
+		statusPanel.add(loadMapButton);
 	}
 
 	/**
 	 * Creates a JPanel, eastPanel, with a BoxLayout to be added to the centerPanel.
-	 * Implements a JTextArea, coordListTextArea, to automatically scroll down and display
+	 * Implements a JList, coordList, to automatically scroll down and display
 	 * the robot's updated postion, standard deviation, and the coordinates of objects
 	 * mapped with any of the map butons or the get echo button.
+	 * The list keeps only the newest lines (coordlist.retention, default 2000)
+	 * and, having fixed-size rows, only lays out and paints the rows in view.
 	 */
 	private void createEastPanelAndComponents() {
 		JPanel eastPanel = new JPanel();
@@ -316,21 +480,29 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		lblStatusArea.setForeground(Color.white);
 		eastPanel.add(lblStatusArea);
 		
-		coordListTextArea = new JTextArea(15, 21);
-		coordListTextArea.setBackground(Color.black);
-		coordListTextArea.setForeground(Color.white);
-		coordListTextArea.setEditable(false);
+		coordList = new JList<String>(coordLog);
+		coordList.setBackground(Color.black);
+		coordList.setForeground(Color.white);
+		coordList.setPrototypeCellValue("x: -000.00000, y: -000.00000, h: -000.000");
+		coordList.setVisibleRowCount(15);
 		
 		scrollPane = new JScrollPane();
 		scrollPane.setBackground(Color.black);
 		scrollPane.setBorder(new EmptyBorder(10, 0, 50, 20));
 		scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
-		scrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {  
-	        public void adjustmentValueChanged(AdjustmentEvent event) {  
-	            event.getAdjustable().setValue(event.getAdjustable().getMaximum());  
-	        }
-	    });
-		scrollPane.setViewportView(coordListTextArea);
+		// Follows new lines only while the list is scrolled to the bottom, so
+		// the user can scroll back through the log without being pulled down.
+		coordLog.addListDataListener(new ListDataListener() {
+			public void intervalAdded(ListDataEvent event) {
+				followNewLines();
+			}
+			public void intervalRemoved(ListDataEvent event) {
+			}
+			public void contentsChanged(ListDataEvent event) {
+				followNewLines();
+			}
+		});
+		scrollPane.setViewportView(coordList);
 		eastPanel.add(scrollPane);
 	}
 	
@@ -349,6 +521,48 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		timerPanel.add(timerstatuslabel);
 		timerPanel.add(timerLabel);
 		
+		// Shows how many commands are waiting to be written to the robot.
+		queueLabel = new JLabel("queue: 0");
+		queueLabel.setForeground(Color.white);
+		timerPanel.add(queueLabel);
+		
+		// Asks the robot for poses at a chosen rate, and separately limits
+		// how often poses are drawn; recordings keep every pose received.
+		// Only robots that take SUBSCRIBE can be asked, so the first box is
+		// off unless the link agreed to it.
+		JLabel poseRateLabel = new JLabel("robot poses/s: ");
+		poseRateLabel.setForeground(Color.white);
+		timerPanel.add(poseRateLabel);
+		poseRateBox = new JComboBox<String>(new String[] { "robot", "2", "5", "10", "20", "50" });
+		poseRateBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				float rate = selectedRate(poseRateBox);
+				if (rate > 0) {
+					communicator.sendSubscribe(MessageType.POS_UPDATE, rate);
+				}
+				else {
+					// back to the robot's rate, all of it shown
+					communicator.sendSubscribe(MessageType.POS_UPDATE, GridControlCommunicator.ROBOT_RATE);
+					displayRateBox.setSelectedIndex(0);
+				}
+			}
+		});
+		timerPanel.add(poseRateBox);
+		updateRateControls();
+		
+		JLabel displayRateLabel = new JLabel("shown/s: ");
+		displayRateLabel.setForeground(Color.white);
+		timerPanel.add(displayRateLabel);
+		displayRateBox = new JComboBox<String>(new String[] { "all", "2", "5", "10", "20", "50" });
+		displayRateBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				float rate = selectedRate(displayRateBox);
+				communicator.setDisplayRate(MessageType.POS_UPDATE, rate);
+				communicator.setDisplayRate(MessageType.STD_DEV, rate);
+			}
+		});
+		timerPanel.add(displayRateBox);
+		
 		JPanel centernorthpanel = new JPanel();
 		centernorthpanel.setLayout(new BorderLayout());
 		
@@ -386,6 +600,9 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		        	 seconds++;
 		        	 String text = "" + minutes +":" + seconds;
 		        	 control.setTimerLabelText(text);
+		        	 control.updateQueueLabel();
+		        	 control.updateRateControls();
+		        	 control.updateReplayStatus();
 		         }
 		   }).start();
 		}
@@ -400,6 +617,43 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		timerLabel.setText(text);
 	}
 	
+	/**
+	 * Shows the outbound command queue depth, how many commands have been
+	 * dropped because it was full, how many await an answer from the robot,
+	 * and any inbound messages lost to a bad link. The tooltip adds command
+	 * latencies when the robot acknowledges commands.
+	 */
+	public void updateQueueLabel() {
+		long rejected = communicator.getRejectedCommandCount();
+		LinkStats link = communicator.getLinkStats();
+		InFlightCommands commands = communicator.getInFlightCommands();
+		long lost = link.getDroppedCount() + link.getCorruptCount() + link.getResyncCount();
+		queueLabel.setText("queue: " + communicator.getQueueDepth()
+				+ (rejected > 0 ? " (dropped " + rejected + ")" : "")
+				+ (commands.getInFlight() > 0 ? " in flight: " + commands.getInFlight() : "")
+				+ (lost > 0 ? " link errors: " + lost : ""));
+		queueLabel.setToolTipText("<html>Link " + link + "; " + communicator.getDecimatedCount()
+				+ " messages not shown<br>ACK " + commands.getRoundTrip()
+				+ "<br>DONE " + commands.getCompletion() + "<br>resent " + commands.getRetriedCount()
+				+ ", unanswered " + commands.getGivenUpCount() + ", abandoned "
+				+ commands.getAbortedCount() + "<br>DRIVE setpoints replaced "
+				+ communicator.getReplacedSetpointCount() + "</html>");
+	}
+	
+	/**
+	 * Lets the robot's pose rate be chosen only while the link agreed to
+	 * SUBSCRIBE; the shown rate is the PC's own and always works.
+	 */
+	public void updateRateControls() {
+		boolean isSubscribable = communicator.isConnected()
+				&& (communicator.getCapabilities() & GridControlCommunicator.CAPABILITY_SUBSCRIBE) != 0;
+		if (poseRateBox.isEnabled() != isSubscribable) {
+			poseRateBox.setEnabled(isSubscribable);
+			poseRateBox.setToolTipText(isSubscribable ? null
+					: "Robot does not take SUBSCRIBE; use shown/s to thin poses on the PC");
+		}
+	}
+	
 	/**
 	 * ActionListener that pairs the PC and NXT together.
 	 * @author Short
@@ -407,11 +661,41 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	private class ConnectButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
 			String name = nameField.getText();
-			System.out.println("* Trying to connect to " + name);
+			if (log.isEnabled(EventLog.Level.DEBUG)) {
+				log.debug("Trying to connect to " + name);
+			}
 			communicator.connect(name);
 		}
 	}
 	
+	/**
+	 * ActionListener that starts and stops recording the mission log.
+	 */
+	private class RecordButtonActionListener implements ActionListener {
+		public void actionPerformed(ActionEvent event) {
+			if (recordButton.isSelected()) {
+				startRecording();
+			}
+			else {
+				stopRecording();
+			}
+		}
+	}
+	
+	/**
+	 * ActionListener that starts and stops replaying a recorded mission.
+	 */
+	private class ReplayButtonActionListener implements ActionListener {
+		public void actionPerformed(ActionEvent event) {
+			if (replayButton.isSelected()) {
+				startReplay();
+			}
+			else if (replay != null) {
+				replay.stop();
+			}
+		}
+	}
+	
 	/**
 	 * ActionListener that disconnects the PC UI from the NXT.
 	 * @author Short
@@ -419,8 +703,11 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	private class DisconnectButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
 			String name = nameField.getText();
-			System.out.println("* Trying to disconnect to " + name);
+			if (log.isEnabled(EventLog.Level.DEBUG)) {
+				log.debug("Trying to disconnect to " + name);
+			}
 			communicator.sendDisconnect();
+			communicator.disconnect();
 		}
 	}
 	
@@ -430,7 +717,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class GoToButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Send button pressed.");
+			log.debug("Send button pressed.");
 			sendGoto();
 		}
 	}
@@ -441,7 +728,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class SetPoseButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Set pose button pressed.");
+			log.debug("Set pose button pressed.");
 			sendSetPose();
 		}
 	}
@@ -452,7 +739,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class EchoButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Echo button pressed.");
+			log.debug("Echo button pressed.");
 			sendEcho();
 		}
 	}
@@ -463,7 +750,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class GrabBombButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Grab bomb button pressed.");
+			log.debug("Grab bomb button pressed.");
 			sendGrabBomb();
 		}
 	}
@@ -474,7 +761,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class StopButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Stop button pressed.");
+			log.debug("Stop button pressed.");
 			sendStop();
 		}
 	}
@@ -485,7 +772,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class TravelButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Travel button pressed.");
+			log.debug("Travel button pressed.");
 			sendTravel();
 		}
 	}
@@ -496,7 +783,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class RotateButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Rotate button pressed.");
+			log.debug("Rotate button pressed.");
 			sendRotate();
 		}
 	}
@@ -507,7 +794,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class RotateToButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Rotate To button pressed.");
+			log.debug("Rotate To button pressed.");
 			sendRotateTo();
 		}
 	}
@@ -518,7 +805,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class FixButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Fix button pressed.");
+			log.debug("Fix button pressed.");
 			sendFix();
 		}
 	}
@@ -529,7 +816,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class MapLeftButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Map left button pressed.");
+			log.debug("Map left button pressed.");
 			sendMapLeft();
 		}
 	}
@@ -540,7 +827,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class MapRightButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Map right button pressed.");
+			log.debug("Map right button pressed.");
 			sendMapRight();
 		}
 	}
@@ -550,7 +837,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 */
 	private class MapExploreButtonActionListener implements ActionListener {
 		public void actionPerformed(ActionEvent event) {
-			System.out.println("Map explore button pressed.");
+			log.debug("Map explore button pressed.");
 			sendMapExplore();
 		}
 	}
@@ -565,7 +852,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		
 		try {
 			angle = Float.parseFloat(echoField.getText());
-			System.out.println(" get angle " + angle);
+			log.debug("get angle", angle);
 		} catch (Exception e) {
 			setMessage("Problem with Angle Field");
 			return;
@@ -591,7 +878,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 		try {
 			x = Float.parseFloat(xField.getText());
-			System.out.println(" get x " + x);
+			log.debug("get x", x);
 		} catch (Exception e) {
 			setMessage("Problem with X field");
 			return;
@@ -599,7 +886,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 		try {
 			y = Float.parseFloat(yField.getText());
-			System.out.println(" get y " + y);
+			log.debug("get y", y);
 		} catch (Exception e) {
 			setMessage("Problem  with Y field");
 			return;
@@ -609,6 +896,39 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		repaint();
 	}
 
+	/**
+	 * Sends the route shift-clicked on the map to the communicator as a
+	 * mission of GOTO steps.
+	 */
+	public void sendRoute() {
+		int length = oSGrid.getRouteLength();
+		if (length == 0) {
+			setMessage("Shift-click the map to add waypoints first");
+			return;
+		}
+		List<MissionStep> steps = new ArrayList<MissionStep>(length);
+		for (int i = 0; i < length; i++) {
+			steps.add(MissionStep.goTo(oSGrid.getRouteX(i), oSGrid.getRouteY(i)));
+		}
+		oSGrid.setRouteProgress(-1, 0);
+		routeMission = communicator.sendMission(steps);
+		if (routeMission < 0) {
+			setMessage("Robot takes no missions; route not sent");
+		}
+	}
+
+	/**
+	 * Shows a mission's progress on the route it was sent from.
+	 * @param mission - the id sendMission() returned
+	 * @param step - the index of the step
+	 * @param state - MissionStep.STARTED, FINISHED or ABORTED
+	 */
+	public void updateMissionProgress(int mission, int step, int state) {
+		if (mission == routeMission) {
+			oSGrid.setRouteProgress(step, state);
+		}
+	}
+
 	/**
 	 * Sends the pose to the communicator.
 	 * Sends the x and y coordinates and the heading.
@@ -620,7 +940,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		
 		try {
 			x = Float.parseFloat(xField2.getText());
-			System.out.println(" get x " + x);
+			log.debug("get x", x);
 		} catch (Exception e) {
 			setMessage("Problem with X field");
 			return;
@@ -628,7 +948,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 		try {
 			y = Float.parseFloat(yField2.getText());
-			System.out.println(" get y " + y);
+			log.debug("get y", y);
 		} catch (Exception e) {
 			setMessage("Problem  with Y field");
 			return;
@@ -636,7 +956,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		
 		try {
 			heading = Float.parseFloat(headingField.getText());
-			System.out.println(" get heading " + heading);
+			log.debug("get heading", heading);
 		} catch (Exception e) {
 			setMessage("Problem  with Heading field");
 			return;
@@ -671,7 +991,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 		try {
 			x = Float.parseFloat(xField.getText());
-			System.out.println(" get x " + x);
+			log.debug("get x", x);
 		} catch (Exception e) {
 			setMessage("Problem with X field");
 			return;
@@ -679,7 +999,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 		try {
 			y = Float.parseFloat(yField.getText());
-			System.out.println(" get y " + y);
+			log.debug("get y", y);
 		} catch (Exception e) {
 			setMessage("Problem  with Y field");
 			return;
@@ -698,7 +1018,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 		try {
 			x = Float.parseFloat(xField.getText());
-			System.out.println(" get x " + x);
+			log.debug("get x", x);
 		} catch (Exception e) {
 			setMessage("Problem with X field");
 			return;
@@ -706,7 +1026,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 
 		try {
 			y = Float.parseFloat(yField.getText());
-			System.out.println(" get y " + y);
+			log.debug("get y", y);
 		} catch (Exception e) {
 			setMessage("Problem  with Y field");
 			return;
@@ -722,7 +1042,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		float angle = 0;
 		try {
 			angle = Float.parseFloat(amountField.getText());
-			System.out.println(" get dist " + angle);
+			log.debug("get dist", angle);
 		}
 		catch (Exception e) {
 			setMessage("Problem with travel field");
@@ -740,7 +1060,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		float dist = 0;
 		try {
 			dist = Float.parseFloat(amountField.getText());
-			System.out.println(" get dist " + dist);
+			log.debug("get dist", dist);
 		}
 		catch (Exception e) {
 			setMessage("Problem with travel field");
@@ -757,7 +1077,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		float angle = 0;
 		try {
 			angle = Float.parseFloat(amountField.getText());
-			System.out.println(" get angle " + angle);
+			log.debug("get angle", angle);
 		}
 		catch (Exception e) {
 			setMessage("Problem with Angle Field");
@@ -774,7 +1094,7 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		float angle = 0;
 		try {
 			angle = Float.parseFloat(amountField.getText());
-			System.out.println(" get angle " + angle);
+			log.debug("get angle", angle);
 		}
 		catch (Exception e) {
 			setMessage("Problem with Angle Field");
@@ -783,6 +1103,247 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		repaint();
 	}
 	
+	/**
+	 * Starts recording every message the robot sends to a new mission log
+	 * in the missions directory.
+	 */
+	public void startRecording() {
+		if (replay != null && replay.isRunning()) {
+			setMessage("Stop the replay before recording");
+			recordButton.setSelected(false);
+			return;
+		}
+		String name = MissionRecorder.timestampName();
+		recorder = new MissionRecorder(new File("missions"), name);
+		try {
+			recorder.start();
+		} catch (IOException e) {
+			log.error("Could not start recording", e);
+			setMessage("Could not record: " + e.getMessage());
+			recorder = null;
+			recordButton.setSelected(false);
+			return;
+		}
+		communicator.addTelemetrySink(recorder);
+		setMessage("Recording " + name);
+	}
+	
+	/**
+	 * Stops recording and closes the mission log.
+	 */
+	public void stopRecording() {
+		if (recorder == null) {
+			return;
+		}
+		communicator.removeTelemetrySink(recorder);
+		recorder.stop();
+		setMessage("Recorded " + recorder.getRecordedCount() + " messages ("
+				+ recorder.getDroppedCount() + " dropped)");
+		recorder = null;
+	}
+	
+	/**
+	 * Asks for a recorded mission and replays it into the display.
+	 */
+	public void startReplay() {
+		if (communicator.isConnected()) {
+			setMessage("Disconnect from the robot before replaying");
+			replayButton.setSelected(false);
+			return;
+		}
+		if (recorder != null) {
+			// the replay would be written into the recording
+			setMessage("Stop recording before replaying");
+			replayButton.setSelected(false);
+			return;
+		}
+		JFileChooser chooser = new JFileChooser(new File("missions"));
+		chooser.setFileFilter(new FileNameExtensionFilter("Mission logs", "rlog"));
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			replayButton.setSelected(false);
+			return;
+		}
+		File file = chooser.getSelectedFile();
+		String name = MissionReplay.recordingName(file);
+		try {
+			replay = new MissionReplay(file.getParentFile(), name, communicator);
+		} catch (IOException e) {
+			log.error("Could not open " + file, e);
+			setMessage("Could not replay: " + e.getMessage());
+			replayButton.setSelected(false);
+			return;
+		}
+		replay.setSpeed(selectedReplaySpeed());
+		replay.start();
+		setMessage("Replaying " + name);
+	}
+	
+	/**
+	 * Saves the walls mapped so far as a vector map in the maps directory.
+	 */
+	public void exportMap() {
+		walls.refit();
+		File directory = new File("maps");
+		File file = new File(directory, MissionRecorder.timestampName() + WallExtractor.EXTENSION);
+		OutputStream out = null;
+		try {
+			directory.mkdirs();
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			int count = walls.writeMap(out);
+			setMessage("Exported " + count + " walls to " + file + " (" + file.length() + " bytes)");
+		} catch (IOException e) {
+			log.error("Could not export " + file, e);
+			setMessage("Could not export map: " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					log.warn("Close failed", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Asks for a map saved by exportMap() and localizes against its walls
+	 * from then on, instead of those fitted in this session.
+	 */
+	public void loadMap() {
+		JFileChooser chooser = new JFileChooser(new File("maps"));
+		chooser.setFileFilter(new FileNameExtensionFilter("Wall maps", WallExtractor.EXTENSION.substring(1)));
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		File file = chooser.getSelectedFile();
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			loadedMap = WallExtractor.readMap(in);
+		} catch (IOException e) {
+			log.error("Could not load " + file, e);
+			setMessage("Could not load map: " + e.getMessage());
+			return;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					log.warn("Close failed", e);
+				}
+			}
+		}
+		if (isLocalizing) {
+			localizer.setMap(localizationMap());
+		}
+		setMessage("Loaded " + loadedMap.length / 4 + " walls from " + file.getName());
+	}
+	
+	/**
+	 * @return the arena's walls, then those of the loaded map, or if none was
+	 * loaded those fitted so far
+	 */
+	private float[] localizationMap() {
+		float[] arena = ParticleFilter.arenaWalls();
+		float[] mapped = loadedMap;
+		if (mapped == null) {
+			walls.refit();
+			mapped = walls.joinedSegments();
+		}
+		float[] map = new float[arena.length + mapped.length];
+		System.arraycopy(arena, 0, map, 0, arena.length);
+		System.arraycopy(mapped, 0, map, arena.length, mapped.length);
+		return map;
+	}
+	
+	/**
+	 * Starts a particle filter on the robot's odometry and sonar, weighing
+	 * echoes against the arena's walls and those of the loaded map, or any
+	 * fitted so far, and shows its cloud on the map.
+	 */
+	public void startLocalizing() {
+		if (isLocalizing) {
+			return;
+		}
+		float[] map = localizationMap();
+		if (localizer == null) {
+			localizer = new ParticleFilter(PARTICLES);
+		}
+		localizer.setMap(map);
+		localizer.start();
+		isLocalizing = true;
+		communicator.addTelemetrySink(localizer);
+		oSGrid.setParticleFilter(localizer);
+		setMessage("Localizing against " + map.length / 4 + " walls");
+	}
+	
+	/**
+	 * Stops the particle filter and takes its cloud off the map.
+	 */
+	public void stopLocalizing() {
+		if (!isLocalizing) {
+			return;
+		}
+		isLocalizing = false;
+		communicator.removeTelemetrySink(localizer);
+		localizer.stop();
+		oSGrid.setParticleFilter(null);
+		setMessage("Localized over " + localizer.getUpdateCount() + " updates ("
+				+ localizer.getDroppedCount() + " messages dropped)");
+	}
+	
+	/**
+	 * Jumps the replay to the minute typed in the seek field.
+	 */
+	public void seekReplay() {
+		if (replay == null) {
+			return;
+		}
+		try {
+			float minutes = Float.parseFloat(seekField.getText());
+			replay.seek((long) (minutes * 60e9));
+		} catch (Exception e) {
+			setMessage("Problem with Seek field");
+		}
+	}
+	
+	/**
+	 * Reports the replay's throughput once it reaches the end or is stopped.
+	 */
+	public void updateReplayStatus() {
+		if (replay == null || replay.isRunning()) {
+			return;
+		}
+		setMessage(String.format("Replayed %d messages, %.0f per second",
+				replay.getPlayedCount(), replay.getMessagesPerSecond()));
+		replay = null;
+		replayButton.setSelected(false);
+	}
+	
+	private float selectedReplaySpeed() {
+		switch (replaySpeedBox.getSelectedIndex()) {
+		case 1:
+			return 4;
+		case 2:
+			return 16;
+		case 3:
+			return MissionReplay.MAX_SPEED;
+		default:
+			return 1;
+		}
+	}
+	
+	/**
+	 * @return the messages per second chosen in a rate box; 0 for its first
+	 * entry, the rate the robot or display would have without one
+	 */
+	private float selectedRate(JComboBox<String> box) {
+		if (box.getSelectedIndex() <= 0) {
+			return 0;
+		}
+		return Float.parseFloat((String) box.getSelectedItem());
+	}
+	
 	public void setInfo(String message) {
 		statusField.setText(message);
 	}
@@ -794,6 +1355,20 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		statusField.setText(message);
 	}
 	
+	/**
+	 * Starts a burst of drawing; the map repaints once at endDrawing().
+	 */
+	public void beginDrawing() {
+		oSGrid.beginUpdate();
+	}
+	
+	/**
+	 * Ends a burst of drawing started by beginDrawing() and repaints the map.
+	 */
+	public void endDrawing() {
+		oSGrid.endUpdate();
+	}
+	
 	/**
 	 * Calls offScreenDrawing draw robot path 
 	 */
@@ -818,6 +1393,17 @@ public class MissionControlGUI extends JFrame implements CommListener {
 		oSGrid.drawWall(x, y, color);
 	}
 	
+	/**
+	 * Method to call offScreenDrawing and draw a whole scan sweep at once.
+	 * @param points - x, y pairs
+	 * @param offset - where the first x is in points
+	 * @param count - the number of pairs
+	 * @param color - the color to draw the walls
+	 */
+	public void drawScan(float[] points, int offset, int count, Color color) {
+		oSGrid.drawScan(points, offset, count, color);
+	}
+	
 	/**
 	 * Method to call offScreenDrawing and draw the standard deviation.
 	 * @param x - the current x coordinate of the pose
@@ -844,7 +1430,37 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 * @param message
 	 */
 	public void updateCoordList(String message) {
-		coordListTextArea.append(message + "\n");
+		coordLog.append(message);
+	}
+	
+	/**
+	 * Adds a telemetry record to the coordinate list without building its
+	 * text; the list formats it only if it is shown.
+	 * @param kind - CoordinateLogModel.POSITION, CRASH, MAPPING or STD_DEV
+	 * @param a - x, or the standard deviation of x
+	 * @param b - y, or the standard deviation of y
+	 * @param c - the heading, or its standard deviation
+	 */
+	public void updateCoordList(int kind, float a, float b, float c) {
+		coordLog.append(kind, a, b, c);
+	}
+	
+	/**
+	 * Scrolls the coordinate list to its last line if it was already at the bottom.
+	 */
+	private void followNewLines() {
+		JScrollBar bar = scrollPane.getVerticalScrollBar();
+		if (bar.getValue() + bar.getVisibleAmount() < bar.getMaximum() - coordList.getFixedCellHeight()) {
+			return;
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				int last = coordLog.getSize() - 1;
+				if (last >= 0) {
+					coordList.ensureIndexIsVisible(last);
+				}
+			}
+		});
 	}
 	
 	/**
@@ -853,8 +1469,16 @@ public class MissionControlGUI extends JFrame implements CommListener {
 	 * @param y - y pose to update
 	 */
 	public void updateXAndYDataFields(float x, float y) {
-		xField.setText(Float.toString(x));
-		yField.setText(Float.toString(y));
+		if (x != shownX || xText == null) {
+			shownX = x;
+			xText = Float.toString(x);
+		}
+		if (y != shownY || yText == null) {
+			shownY = y;
+			yText = Float.toString(y);
+		}
+		xField.setText(xText);
+		yField.setText(yText);
 	}
 	
 }
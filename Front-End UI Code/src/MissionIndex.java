@@ -0,0 +1,215 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sparse time index over a mission log, kept next to the segments as
+ * name.ridx. Every INTERVAL of recording time it notes where the next record
+ * starts, so a replay can jump to any time by a binary search and a read of
+ * at most one interval of records, however long the log is.
+ *
+ * The file is a header:
+ * 	int   MAGIC ("RIDX")
+ * 	short VERSION
+ * 	short reserved, 0
+ * followed by entries:
+ * 	long  nanoseconds since the recording started
+ * 	int   segment number
+ * 	int   byte offset of the record within that segment
+ * MissionRecorder writes the index as it records; build() recreates it from
+ * the segments if it is missing.
+ * @author Corey Short
+ */
+public class MissionIndex {
+
+	public static final int MAGIC = 0x52494458; // "RIDX"
+	public static final short VERSION = 1;
+	public static final String EXTENSION = ".ridx";
+	public static final long INTERVAL = 1000000000L; // one entry per second of recording
+
+	private static final EventLog log = new EventLog("MissionIndex");
+	private static final int HEADER_SIZE = 8;
+	private static final int ENTRY_SIZE = 16;
+
+	private final long[] times;
+	private final int[] segments;
+	private final int[] offsets;
+
+	private MissionIndex(long[] times, int[] segments, int[] offsets) {
+		this.times = times;
+		this.segments = segments;
+		this.offsets = offsets;
+	}
+
+	public static File indexFile(File directory, String name) {
+		return new File(directory, name + EXTENSION);
+	}
+
+	/**
+	 * Loads the index of a recording, building it first if it does not exist.
+	 */
+	public static MissionIndex open(File directory, String name) throws IOException {
+		File file = indexFile(directory, name);
+		if (!file.exists()) {
+			log.info("No index for " + name + "; building one");
+			build(directory, name);
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+				throw new IOException(file + " is not a version " + VERSION + " mission index");
+			}
+			in.readShort();
+			int count = (int) ((in.length() - HEADER_SIZE) / ENTRY_SIZE);
+			ByteBuffer entries = ByteBuffer.allocate(count * ENTRY_SIZE);
+			in.getChannel().read(entries, HEADER_SIZE);
+			entries.flip();
+			long[] times = new long[count];
+			int[] segments = new int[count];
+			int[] offsets = new int[count];
+			for (int i = 0; i < count; i++) {
+				times[i] = entries.getLong();
+				segments[i] = entries.getInt();
+				offsets[i] = entries.getInt();
+			}
+			return new MissionIndex(times, segments, offsets);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Scans every segment of a recording once and writes its index.
+	 */
+	public static void build(File directory, String name) throws IOException {
+		Writer writer = new Writer(indexFile(directory, name));
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (int segment = 0; ; segment++) {
+				File file = MissionRecorder.segmentFile(directory, name, segment);
+				if (!file.exists()) {
+					break;
+				}
+				FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+				try {
+					long position = MissionRecorder.HEADER_SIZE;
+					buffer.clear();
+					channel.position(position);
+					boolean isEnd = false;
+					while (!isEnd) {
+						isEnd = channel.read(buffer) < 0;
+						buffer.flip();
+						while (buffer.remaining() >= 10) {
+							int start = buffer.position();
+							long time = buffer.getLong();
+							buffer.get();
+							int floats = buffer.get() & 0xff;
+							if (buffer.remaining() < 4 * floats) {
+								buffer.position(start);
+								break;
+							}
+							buffer.position(buffer.position() + 4 * floats);
+							writer.note(time, segment, position + start);
+						}
+						position += buffer.position();
+						buffer.compact();
+					}
+				}
+				finally {
+					channel.close();
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the number of entries in the index
+	 */
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * Finds the last indexed record at or before a time.
+	 * @param timeNanos - nanoseconds since the recording started
+	 * @return the entry number, or -1 if the time is before the first entry
+	 */
+	public int find(long timeNanos) {
+		int i = Arrays.binarySearch(times, timeNanos);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	public long getTime(int entry) {
+		return times[entry];
+	}
+
+	public int getSegment(int entry) {
+		return segments[entry];
+	}
+
+	public int getOffset(int entry) {
+		return offsets[entry];
+	}
+
+	/**
+	 * @return the time of the last indexed record; roughly the log's length
+	 */
+	public long getEndTime() {
+		return times.length == 0 ? 0 : times[times.length - 1];
+	}
+
+	/**
+	 * Appends entries to an index file as a log is written.
+	 */
+	public static class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+		private long nextTime = 0;
+
+		public Writer(File file) throws IOException {
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putShort(VERSION);
+			header.putShort((short) 0);
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+		}
+
+		/**
+		 * Called for every record written; adds an entry once an INTERVAL has
+		 * passed since the last one.
+		 * @param timeNanos - the record's time since the recording started
+		 * @param segment - the segment the record is in
+		 * @param offset - the record's byte offset within the segment
+		 */
+		public void note(long timeNanos, int segment, long offset) throws IOException {
+			if (timeNanos < nextTime) {
+				return;
+			}
+			nextTime = timeNanos + INTERVAL;
+			entry.clear();
+			entry.putLong(timeNanos);
+			entry.putInt(segment);
+			entry.putInt((int) offset);
+			entry.flip();
+			while (entry.hasRemaining()) {
+				channel.write(entry);
+			}
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
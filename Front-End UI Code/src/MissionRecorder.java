@@ -0,0 +1,248 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every message the Reader decodes to a compact binary mission log.
+ * The Reader only copies each message into a lock-free TelemetryRing; a
+ * recorder thread drains the ring through a buffer into a FileChannel, so
+ * disk writes never hold up the Reader. If the recorder ever falls a whole
+ * ring behind, messages are dropped and counted rather than blocking.
+ *
+ * A log is a run of segment files, name-0000.rlog, name-0001.rlog, ...,
+ * starting a new segment once one reaches the segment size. Each segment
+ * begins with a header:
+ * 	int   MAGIC ("RLOG")
+ * 	short VERSION
+ * 	short reserved, 0
+ * 	long  wall clock time the recording started, ms since the epoch
+ * 	int   segment number
+ * followed by records:
+ * 	long  nanoseconds since the recording started (monotonic)
+ * 	byte  MessageType ordinal
+ * 	byte  number of floats, unsigned
+ * 	float payload, in wire order
+ * All values are big-endian, like the robot protocol. A MissionIndex is
+ * written alongside so a MissionReplay can seek without scanning.
+ * @author Corey Short
+ */
+public class MissionRecorder implements TelemetrySink, Runnable {
+
+	public static final int MAGIC = 0x524C4F47; // "RLOG"
+	public static final short VERSION = 1;
+	public static final int HEADER_SIZE = 20;
+	public static final String EXTENSION = ".rlog";
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private static final EventLog log = new EventLog("MissionRecorder");
+	private static final int RING_CAPACITY = 65536;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_RECORD = 8 + 2 + 4 * TelemetryRing.MAX_FLOATS;
+
+	private final File directory;
+	private final String name;
+	private final long segmentSize;
+	private final TelemetryRing ring = new TelemetryRing(RING_CAPACITY);
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final long startNanos = System.nanoTime();
+	private final long startMillis = System.currentTimeMillis();
+	private FileChannel channel;
+	private MissionIndex.Writer index;
+	private long segmentBytes;
+	private int segment = -1;
+	private Thread thread;
+	private volatile boolean isRunning = false;
+	private volatile long dropped = 0; // written by the producer only
+	private volatile long recorded = 0; // written by the recorder thread only
+
+	/**
+	 * @param directory - where the segment files go; created if missing
+	 * @param name - the segment file prefix
+	 */
+	public MissionRecorder(File directory, String name) {
+		this(directory, name, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory - where the segment files go; created if missing
+	 * @param name - the segment file prefix
+	 * @param segmentSize - bytes after which a new segment file is started
+	 */
+	public MissionRecorder(File directory, String name, long segmentSize) {
+		this.directory = directory;
+		this.name = name;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return a recording name made from the current date and time
+	 */
+	public static String timestampName() {
+		return "mission-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+	}
+
+	/**
+	 * @return the file for a given segment of a recording
+	 */
+	public static File segmentFile(File directory, String name, int segment) {
+		return new File(directory, name + "-" + String.format("%04d", segment) + EXTENSION);
+	}
+
+	/**
+	 * Opens the first segment and starts the recorder thread.
+	 */
+	public void start() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		index = new MissionIndex.Writer(MissionIndex.indexFile(directory, name));
+		nextSegment();
+		isRunning = true;
+		thread = new Thread(this, "MissionRecorder");
+		thread.setDaemon(true);
+		thread.start();
+		log.info("Recording to " + segmentFile(directory, name, 0));
+	}
+
+	/**
+	 * Writes out everything still queued and closes the log.
+	 */
+	public void stop() {
+		isRunning = false;
+		if (thread != null) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Queues a message for recording; called from the Reader thread and never
+	 * blocks.
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		if (!ring.offer(timeNanos, type, values, count)) {
+			dropped++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of messages dropped because the recorder fell behind
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of messages written to the log
+	 */
+	public long getRecordedCount() {
+		return recorded;
+	}
+
+	public void run() {
+		TelemetrySink writer = new TelemetrySink() {
+			public boolean accept(long timeNanos, int type, float[] values, int count) {
+				try {
+					write(timeNanos, type, values, count);
+				}
+				catch (IOException e) {
+					log.error("Recording failed", e);
+					isRunning = false;
+				}
+				return true;
+			}
+		};
+		try {
+			while (isRunning) {
+				if (ring.drain(writer, RING_CAPACITY) == 0) {
+					flushBuffer();
+					LockSupport.parkNanos(1000000L);
+				}
+			}
+			ring.drain(writer, RING_CAPACITY);
+			flushBuffer();
+		}
+		catch (IOException e) {
+			log.error("Recording failed", e);
+		}
+		finally {
+			closeSegment();
+			try {
+				index.close();
+			}
+			catch (IOException e) {
+				log.warn("Close failed", e);
+			}
+		}
+	}
+
+	private void write(long timeNanos, int type, float[] values, int count) throws IOException {
+		if (buffer.remaining() < MAX_RECORD) {
+			flushBuffer();
+		}
+		int floats = Math.min(count, TelemetryRing.MAX_FLOATS);
+		int size = 8 + 2 + 4 * floats;
+		if (segmentBytes + buffer.position() + size > segmentSize) {
+			flushBuffer();
+			nextSegment();
+		}
+		index.note(timeNanos - startNanos, segment, segmentBytes + buffer.position());
+		buffer.putLong(timeNanos - startNanos);
+		buffer.put((byte) type);
+		buffer.put((byte) floats);
+		for (int i = 0; i < floats; i++) {
+			buffer.putFloat(values[i]);
+		}
+		recorded++;
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			segmentBytes += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void nextSegment() throws IOException {
+		closeSegment();
+		segment++;
+		channel = new RandomAccessFile(segmentFile(directory, name, segment), "rw").getChannel();
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putShort((short) 0);
+		header.putLong(startMillis);
+		header.putInt(segment);
+		header.flip();
+		segmentBytes = 0;
+		while (header.hasRemaining()) {
+			segmentBytes += channel.write(header);
+		}
+	}
+
+	private void closeSegment() {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				log.warn("Close failed", e);
+			}
+			channel = null;
+		}
+	}
+}
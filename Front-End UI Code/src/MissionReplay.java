@@ -0,0 +1,275 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recorded mission log back into a TelemetrySink, normally the same
+ * sinks the Reader feeds, so the GUI redraws the mission without a robot.
+ * Playback runs in real time, at a speed multiplier, or as fast as the sink
+ * will take messages (MAX_SPEED), which doubles as a throughput benchmark for
+ * the dispatch and drawing path. seek() uses the log's MissionIndex, so
+ * jumping anywhere only reads the records of one index interval.
+ * @author Corey Short
+ */
+public class MissionReplay implements Runnable {
+
+	/**
+	 * Speed for replaying as fast as the sink accepts messages.
+	 */
+	public static final float MAX_SPEED = Float.POSITIVE_INFINITY;
+
+	private static final EventLog log = new EventLog("MissionReplay");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int RECORD_HEADER = 10; // time, type, float count
+
+	private final File directory;
+	private final String name;
+	private final TelemetrySink sink;
+	private final MissionIndex index;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final float[] values = new float[TelemetryRing.MAX_FLOATS];
+	private FileChannel channel;
+	private int segment;
+	private Thread thread;
+	private volatile boolean isRunning = false;
+	private volatile float speed = 1;
+	private volatile long seekTarget = -1;
+	private volatile long position = 0; // log time of the last message played
+	private volatile long played = 0;
+	private volatile long elapsedNanos = 0;
+
+	/**
+	 * Opens a recording, building its index if it has none.
+	 * @param directory - where the recording's files are
+	 * @param name - the recording name, without the segment number
+	 * @param sink - receives each message in order
+	 */
+	public MissionReplay(File directory, String name, TelemetrySink sink) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		this.sink = sink;
+		this.index = MissionIndex.open(directory, name);
+	}
+
+	/**
+	 * @return the recording name a segment file belongs to, e.g.
+	 * "mission-20140525-101500" for "mission-20140525-101500-0003.rlog"
+	 */
+	public static String recordingName(File segmentFile) {
+		String file = segmentFile.getName();
+		int dash = file.lastIndexOf('-');
+		return dash < 0 ? file : file.substring(0, dash);
+	}
+
+	/**
+	 * @param multiplier - 1 for real time, 2 for twice as fast, MAX_SPEED for
+	 * as fast as possible
+	 */
+	public void setSpeed(float multiplier) {
+		speed = multiplier;
+	}
+
+	/**
+	 * Jumps to a time in the recording; takes effect before the next message.
+	 * @param timeNanos - nanoseconds since the recording started
+	 */
+	public void seek(long timeNanos) {
+		seekTarget = Math.max(0, timeNanos);
+	}
+
+	/**
+	 * @return the log time, in nanoseconds, of the last message played
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return roughly how long the recording is, in nanoseconds
+	 */
+	public long getLength() {
+		return index.getEndTime();
+	}
+
+	public long getPlayedCount() {
+		return played;
+	}
+
+	/**
+	 * @return messages played per second of wall time since start()
+	 */
+	public double getMessagesPerSecond() {
+		return elapsedNanos == 0 ? 0 : played * 1e9 / elapsedNanos;
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	public void start() {
+		isRunning = true;
+		thread = new Thread(this, "MissionReplay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		isRunning = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Blocks until playback reaches the end or is stopped.
+	 */
+	public void join() throws InterruptedException {
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	public void run() {
+		long start = System.nanoTime();
+		try {
+			openAt(seekTarget < 0 ? 0 : seekTarget);
+			seekTarget = -1;
+			long wallBase = System.nanoTime();
+			long logBase = -1;
+			float baseSpeed = speed;
+			while (isRunning) {
+				long target = seekTarget;
+				if (target >= 0) {
+					seekTarget = -1;
+					openAt(target);
+					logBase = -1;
+				}
+				if (!nextRecord()) {
+					break;
+				}
+				long time = buffer.getLong();
+				int type = buffer.get();
+				int count = buffer.get() & 0xff;
+				for (int i = 0; i < count; i++) {
+					values[i] = buffer.getFloat();
+				}
+				if (speed != baseSpeed || logBase < 0) {
+					baseSpeed = speed;
+					logBase = time;
+					wallBase = System.nanoTime();
+				}
+				if (!Float.isInfinite(baseSpeed)) {
+					long due = wallBase + (long) ((time - logBase) / baseSpeed);
+					long wait;
+					while (isRunning && seekTarget < 0 && (wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					if (seekTarget >= 0) {
+						continue; // skip this message; it is before or after the new position
+					}
+				}
+				boolean isAccepted = false;
+				while (isRunning && !(isAccepted = sink.accept(System.nanoTime(), type, values, count))) {
+					LockSupport.parkNanos(100000L); // sink is full; let it catch up
+				}
+				if (!isAccepted) {
+					break; // stopped first; the message was never played
+				}
+				position = time;
+				played++;
+			}
+		}
+		catch (IOException e) {
+			log.error("Replay failed", e);
+		}
+		finally {
+			elapsedNanos = System.nanoTime() - start;
+			isRunning = false;
+			close();
+			log.info("Replay finished");
+		}
+	}
+
+	/**
+	 * Positions the reader at the first record at or after a time: jumps to
+	 * the index entry before it, then skips the few records in between.
+	 */
+	private void openAt(long timeNanos) throws IOException {
+		int entry = Math.max(0, index.find(timeNanos));
+		if (index.size() == 0) {
+			openSegment(0, MissionRecorder.HEADER_SIZE);
+			return;
+		}
+		openSegment(index.getSegment(entry), index.getOffset(entry));
+		while (nextRecord()) {
+			int start = buffer.position();
+			long time = buffer.getLong();
+			if (time >= timeNanos) {
+				buffer.position(start);
+				return;
+			}
+			buffer.get();
+			int count = buffer.get() & 0xff;
+			buffer.position(buffer.position() + 4 * count);
+		}
+	}
+
+	/**
+	 * Makes sure a whole record is in the buffer, reading more of the current
+	 * segment or moving to the next one as needed.
+	 * @return false at the end of the recording
+	 */
+	private boolean nextRecord() throws IOException {
+		while (true) {
+			if (buffer.remaining() >= RECORD_HEADER) {
+				int count = buffer.get(buffer.position() + 9) & 0xff;
+				if (buffer.remaining() >= RECORD_HEADER + 4 * count) {
+					return true;
+				}
+			}
+			buffer.compact();
+			int read = channel.read(buffer);
+			buffer.flip();
+			if (read < 0) {
+				File next = MissionRecorder.segmentFile(directory, name, segment + 1);
+				if (!next.exists()) {
+					return false;
+				}
+				openSegment(segment + 1, MissionRecorder.HEADER_SIZE);
+			}
+		}
+	}
+
+	private void openSegment(int number, long offset) throws IOException {
+		close();
+		segment = number;
+		channel = new RandomAccessFile(MissionRecorder.segmentFile(directory, name, number), "r")
+				.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(MissionRecorder.HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < MissionRecorder.HEADER_SIZE || header.getInt() != MissionRecorder.MAGIC
+				|| header.getShort() != MissionRecorder.VERSION) {
+			throw new IOException("Segment " + number + " of " + name
+					+ " is not a version " + MissionRecorder.VERSION + " mission log");
+		}
+		channel.position(offset);
+		buffer.clear();
+		buffer.flip();
+	}
+
+	private void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				log.warn("Close failed", e);
+			}
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * One step of a mission uploaded with GridControlCommunicator.sendMission():
+ * a GOTO, ROTATE, TRAVEL or EXPLORE with the same arguments the single
+ * command takes. The robot runs the steps in order, starting each as soon
+ * as the last one finishes, and reports each start and finish in a
+ * MISSION_PROGRESS message.
+ *
+ * A MISSION command is a float mission id, a float step count, then three
+ * floats per step: the step's MessageType ordinal and up to two arguments,
+ * unused ones sent as 0.
+ * 	MISSION_PROGRESS  float mission id, float step index, float state
+ * @author Corey Short
+ */
+public class MissionStep {
+
+	/**
+	 * HELLO capability bit for MISSION and MISSION_PROGRESS.
+	 */
+	public static final int CAPABILITY_MISSION = 8;
+
+	/**
+	 * Most steps in one mission; a framed MISSION then stays well under
+	 * WireFrame.MAX_PAYLOAD.
+	 */
+	public static final int MAX_STEPS = 64;
+
+	/**
+	 * Floats each step takes in a MISSION.
+	 */
+	public static final int FLOATS = 3;
+
+	/**
+	 * MISSION_PROGRESS states.
+	 */
+	public static final int STARTED = 0;
+	public static final int FINISHED = 1;
+	public static final int ABORTED = 2; // by a STOP or a new mission; later steps do not run
+
+	private final MessageType type;
+	private final float a;
+	private final float b;
+
+	private MissionStep(MessageType type, float a, float b) {
+		this.type = type;
+		this.a = a;
+		this.b = b;
+	}
+
+	/**
+	 * @param x - the x coordinate to travel to
+	 * @param y - the y coordinate to travel to
+	 */
+	public static MissionStep goTo(float x, float y) {
+		return new MissionStep(MessageType.GOTO, x, y);
+	}
+
+	/**
+	 * @param angle - amount to rotate by
+	 */
+	public static MissionStep rotate(float angle) {
+		return new MissionStep(MessageType.ROTATE, angle, 0);
+	}
+
+	/**
+	 * @param distance - distance to travel
+	 */
+	public static MissionStep travel(float distance) {
+		return new MissionStep(MessageType.TRAVEL, distance, 0);
+	}
+
+	/**
+	 * @param angle - the angle to rotate the robot head to
+	 */
+	public static MissionStep explore(float angle) {
+		return new MissionStep(MessageType.EXPLORE, angle, 0);
+	}
+
+	public MessageType getType() {
+		return type;
+	}
+
+	/**
+	 * Writes the step's three floats.
+	 * @param into - the payload being built
+	 * @param offset - where the step starts in it
+	 */
+	void write(float[] into, int offset) {
+		into[offset] = type.ordinal();
+		into[offset + 1] = a;
+		into[offset + 2] = b;
+	}
+
+	public String toString() {
+		return type == MessageType.GOTO ? type + " " + a + ", " + b : type + " " + a;
+	}
+}
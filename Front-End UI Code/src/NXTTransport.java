@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import lejos.pc.comm.NXTCommFactory;
+import lejos.pc.comm.NXTConnector;
+
+/**
+ * Transport to the NXT brick over Bluetooth using the lejos NXTConnector.
+ * @author Corey Short
+ */
+public class NXTTransport implements Transport {
+	private static final EventLog log = new EventLog("NXTTransport");
+
+	private NXTConnector connector = new NXTConnector(); // connects to NXT using bluetooth
+
+	/**
+	 * Connects to the named NXT over Bluetooth.
+	 * @param robotName - our robot's name is t: short for Terminator
+	 */
+	public boolean open(String robotName) {
+		close();
+		return connector.connectTo(robotName, "", NXTCommFactory.BLUETOOTH);
+	}
+
+	public InputStream getInputStream() {
+		return connector.getInputStream();
+	}
+
+	public OutputStream getOutputStream() {
+		return connector.getOutputStream();
+	}
+
+	public void close() {
+		try {
+			connector.close();
+		}
+		catch (Exception e) {
+			log.warn("Close failed", e);
+		}
+	}
+}
@@ -0,0 +1,330 @@
+import java.awt.Rectangle;
+
+/**
+ * What the robot has found out about the arena, one cell per square
+ * centimetre over the area OffScreenDrawing.drawGrid() draws: x from XMIN to
+ * XMAX, y from YMIN to YMAX. Each cell holds the log-odds that it is
+ * occupied, 0 while unknown; every wall point the robot reports adds HIT to
+ * its cell and a crash adds CRASH_HIT, clamped to LIMIT either way so a
+ * cell can change its mind. Cells are a flat float array, with a byte array
+ * beside it saying which MessageType last hit each one, so an update is a
+ * few array writes and the grid is about 1.2 MB however much is mapped.
+ *
+ * A wall point is a sonar echo, so everything between the robot and it was
+ * seen to be empty. Once a pose has arrived, each point is traced as a ray
+ * from the latest pose: the cells it crosses get MISS, short of the cell
+ * that echoed. The sensor hears echoes from anywhere in a cone of
+ * BEAM_HALF_ANGLE either side of where it points, so the free space is
+ * a fan of rays across the cone out to the echo's range, one every
+ * RAY_SPACING cm at the far end. A cell crossed by several rays of the same
+ * echo counts once. Rays are walked cell by cell with integer Bresenham
+ * steps, and nothing is allocated.
+ *
+ * As a TelemetrySink the grid sees every message, on the Reader thread,
+ * whatever the display rate. It keeps the rectangle of cells changed since
+ * takeDirty() was last called, so a renderer only redraws what changed.
+ * Reads from other threads may see a cell a message out of date, which is
+ * harmless for drawing and planning.
+ * @author Corey Short
+ */
+public class OccupancyGrid implements TelemetrySink {
+
+	public static final int XMIN = -292;
+	public static final int XMAX = 278;
+	public static final int YMIN = 0;
+	public static final int YMAX = 238;
+	public static final int COLUMNS = XMAX - XMIN + 1;
+	public static final int ROWS = YMAX - YMIN + 1;
+
+	/**
+	 * Log-odds added for a wall point, ln(0.7 / 0.3).
+	 */
+	public static final float HIT = 0.85f;
+
+	/**
+	 * Log-odds added for a crash, which is surer than a sonar echo.
+	 */
+	public static final float CRASH_HIT = 3f;
+
+	/**
+	 * Log-odds added for a cell seen to be free, ln(0.4 / 0.6).
+	 */
+	public static final float MISS = -0.4f;
+
+	/**
+	 * Log-odds are clamped to plus or minus this; about 99.3%.
+	 */
+	public static final float LIMIT = 5f;
+
+	/**
+	 * Half the width of the ultrasonic sensor's beam, in degrees.
+	 */
+	public static final float BEAM_HALF_ANGLE = 15f;
+
+	/**
+	 * Greatest gap, in cm, between neighbouring rays of a cone at its far end.
+	 */
+	public static final float RAY_SPACING = 2f;
+	private static final int MAX_CONE_RAYS = 31;
+	private static final double CONE_TAN = Math.tan(Math.toRadians(BEAM_HALF_ANGLE));
+
+	private final float[] logOdds = new float[COLUMNS * ROWS];
+	private final byte[] sources = new byte[COLUMNS * ROWS]; // MessageType ordinal of the last hit
+	private final int[] stamps = new int[COLUMNS * ROWS]; // the echo that last freed each cell
+	private int stamp = 0;
+
+	// the latest pose; Reader thread only
+	private float poseX;
+	private float poseY;
+	private boolean hasPose = false;
+
+	private final Object dirtyLock = new Object();
+	private int dirtyMinColumn = Integer.MAX_VALUE; // empty while min > max
+	private int dirtyMaxColumn = Integer.MIN_VALUE;
+	private int dirtyMinRow = Integer.MAX_VALUE;
+	private int dirtyMaxRow = Integer.MIN_VALUE;
+
+	/**
+	 * @return the cell holding a point, or -1 if it is outside the grid
+	 */
+	public static int index(float x, float y) {
+		int column = Math.round(x) - XMIN;
+		int row = Math.round(y) - YMIN;
+		if (column < 0 || column >= COLUMNS || row < 0 || row >= ROWS) {
+			return -1;
+		}
+		return row * COLUMNS + column;
+	}
+
+	/**
+	 * Records a wall point.
+	 * @param source - the message the point came in, kept for colouring
+	 * @return false if the point is outside the grid
+	 */
+	public boolean hit(float x, float y, MessageType source) {
+		return update(index(x, y), HIT, source);
+	}
+
+	/**
+	 * Records that a point was seen to be empty.
+	 * @return false if the point is outside the grid
+	 */
+	public boolean miss(float x, float y) {
+		return update(index(x, y), MISS, null);
+	}
+
+	/**
+	 * Records a sonar echo: the cone from the sensor out to the echo's range
+	 * is free, and the point that echoed is a hit.
+	 * @param fromX - where the sensor was
+	 * @param fromY - where the sensor was
+	 * @param toX - the point that echoed
+	 * @param toY - the point that echoed
+	 * @param source - the message the point came in, kept for colouring
+	 */
+	public void sense(float fromX, float fromY, float toX, float toY, MessageType source) {
+		float dx = toX - fromX;
+		float dy = toY - fromY;
+		float range = (float) Math.sqrt(dx * dx + dy * dy);
+		if (range >= 1) {
+			if (++stamp == 0) { // wrapped; forget every earlier echo
+				for (int i = 0; i < stamps.length; i++) {
+					stamps[i] = 0;
+				}
+				stamp = 1;
+			}
+			int rays = Math.min(MAX_CONE_RAYS, 1 + 2 * (int) Math.ceil(range * CONE_TAN / RAY_SPACING));
+			double bearing = Math.atan2(dy, dx);
+			double step = Math.toRadians(2 * BEAM_HALF_ANGLE) / (rays - 1);
+			double angle = bearing - Math.toRadians(BEAM_HALF_ANGLE);
+			int fromColumn = Math.round(fromX) - XMIN;
+			int fromRow = Math.round(fromY) - YMIN;
+			for (int i = 0; i < rays; i++, angle += step) {
+				carve(fromColumn, fromRow, Math.round(fromX + range * (float) Math.cos(angle)) - XMIN,
+						Math.round(fromY + range * (float) Math.sin(angle)) - YMIN);
+			}
+		}
+		hit(toX, toY, source);
+	}
+
+	/**
+	 * Adds MISS to each cell on the line between two cells, once per echo,
+	 * leaving out the last cell, where the echo came from.
+	 */
+	private void carve(int column, int row, int toColumn, int toRow) {
+		int dColumn = Math.abs(toColumn - column);
+		int dRow = -Math.abs(toRow - row);
+		int stepColumn = column < toColumn ? 1 : -1;
+		int stepRow = row < toRow ? 1 : -1;
+		int error = dColumn + dRow;
+		int minColumn = Math.max(0, Math.min(column, toColumn));
+		int maxColumn = Math.min(COLUMNS - 1, Math.max(column, toColumn));
+		int minRow = Math.max(0, Math.min(row, toRow));
+		int maxRow = Math.min(ROWS - 1, Math.max(row, toRow));
+		while (column != toColumn || row != toRow) {
+			if (column >= 0 && column < COLUMNS && row >= 0 && row < ROWS) {
+				int index = row * COLUMNS + column;
+				if (stamps[index] != stamp) {
+					stamps[index] = stamp;
+					logOdds[index] = Math.max(-LIMIT, logOdds[index] + MISS);
+				}
+			}
+			int doubled = 2 * error;
+			if (doubled >= dRow) {
+				error += dRow;
+				column += stepColumn;
+			}
+			if (doubled <= dColumn) {
+				error += dColumn;
+				row += stepRow;
+			}
+		}
+		if (minColumn <= maxColumn && minRow <= maxRow) {
+			markDirty(minColumn, minRow, maxColumn, maxRow);
+		}
+	}
+
+	/**
+	 * Adds to a cell's log-odds.
+	 * @param index - from index(); -1 is ignored
+	 * @param delta - HIT, CRASH_HIT, MISS or any other evidence
+	 * @param source - what hit the cell, or null to keep the last
+	 * @return false if index was -1
+	 */
+	public boolean update(int index, float delta, MessageType source) {
+		if (index < 0) {
+			return false;
+		}
+		logOdds[index] = Math.max(-LIMIT, Math.min(LIMIT, logOdds[index] + delta));
+		if (source != null) {
+			sources[index] = (byte) source.ordinal();
+		}
+		int column = index % COLUMNS;
+		int row = index / COLUMNS;
+		markDirty(column, row, column, row);
+		return true;
+	}
+
+	/**
+	 * @return a cell's log-odds of being occupied; 0 if unknown or outside
+	 */
+	public float getLogOdds(float x, float y) {
+		int index = index(x, y);
+		return index < 0 ? 0 : logOdds[index];
+	}
+
+	public float getLogOdds(int index) {
+		return logOdds[index];
+	}
+
+	/**
+	 * @return the probability a point's cell is occupied; 0.5 if unknown
+	 */
+	public float getProbability(float x, float y) {
+		return (float) (1 / (1 + Math.exp(-getLogOdds(x, y))));
+	}
+
+	/**
+	 * @return true if a point's cell is more likely occupied than not
+	 */
+	public boolean isOccupied(float x, float y) {
+		return getLogOdds(x, y) > 0;
+	}
+
+	/**
+	 * @return the MessageType ordinal of the last hit on a cell
+	 */
+	public int getSource(int index) {
+		return sources[index];
+	}
+
+	/**
+	 * Forgets everything mapped.
+	 */
+	public void clear() {
+		for (int i = 0; i < logOdds.length; i++) {
+			logOdds[i] = 0;
+			sources[i] = 0;
+		}
+		markDirty(0, 0, COLUMNS - 1, ROWS - 1);
+	}
+
+	private void markDirty(int minColumn, int minRow, int maxColumn, int maxRow) {
+		synchronized (dirtyLock) {
+			dirtyMinColumn = Math.min(dirtyMinColumn, minColumn);
+			dirtyMaxColumn = Math.max(dirtyMaxColumn, maxColumn);
+			dirtyMinRow = Math.min(dirtyMinRow, minRow);
+			dirtyMaxRow = Math.max(dirtyMaxRow, maxRow);
+		}
+	}
+
+	/**
+	 * Hands over the cells changed since the last call, and starts afresh.
+	 * @param into - receives the changed cells: x and width in columns from
+	 * XMIN, y and height in rows from YMIN
+	 * @return false if nothing has changed
+	 */
+	public boolean takeDirty(Rectangle into) {
+		synchronized (dirtyLock) {
+			if (dirtyMinColumn > dirtyMaxColumn) {
+				return false;
+			}
+			into.setBounds(dirtyMinColumn, dirtyMinRow, dirtyMaxColumn - dirtyMinColumn + 1,
+					dirtyMaxRow - dirtyMinRow + 1);
+			dirtyMinColumn = Integer.MAX_VALUE;
+			dirtyMaxColumn = Integer.MIN_VALUE;
+			dirtyMinRow = Integer.MAX_VALUE;
+			dirtyMaxRow = Integer.MIN_VALUE;
+			return true;
+		}
+	}
+
+	/**
+	 * Records a wall point, as an echo from the latest pose if there is one.
+	 */
+	private void echo(float x, float y, MessageType source) {
+		if (hasPose) {
+			sense(poseX, poseY, x, y, source);
+		}
+		else {
+			hit(x, y, source);
+		}
+	}
+
+	/**
+	 * Maps wall points, scans and crashes as they are decoded, and follows
+	 * the pose they are seen from.
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		MessageType header = MessageType.of(type);
+		if (header == null) {
+			return true;
+		}
+		switch (header) {
+		case POS_UPDATE:
+		case STD_DEV:
+			poseX = values[0];
+			poseY = values[1];
+			hasPose = true;
+			break;
+		case WALL:
+		case ECHO:
+		case EXPLORE_RECEIVED:
+			echo(values[0], values[1], header);
+			break;
+		case SCAN_BATCH:
+			// source type, then x, y pairs
+			MessageType source = MessageType.of((int) values[0]);
+			for (int i = 1; i + 1 < count; i += 2) {
+				echo(values[i], values[i + 1], source);
+			}
+			break;
+		case CRASH:
+			update(index(values[0], values[1]), CRASH_HIT, header);
+			break;
+		default:
+			break;
+		}
+		return true;
+	}
+}
@@ -3,7 +3,10 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 import javax.swing.JButton;
 import javax.swing.JPanel;
@@ -12,51 +15,154 @@ import javax.swing.border.EmptyBorder;
 
 /**
  * OffScreenDrawing draws the grid for the MissionControlGUI GUI
+ * 
+ * Drawing is kept in layers so a position update only touches the pixels it
+ * changes: the static grid is drawn once into a cached background image, the
+ * robot's trail, walls and crashes accumulate on a transparent image above it,
+ * and the robot's pose and the clicked destination are painted on top straight
+ * from their coordinates. Each update repaints only the rectangle it dirtied.
+ * Shift-clicking adds a waypoint to a route, drawn on top as a polyline
+ * whose legs change colour as a mission drives them.
+ *
+ * Given an OccupancyGrid, walls are not painted as they arrive but shown
+ * from the grid: a layer between the grid lines and the trail holds a pixel
+ * per cell, and each update recolours only the cells changed since the last.
  * @author Corey Short, Phuc Nguyen, Khoa Tran
  * 5/25/14
  */
 public class OffScreenDrawing extends JPanel {
+	private static final EventLog log = new EventLog("OffScreenDrawing");
 
 	/** Creates new form OffScreenDrawing */
 	public OffScreenDrawing() {
 		initComponents();
 		setBackground(Color.black);
-		System.out.println(" OffScreen Drawing constructor ");
+		log.debug("OffScreen Drawing constructor");
 	}
 
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
-		if (offScreenImage == null)
+		if (offScreenImage == null && !makeImage())
 		{
-			makeImage();
+			return;
+		}
+		g.drawImage(gridImage, 0, 0, this); // the cached grid
+		if (isShowingSegments) {
+			drawSegments(g);
+		}
+		else if (occupancyImage != null) {
+			g.drawImage(occupancyImage, xpixel(OccupancyGrid.XMIN), ypixel(OccupancyGrid.YMAX + 1),
+					OccupancyGrid.COLUMNS * gridSpacing, OccupancyGrid.ROWS * gridSpacing, this);
 		}
 		g.drawImage(offScreenImage, 0, 0, this);  //Writes the Image to the screen
+		if (isRobotPathCalled) {
+			drawPose((Graphics2D) g, robotPrevX, robotPrevY, robotPrevHeading, Color.orange);
+		}
+		if (isDestinationSet) {
+			g.setColor(Color.blue);
+			g.fillOval(destPixelX - 4, destPixelY - 4, 6, 6);
+		}
+		drawRoute(g);
+		if (particles != null) {
+			drawParticles((Graphics2D) g);
+		}
+		if (selectedX != Integer.MIN_VALUE) {
+			g.setColor(Color.white);
+			g.drawOval(selectedX - 6, selectedY - 6, 12, 12);
+		}
+	}
+
+	/**
+	 * Draws the walls fitted to the mapped points, as lines.
+	 */
+	private void drawSegments(Graphics g) {
+		g.setColor(Color.magenta);
+		for (int i = 0; i < 4 * segmentCount; i += 4) {
+			g.drawLine(xpixel(segments[i]), ypixel(segments[i + 1]), xpixel(segments[i + 2]),
+					ypixel(segments[i + 3]));
+		}
+	}
+
+	/**
+	 * Draws the particle cloud, its mean pose, and the ellipse two standard
+	 * deviations out that the cloud's x, y covariance gives.
+	 */
+	private void drawParticles(Graphics2D g) {
+		if (particles.getUpdateCount() == 0) {
+			return;
+		}
+		int drawn = particles.getParticles(cloudX, cloudY);
+		g.setColor(CLOUD_COLOR);
+		for (int i = 0; i < drawn; i++) {
+			g.fillRect(xpixel(cloudX[i]), ypixel(cloudY[i]), 1, 1);
+		}
+		particles.getEstimate(cloudEstimate);
+		float xx = cloudEstimate[3];
+		float xy = cloudEstimate[4];
+		float yy = cloudEstimate[5];
+		// axes of the ellipse: eigenvalues and the angle of the first eigenvector
+		double middle = (xx + yy) / 2;
+		double spread = Math.sqrt((xx - yy) * (xx - yy) / 4 + xy * xy);
+		double major = 2 * Math.sqrt(Math.max(0, middle + spread)) * gridSpacing;
+		double minor = 2 * Math.sqrt(Math.max(0, middle - spread)) * gridSpacing;
+		double angle = 0.5 * Math.atan2(2 * xy, xx - yy);
+		int x = xpixel(cloudEstimate[0]);
+		int y = ypixel(cloudEstimate[1]);
+		AffineTransform saved = g.getTransform();
+		g.translate(x, y);
+		g.rotate(-angle); // y grows down the screen
+		g.setColor(Color.white);
+		g.draw(new Ellipse2D.Double(-major, -minor, 2 * major, 2 * minor));
+		g.setTransform(saved);
+		drawPose(g, x, y, Math.round(cloudEstimate[2]), Color.white);
+	}
+
+	/**
+	 * Draws the route: legs already driven in gray, the one under way in
+	 * yellow, the rest in cyan.
+	 */
+	private void drawRoute(Graphics g) {
+		for (int i = 0; i < routeLength; i++) {
+			int x = xpixel(routeX[i]);
+			int y = ypixel(routeY[i]);
+			if (i < routeDone) {
+				g.setColor(Color.gray);
+			}
+			else if (i == routeCurrent) {
+				g.setColor(Color.yellow);
+			}
+			else {
+				g.setColor(Color.cyan);
+			}
+			if (i > 0) {
+				g.drawLine(xpixel(routeX[i - 1]), ypixel(routeY[i - 1]), x, y);
+			}
+			g.drawRect(x - 3, y - 3, 6, 6);
+		}
 	}
 
 	/**
-	 * Create the offScreenImage, 
+	 * Create the offScreenImage and the cached grid behind it.
+	 * @return false if the panel has no size yet, so there is nothing to draw on
 	 */
-	public void makeImage() {
-		System.out.println("OffScreenGrid  makeImage() called");
+	public boolean makeImage() {
+		log.debug("makeImage() called");
 		imageWidth = getSize().width;// size from the panel
 		imageHeight = getSize().height;
+		if (imageWidth <= 0 || imageHeight <= 0) {
+			return false;
+		}
 		yOrigin = imageHeight - 50;
 		robotPrevX = xpixel(0);
 		robotPrevY = ypixel(0);
-		offScreenImage = createImage(imageWidth, imageHeight);// the container can make an image
-		try {Thread.sleep(500);}
-		catch(Exception e){};
-		System.out.print("Off Screen Grid  create image ----- " );
-		System.out.println( offScreenImage == null);
-		if(offScreenImage == null)
-		{
-			//			System.out.println("Null image" );
-			offScreenImage =  createImage(imageWidth, imageHeight);
-		}
-		osGraphics = (Graphics2D) offScreenImage.getGraphics();
-		osGraphics.setColor(getBackground());
-		osGraphics.fillRect(0, 0, imageWidth, imageHeight);// erase everything
+		gridImage = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+		gridGraphics = gridImage.createGraphics();
+		gridGraphics.setColor(getBackground());
+		gridGraphics.fillRect(0, 0, imageWidth, imageHeight);// erase everything
 		drawGrid();
+		offScreenImage = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+		osGraphics = ((BufferedImage) offScreenImage).createGraphics(); // starts fully transparent
+		return true;
 	}
 
 	/**
@@ -69,25 +175,25 @@ public class OffScreenDrawing extends JPanel {
 		int ymax = 238;
 		int ySpacing = 30;
 		int count = 0;
-		osGraphics.setColor(Color.green); // Set the line color
+		gridGraphics.setColor(Color.green); // Set the line color
 		for (int y = 0; y <= ymax; y += ySpacing)
 		{
 			if (count == 1) {
 				y = 12;
-				osGraphics.drawLine(xpixel(xmin), ypixel(y), xpixel(xmax), ypixel(y));
-				osGraphics.setColor(Color.green);
+				gridGraphics.drawLine(xpixel(xmin), ypixel(y), xpixel(xmax), ypixel(y));
+				gridGraphics.setColor(Color.green);
 			}
 			if (count == 8) {
-				osGraphics.setColor(Color.red);
+				gridGraphics.setColor(Color.red);
 				BasicStroke dashed = new BasicStroke(3, BasicStroke.CAP_BUTT,
 										BasicStroke .JOIN_BEVEL, 0, new float[]{9}, 0);
-				osGraphics.setStroke(dashed);
-				osGraphics.drawLine(xpixel(xmin), ypixel(y+16), xpixel(xmax), ypixel(y+16));
-				osGraphics.setColor(Color.green);
-				osGraphics.setStroke(new BasicStroke());
+				gridGraphics.setStroke(dashed);
+				gridGraphics.drawLine(xpixel(xmin), ypixel(y+16), xpixel(xmax), ypixel(y+16));
+				gridGraphics.setColor(Color.green);
+				gridGraphics.setStroke(new BasicStroke());
 				
 			}
-			osGraphics.drawLine(xpixel(xmin), ypixel(y), xpixel(xmax), ypixel(y));//horizontal lines
+			gridGraphics.drawLine(xpixel(xmin), ypixel(y), xpixel(xmax), ypixel(y));//horizontal lines
 			count++;
 		}
 		count = 0;
@@ -95,29 +201,29 @@ public class OffScreenDrawing extends JPanel {
 		{
 			if (count == 10) {
 				x = 0;
-				osGraphics.setColor(Color.red);
+				gridGraphics.setColor(Color.red);
 				BasicStroke dashed = new BasicStroke(3, BasicStroke.CAP_BUTT,
 										BasicStroke .JOIN_BEVEL, 0, new float[]{9}, 0);
-				osGraphics.setStroke(dashed);
-				osGraphics.drawLine(xpixel(x), ypixel(0), xpixel(x), ypixel(ymax));
-				osGraphics.setColor(Color.green);
-				osGraphics.setStroke(new BasicStroke());
+				gridGraphics.setStroke(dashed);
+				gridGraphics.drawLine(xpixel(x), ypixel(0), xpixel(x), ypixel(ymax));
+				gridGraphics.setColor(Color.green);
+				gridGraphics.setStroke(new BasicStroke());
 				x=-22;
 			}
-			osGraphics.drawLine(xpixel(x), ypixel(0), xpixel(x), ypixel(ymax));// vertical lines
+			gridGraphics.drawLine(xpixel(x), ypixel(0), xpixel(x), ypixel(ymax));// vertical lines
 			count++;
 		}
 		count = 0;
-		osGraphics.setColor(Color.white); //set number color 	
+		gridGraphics.setColor(Color.white); //set number color 	
 		for (int y = 0; y <= ymax; y += ySpacing) // number the  y axis
 		{
 			if (count == 1) {
 				y = 12;
 			}
 			if (count == 8) {
-				osGraphics.drawString(y+16 + "", xpixel(-305f), ypixel(y+16) + 4);
+				gridGraphics.drawString(y+16 + "", xpixel(-305f), ypixel(y+16) + 4);
 			}
-			osGraphics.drawString(y + "", xpixel(-305f), ypixel(y) + 4);
+			gridGraphics.drawString(y + "", xpixel(-305f), ypixel(y) + 4);
 			count++;
 		}
 		count = 0;
@@ -125,11 +231,11 @@ public class OffScreenDrawing extends JPanel {
 		{
 			if (count == 10) {
 				x = 0;
-				osGraphics.drawString("Light Beacon", xpixel(x) - 35, ypixel(-18f));
+				gridGraphics.drawString("Light Beacon", xpixel(x) - 35, ypixel(-18f));
 				x = -22;
 			}
 			
-			osGraphics.drawString(x + "", xpixel(x) - 4, ypixel(-8f));
+			gridGraphics.drawString(x + "", xpixel(x) - 4, ypixel(-8f));
 			count++;
 		}
 	}
@@ -138,10 +244,25 @@ public class OffScreenDrawing extends JPanel {
 	 * Clears the screen and redraws a new grid.
 	 */
 	public void clear() {
-		System.out.println(" clear called ");
-		osGraphics.setColor(getBackground());
-		osGraphics.fillRect(0, 0, imageWidth, imageHeight);// clear the image
-		drawGrid();
+		log.debug("clear called");
+		if (osGraphics == null) {
+			return;
+		}
+		osGraphics.setComposite(AlphaComposite.Clear);
+		osGraphics.fillRect(0, 0, imageWidth, imageHeight);// clear the image; the grid stays
+		osGraphics.setComposite(AlphaComposite.SrcOver);
+		if (occupancy != null) {
+			occupancy.clear();
+			renderOccupancy();
+		}
+		if (features != null) {
+			features.clear();
+		}
+		if (walls != null) {
+			walls.clear();
+			segmentCount = 0;
+		}
+		selectedX = Integer.MIN_VALUE;
 		repaint();
 	}
 
@@ -149,57 +270,62 @@ public class OffScreenDrawing extends JPanel {
 	 * Draws the bomb on the GUI after it has been detected and retrieved.
 	 */
 	public void drawBomb(int x, int y) {
+		if (osGraphics == null && !makeImage()) {
+			return;
+		}
 		x = xpixel(x); // coordinates of intersection
 		y = ypixel(y);
 		osGraphics.setColor(Color.darkGray);
 		osGraphics.fillOval(x, y, 6, 6);//bounding rectangle is 10 x 10
-		repaint();
+		requestRepaint(x, y, 6, 6);
 	}
 
 	/**
-	 * Draws the robot's path during any movement. It is also responsible for
-	 * drawing the robots pose and painting over its previous pose as the same color
-	 * as the background
+	 * Draws the robot's path during any movement and moves the robot's pose.
+	 * The pose itself is painted over the layers by paintComponent, so only
+	 * the old pose, the new pose and the new piece of path are repainted.
 	 * @param xx - the x-coordinate of the robot
 	 * @param yy - the y-coordinate of the robot
 	 * @param heading - the current heading of the robot
 	 */
 	public void drawRobotPath(int xx, int yy, int heading) {
+		if (osGraphics == null && !makeImage()) {
+			return;
+		}
 		int x = xpixel(xx); // coordinates of intersection
 		int y = ypixel(yy);
 	
-		drawGrid(); // for redrawing grid lines
-		osGraphics.setColor(Color.blue);
-		drawPose(robotPrevX, robotPrevY, robotPrevHeading, Color.black); // erases old pose
-		repaint();
-		drawPose(x, y, heading, Color.orange); // draws a new pose
-		
 		if (isRobotPathCalled) {
+			osGraphics.setColor(Color.orange);
 			osGraphics.drawLine(robotPrevX, robotPrevY, x, y); 
+			requestRepaint(robotPrevX - POSE_RADIUS, robotPrevY - POSE_RADIUS,
+					2 * POSE_RADIUS, 2 * POSE_RADIUS); // the old pose
+			requestRepaint(Math.min(robotPrevX, x), Math.min(robotPrevY, y),
+					Math.abs(x - robotPrevX), Math.abs(y - robotPrevY)); // the path
 		}
 		robotPrevX = x;
 		robotPrevY = y;
 		isRobotPathCalled = true;
 		robotPrevHeading = heading;
-		repaint();
+		requestRepaint(x - POSE_RADIUS, y - POSE_RADIUS, 2 * POSE_RADIUS, 2 * POSE_RADIUS);
 	}
 
 	/**
-	 * Draws the pose of the robot as a triangle on the GUI.
+	 * Draws the pose of the robot as a triangle.
+	 * @param g - the graphics to draw on
 	 * @param x - the x-coordinate of the robot
 	 * @param y - the y-coordinate of the robot
 	 * @param heading - the heading of the robot
 	 * @param c - the color of the pose to be drawn
 	 */
-	public void drawPose(int x, int y, int heading, Color c) {
-		poseTriangle = new Polygon();
+	public void drawPose(Graphics2D g, int x, int y, int heading, Color c) {
+		poseTriangle.reset();
 		int newX;
 		int newY;
 		int radius;
-		robotPrevHeading = heading;
 		for (int i = 0; i < 3; i++) {
 			if (i == 0) {
-				radius = 10;
+				radius = POSE_RADIUS;
 			}
 			else {
 				radius = 6;
@@ -208,10 +334,195 @@ public class OffScreenDrawing extends JPanel {
 			newY = y - (int) (radius * Math.sin(Math.toRadians(heading + (120 * i))));
 
 			poseTriangle.addPoint(newX, newY);
-			System.out.println("Point " + i + ": (" + newX + "," + newY + ")");
 		}
-		osGraphics.setColor(c);
-		osGraphics.drawPolygon(poseTriangle);
+		g.setColor(c);
+		g.drawPolygon(poseTriangle);
+	}
+	
+	/**
+	 * Shows walls from an occupancy grid instead of painting each one.
+	 * @param grid - the grid to show; null to paint walls as they arrive
+	 */
+	public void setOccupancyGrid(OccupancyGrid grid) {
+		occupancy = grid;
+		if (grid == null) {
+			occupancyImage = null;
+			occupancyPixels = null;
+			repaint();
+			return;
+		}
+		occupancyImage = new BufferedImage(OccupancyGrid.COLUMNS, OccupancyGrid.ROWS,
+				BufferedImage.TYPE_INT_ARGB);
+		occupancyPixels = ((DataBufferInt) occupancyImage.getRaster().getDataBuffer()).getData();
+		occupancyDirty.setBounds(0, 0, OccupancyGrid.COLUMNS, OccupancyGrid.ROWS);
+		paintOccupancy(occupancyDirty);
+	}
+
+	/**
+	 * Lets a click on the map pick out the nearest mapped feature.
+	 * @param index - the features to pick from; null for none
+	 */
+	public void setSpatialIndex(SpatialIndex index) {
+		features = index;
+	}
+
+	/**
+	 * Lets the map show walls as the segments an extractor fits.
+	 * @param extractor - the segments to show; null for none
+	 */
+	public void setWallExtractor(WallExtractor extractor) {
+		walls = extractor;
+		if (extractor == null) {
+			setShowingSegments(false);
+		}
+	}
+
+	/**
+	 * Switches between walls as fitted segments and walls as points. While
+	 * segments are shown, points are not painted.
+	 * @param isShowing - true to show segments; needs a WallExtractor
+	 */
+	public void setShowingSegments(boolean isShowing) {
+		isShowingSegments = isShowing && walls != null;
+		if (isShowingSegments) {
+			walls.refit();
+			loadSegments();
+		}
+		repaint();
+	}
+
+	public boolean isShowingSegments() {
+		return isShowingSegments;
+	}
+
+	/**
+	 * Copies the extractor's segments for painting.
+	 */
+	private void loadSegments() {
+		while ((segmentCount = walls.getSegments(segments)) * 4 > segments.length) {
+			segments = new float[8 * segmentCount];
+		}
+	}
+
+	/**
+	 * Shows a particle filter's cloud and estimate over the map.
+	 * @param filter - the filter to show; null for none
+	 */
+	public void setParticleFilter(ParticleFilter filter) {
+		particles = filter;
+		particleUpdates = -1;
+		repaint();
+	}
+
+	/**
+	 * Rings the mapped feature nearest a point and describes it in the
+	 * status field, or says there is none within PICK_RADIUS.
+	 * @param x - the x-coordinate clicked
+	 * @param y - the y-coordinate clicked
+	 * @return the feature picked, or -1
+	 */
+	public int pickFeature(int x, int y) {
+		if (features == null) {
+			return -1;
+		}
+		if (selectedX != Integer.MIN_VALUE) {
+			requestRepaint(selectedX - 6, selectedY - 6, 13, 13);
+		}
+		int feature = features.nearest(x, y, PICK_RADIUS);
+		if (feature < 0) {
+			selectedX = Integer.MIN_VALUE;
+			if (textStatus != null) {
+				textStatus.setText("Nothing mapped within " + (int) PICK_RADIUS + " cm of (" + x + ", " + y + ")");
+			}
+			return -1;
+		}
+		float featureX = features.getX(feature);
+		float featureY = features.getY(feature);
+		selectedX = xpixel(Math.round(featureX));
+		selectedY = ypixel(Math.round(featureY));
+		requestRepaint(selectedX - 6, selectedY - 6, 13, 13);
+		if (textStatus != null) {
+			String text = String.format("%s at (%.1f, %.1f), seen %d times", features.getSource(feature),
+					featureX, featureY, features.getHits(feature));
+			if (occupancy != null) {
+				text += String.format(", %.0f%% occupied", 100 * occupancy.getProbability(featureX, featureY));
+			}
+			textStatus.setText(text);
+		}
+		return feature;
+	}
+
+	/**
+	 * Recolours the cells the grid has changed, now or, during an update, at
+	 * endUpdate().
+	 */
+	public void renderOccupancy() {
+		if (occupancy == null || isUpdating) {
+			return;
+		}
+		if (occupancy.takeDirty(occupancyDirty)) {
+			paintOccupancy(occupancyDirty);
+		}
+	}
+
+	/**
+	 * Recolours a rectangle of cells and repaints the pixels they cover.
+	 * @param cells - columns and rows from XMIN and YMIN
+	 */
+	private void paintOccupancy(Rectangle cells) {
+		for (int row = cells.y; row < cells.y + cells.height; row++) {
+			int pixel = (OccupancyGrid.ROWS - 1 - row) * OccupancyGrid.COLUMNS + cells.x; // image is upside down
+			int index = row * OccupancyGrid.COLUMNS + cells.x;
+			for (int column = cells.x; column < cells.x + cells.width; column++) {
+				occupancyPixels[pixel++] = cellColor(index++);
+			}
+		}
+		int left = xpixel(OccupancyGrid.XMIN + cells.x);
+		int top = ypixel(OccupancyGrid.YMIN + cells.y + cells.height);
+		requestRepaint(left, top, cells.width * gridSpacing, cells.height * gridSpacing);
+	}
+
+	/**
+	 * @return the ARGB colour of a cell: clear while unknown, faint gray the
+	 * surer it is free, and the colour of whatever last hit it, more opaque
+	 * the surer it is occupied
+	 */
+	private int cellColor(int index) {
+		float logOdds = occupancy.getLogOdds(index);
+		int level = (int) (Math.abs(logOdds) * (CELL_LEVELS - 1) / OccupancyGrid.LIMIT);
+		if (logOdds < 0) {
+			return FREE_ALPHA[level] << 24 | 0x404040;
+		}
+		if (level == 0) {
+			return 0;
+		}
+		MessageType source = MessageType.of(occupancy.getSource(index));
+		int rgb;
+		if (source == MessageType.CRASH) {
+			rgb = 0xff0000;
+		}
+		else if (source == MessageType.EXPLORE_RECEIVED) {
+			rgb = 0xffff00;
+		}
+		else if (source == MessageType.ECHO) {
+			rgb = 0x00ffff;
+		}
+		else {
+			rgb = 0xff00ff;
+		}
+		return OCCUPIED_ALPHA[level] << 24 | rgb;
+	}
+
+	/**
+	 * Alpha for each level of certainty, from the log-odds' probability.
+	 */
+	private static int[] alphas(int max, int levels) {
+		int[] alphas = new int[levels];
+		for (int i = 0; i < levels; i++) {
+			double p = 1 / (1 + Math.exp(-i * OccupancyGrid.LIMIT / (levels - 1)));
+			alphas[i] = (int) Math.round(max * (2 * p - 1)); // 0 at p = 0.5
+		}
+		return alphas;
 	}
 	
 	/**
@@ -221,13 +532,53 @@ public class OffScreenDrawing extends JPanel {
 	 * @param color - the color to draw the wall
 	 */
 	public void drawWall(int xx, int yy, Color color) {
+		if (occupancy != null) {
+			renderOccupancy();
+			return;
+		}
+		if (isShowingSegments || (osGraphics == null && !makeImage())) {
+			return;
+		}
 		int x = xpixel(xx);
 		int y = ypixel(yy);
 		osGraphics.setColor(color);
 		osGraphics.fillOval(x, y, 6, 6);
-		repaint();
+		requestRepaint(x, y, 6, 6);
 	}
 	
+	/**
+	 * Draws a whole sweep of wall points in one pass: one colour change and
+	 * one repaint of the area the sweep covers.
+	 * @param points - x, y pairs in cm
+	 * @param offset - where the first x is in points
+	 * @param count - the number of pairs
+	 * @param color - the color to draw the walls
+	 */
+	public void drawScan(float[] points, int offset, int count, Color color) {
+		if (occupancy != null) {
+			renderOccupancy();
+			return;
+		}
+		if (count <= 0 || isShowingSegments || (osGraphics == null && !makeImage())) {
+			return;
+		}
+		osGraphics.setColor(color);
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int i = offset; i < offset + 2 * count; i += 2) {
+			int x = xpixel((int) points[i]);
+			int y = ypixel((int) points[i + 1]);
+			osGraphics.fillOval(x, y, 6, 6);
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+		requestRepaint(minX, minY, maxX - minX + 6, maxY - minY + 6);
+	}
+
 	/**
 	 * Draws the standard deviation as an ellipse around the pose, x, y.
 	 * @param xx - current pose x
@@ -236,6 +587,9 @@ public class OffScreenDrawing extends JPanel {
 	 * @param devY - current standard deviation of y
 	 */
 	public void drawStdDev(int xx, int yy, int devX, int devY) {
+		if (osGraphics == null && !makeImage()) {
+			return;
+		}
 		int x = xpixel(xx);
 		int y = ypixel(yy);
 		int sDevX = xpixel(devX);
@@ -244,6 +598,7 @@ public class OffScreenDrawing extends JPanel {
 		y += 2 * sDevY; // 2 standard deviations
 		osGraphics.setColor(Color.red);
 		osGraphics.drawOval(x, y, 6, 6);
+		requestRepaint(x, y, 6, 6);
 	}
 	
 	
@@ -253,35 +608,174 @@ public class OffScreenDrawing extends JPanel {
 	 * @param yy - the y coordinate of the crash
 	 */
 	public void drawCrash(int xx, int yy) {
+		if (osGraphics == null && !makeImage()) {
+			return;
+		}
 		int x = xpixel(xx);
 		int y = ypixel(yy);
 		osGraphics.setColor(Color.red);
 		osGraphics.drawOval(x - 4, y - 4, 8, 8);
+		requestRepaint(x - 4, y - 4, 8, 8);
 	}
 	
 	/**
-	 * Paints the previous location clicked by the mouse on the GUI as the
-	 * same color as the background.
+	 * Holds back repaints until endUpdate(), so a burst of drawing calls
+	 * costs one repaint of the area they touched.
 	 */
-	private void clearPreviousMouseClicked(int x, int y) {
-		if(osGraphics == null)System.out.println("null osGraphics");
-		osGraphics.setColor(Color.black);
-		osGraphics.fillOval(x - 4, y - 4, 6, 6);
-		drawGrid();
-		repaint(); // redraws grid lines
+	public void beginUpdate() {
+		isUpdating = true;
 	}
 	
 	/**
-	 * Draws an oval of the current destination clicked on the GUI.
+	 * Repaints the union of everything drawn since beginUpdate(). Segments
+	 * are refitted here at most every REFIT_PERIOD, since a refit runs RANSAC
+	 * over every tile that changed.
+	 */
+	public void endUpdate() {
+		if (occupancy != null && occupancy.takeDirty(occupancyDirty)) {
+			paintOccupancy(occupancyDirty); // whatever the Reader mapped since the last frame
+		}
+		if (particles != null && particles.getUpdateCount() != particleUpdates) {
+			particleUpdates = particles.getUpdateCount();
+			requestRepaint(xpixel(OccupancyGrid.XMIN), ypixel(OccupancyGrid.YMAX + 1),
+					OccupancyGrid.COLUMNS * gridSpacing, OccupancyGrid.ROWS * gridSpacing);
+		}
+		long now = System.nanoTime();
+		if (isShowingSegments && now - lastRefit >= REFIT_PERIOD && walls.refit() > 0) {
+			lastRefit = now;
+			loadSegments();
+			requestRepaint(xpixel(OccupancyGrid.XMIN), ypixel(OccupancyGrid.YMAX + 1),
+					OccupancyGrid.COLUMNS * gridSpacing, OccupancyGrid.ROWS * gridSpacing);
+		}
+		isUpdating = false;
+		if (!dirty.isEmpty()) {
+			repaint(dirty);
+			dirty.setBounds(0, 0, 0, 0);
+		}
+	}
+	
+	/**
+	 * Repaints a rectangle of the drawing now, or adds it to the area
+	 * repainted at endUpdate() if an update is in progress.
+	 */
+	private void requestRepaint(int x, int y, int width, int height) {
+		// pad by a pixel each side for stroke width and rounding
+		if (!isUpdating) {
+			repaint(x - 1, y - 1, width + 3, height + 3);
+		}
+		else if (dirty.isEmpty()) {
+			dirty.setBounds(x - 1, y - 1, width + 3, height + 3);
+		}
+		else {
+			// grow by the two corners; add(x, y) treats them as exclusive, as a
+			// Rectangle's far edges are, so nothing is allocated
+			dirty.add(x - 1, y - 1);
+			dirty.add(x + width + 2, y + height + 2);
+		}
+	}
+	
+	/**
+	 * Marks the current destination clicked on the GUI, moving the marker
+	 * from the previous destination.
 	 * @param x - the x-coordinate clicked on the GUI
 	 * @param y - the y-coordinate clicked on the GUI
 	 */
 	public void drawMouseClicked(int x, int y) {
-		x = xpixel(x);
-		y = ypixel(y);
-		osGraphics.setColor(Color.blue);
-		osGraphics.fillOval(x - 4, y - 4, 6, 6);
-		repaint();
+		if (isDestinationSet) {
+			requestRepaint(destPixelX - 4, destPixelY - 4, 6, 6);
+		}
+		destPixelX = xpixel(x);
+		destPixelY = ypixel(y);
+		isDestinationSet = true;
+		requestRepaint(destPixelX - 4, destPixelY - 4, 6, 6);
+	}
+	
+	/**
+	 * Adds a waypoint to the end of the route.
+	 * @param x - the x-coordinate of the waypoint
+	 * @param y - the y-coordinate of the waypoint
+	 * @return false if the route already has MissionStep.MAX_STEPS waypoints
+	 */
+	public boolean addWaypoint(int x, int y) {
+		if (routeLength == routeX.length) {
+			return false;
+		}
+		routeX[routeLength] = x;
+		routeY[routeLength] = y;
+		routeLength++;
+		if (routeLength > 1) {
+			int prevX = xpixel(routeX[routeLength - 2]);
+			int prevY = ypixel(routeY[routeLength - 2]);
+			requestRepaint(Math.min(prevX, xpixel(x)) - 3, Math.min(prevY, ypixel(y)) - 3,
+					Math.abs(xpixel(x) - prevX) + 6, Math.abs(ypixel(y) - prevY) + 6);
+		}
+		else {
+			requestRepaint(xpixel(x) - 3, ypixel(y) - 3, 6, 6);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every waypoint.
+	 */
+	public void clearRoute() {
+		repaintRoute();
+		routeLength = 0;
+		routeDone = 0;
+		routeCurrent = -1;
+	}
+
+	public int getRouteLength() {
+		return routeLength;
+	}
+
+	public int getRouteX(int index) {
+		return routeX[index];
+	}
+
+	public int getRouteY(int index) {
+		return routeY[index];
+	}
+
+	/**
+	 * Shows how far a mission has driven the route.
+	 * @param step - the index of the waypoint the progress is about; -1 to
+	 * show the route as not started
+	 * @param state - MissionStep.STARTED, FINISHED or ABORTED
+	 */
+	public void setRouteProgress(int step, int state) {
+		if (step < 0) {
+			routeDone = 0;
+			routeCurrent = -1;
+		}
+		else if (state == MissionStep.STARTED) {
+			routeCurrent = step;
+		}
+		else {
+			routeDone = state == MissionStep.FINISHED ? step + 1 : routeDone;
+			routeCurrent = -1;
+		}
+		repaintRoute();
+	}
+
+	/**
+	 * Repaints the rectangle around the whole route.
+	 */
+	private void repaintRoute() {
+		if (routeLength == 0) {
+			return;
+		}
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < routeLength; i++) {
+			minX = Math.min(minX, xpixel(routeX[i]));
+			minY = Math.min(minY, ypixel(routeY[i]));
+			maxX = Math.max(maxX, xpixel(routeX[i]));
+			maxY = Math.max(maxY, ypixel(routeY[i]));
+		}
+		requestRepaint(minX - 3, minY - 3, maxX - minX + 6, maxY - minY + 6);
 	}
 	
 	public int abs(int a) {
@@ -295,7 +789,7 @@ public class OffScreenDrawing extends JPanel {
 	 * is represented on the GUI drawing.
 	 * @return the xpixel to be drawn on the GUI
 	 */
-	private int xpixel(float x) {
+	int xpixel(float x) {
 		return xOrigin + (int) (x * gridSpacing);
 	}
 	
@@ -306,16 +800,16 @@ public class OffScreenDrawing extends JPanel {
 	 * is represented on the GUI drawing.
 	 * @return the ypixel to be drawn on the GUI
 	 */
-	private int ypixel(float y) {
+	int ypixel(float y) {
 		return yOrigin - (int) (y * gridSpacing);
 	}
 	
-	private int gridX(int xpix) {
+	int gridX(int xpix) {
 		float x = (xpix - xOrigin)/(1.0f * gridSpacing);
 		return Math.round(x);
 	}
 	
-	private int gridY(int ypix) {
+	int gridY(int ypix) {
 		float y = (yOrigin - ypix)/(1.0f * gridSpacing);
 		return Math.round(y);
 	}
@@ -349,20 +843,23 @@ public class OffScreenDrawing extends JPanel {
 
 	/**
 	 * Translates a click on the screen to a selection of destination in the 
-	 * text fields.
+	 * text fields, or with shift held, to a new waypoint on the route. A
+	 * plain click also picks out the nearest mapped feature.
 	 * @param event - the event clicked on the GUI
 	 */
 	private void formMouseClicked(MouseEvent event)//GEN-FIRST:event_formMouseClicked
 	{
-		clearPreviousMouseClicked(xpixel(destXo), ypixel(destYo));
-
+		if (event.isShiftDown()) {
+			addWaypoint(gridX(event.getX()), gridY(event.getY()));
+			return;
+		}
 		destXo = gridX(event.getX());
 		destYo = gridY(event.getY());
 
 		textX.setText(destXo + "");
 		textY.setText(destYo + "");
 		drawMouseClicked(destXo, destYo);
-		repaint();
+		pickFeature(destXo, destYo);
 	}//GEN-LAST:event_formMouseClicked
 
 	// Variables declaration - do not modify//GEN-BEGIN:variables
@@ -373,6 +870,14 @@ public class OffScreenDrawing extends JPanel {
 	 *created by makeImage which is called by paint(); guarantees image always exists before used; 
 	 */
 	Image offScreenImage;
+	/**
+	 * the static grid and axis labels; drawn once by makeImage, painted under offScreenImage
+	 */
+	private BufferedImage gridImage;
+	/**
+	 * the graphics context of gridImage; used by drawGrid
+	 */
+	private Graphics2D gridGraphics;
 	/**
 	 *width of the drawing area;set by makeImage,used by clearImage
 	 */
@@ -409,13 +914,57 @@ public class OffScreenDrawing extends JPanel {
 	
 	private int destXo = xpixel(0);
 	private int destYo = ypixel(0);
+	private int destPixelX;
+	private int destPixelY;
+	private boolean isDestinationSet;
 	
+	private final int[] routeX = new int[MissionStep.MAX_STEPS]; // waypoints in cm
+	private final int[] routeY = new int[MissionStep.MAX_STEPS];
+	private int routeLength = 0;
+	private int routeDone = 0; // waypoints a mission has reached
+	private int routeCurrent = -1; // the waypoint being driven to, if any
+	
+	/**
+	 * distance in pixels from the robot position to the tip of the pose triangle
+	 */
+	private static final int POSE_RADIUS = 10;
 	private Polygon poseTriangle = new Polygon();
 	
 	public JTextField textX;
 	public JTextField textY;
+	public JTextField textStatus; // describes the feature picked by a click
+	
+	private SpatialIndex features; // picked from by clicks, if set
+	private static final float PICK_RADIUS = 10; // cm from a click to the feature it picks
+	private int selectedX = Integer.MIN_VALUE; // pixel of the feature picked; MIN_VALUE for none
+	private int selectedY;
+	
+	private WallExtractor walls; // fits the segments shown, if set
+	private boolean isShowingSegments = false; // walls as segments rather than points
+	private float[] segments = new float[4 * 256]; // x1, y1, x2, y2 as last fitted
+	private int segmentCount = 0;
+	private static final long REFIT_PERIOD = 250000000L; // ns between refits while points arrive
+	private long lastRefit = Long.MIN_VALUE / 2;
+	
+	private ParticleFilter particles; // localization shown over the map, if set
+	private long particleUpdates = -1; // the filter's update last repainted
+	private final float[] cloudX = new float[ParticleFilter.MAX_DRAWN];
+	private final float[] cloudY = new float[ParticleFilter.MAX_DRAWN];
+	private final float[] cloudEstimate = new float[6];
+	private static final Color CLOUD_COLOR = new Color(255, 160, 0, 160);
 	
 	public boolean isRobotPathCalled;
 	public boolean isDrawWallCalled;
 	
+	private boolean isUpdating; // true between beginUpdate and endUpdate
+	
+	private OccupancyGrid occupancy; // shown instead of painted walls, if set
+	private BufferedImage occupancyImage; // a pixel per cell, top row first
+	private int[] occupancyPixels; // occupancyImage's own pixels
+	private final Rectangle occupancyDirty = new Rectangle(); // cells to recolour
+	private static final int CELL_LEVELS = 64; // shades of certainty
+	private static final int[] OCCUPIED_ALPHA = alphas(255, CELL_LEVELS);
+	private static final int[] FREE_ALPHA = alphas(96, CELL_LEVELS);
+	private final Rectangle dirty = new Rectangle(); // area to repaint at endUpdate
+	
 }
@@ -0,0 +1,811 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Monte Carlo localization on the PC, where there is CPU to spare: a cloud
+ * of particles, each a guess at the robot's pose, moved by the odometry in
+ * POS_UPDATE and weighted by how well the sonar points in WALL, ECHO,
+ * EXPLORE_RECEIVED and SCAN_BATCH fit a known map of walls.
+ *
+ * Motion is the odometry model: the change between two POS_UPDATEs is a
+ * turn, a straight travel and a second turn, each applied to every particle
+ * with noise growing with how far it went and turned. An odometry change of
+ * more than JUMP in one update is taken as the pose being set, and the
+ * cloud starts again around it. Each sonar point gives a range and bearing
+ * from the robot; a particle's weight is multiplied by the likelihood of
+ * an echo where that range and bearing put it from the particle, looked up
+ * in a likelihood field precomputed from the map: Z_HIT of a Gaussian of
+ * SENSOR_SIGMA about the nearest wall, plus Z_RANDOM anywhere. A scan
+ * counts as at most MAX_BATCH points, as neighbouring echoes are far from
+ * independent. The cloud is resampled, systematically, once the effective
+ * number of particles falls below half.
+ *
+ * Particles are struct-of-arrays float buffers, and every pass over them
+ * (motion, weighting, the prefix sums and draws of resampling, and the
+ * estimate) is split into CHUNK-particle pieces run in parallel on a
+ * ForkJoinPool. Nothing is allocated per particle, only a task per chunk
+ * of each pass, and the noise comes from a per-chunk xorshift generator
+ * and a table of Gaussians, so the pieces share nothing but the arrays.
+ *
+ * As a TelemetrySink the filter only copies messages into a TelemetryRing
+ * on the Reader thread; its own thread drains them, folding runs of
+ * POS_UPDATEs into one motion, and after each batch publishes the weighted
+ * mean and covariance and a sample of the cloud for drawing. A filter may
+ * be started and stopped any number of times; the pool lives from start()
+ * to stop(), or from the first pass to stop() when the passes are called
+ * directly.
+ * @author Corey Short
+ */
+public class ParticleFilter implements TelemetrySink, Runnable {
+
+	/**
+	 * Particles per piece of a parallel pass.
+	 */
+	public static final int CHUNK = 4096;
+
+	/**
+	 * Standard deviation of a sonar point about the wall it came from, in cm.
+	 */
+	public static final float SENSOR_SIGMA = 4f;
+	public static final float Z_HIT = 0.9f;
+	public static final float Z_RANDOM = 0.1f;
+
+	/**
+	 * Echoes from farther than this, in cm, are not used.
+	 */
+	public static final float MAX_RANGE = 250;
+
+	/**
+	 * Most points of one message used to weight the particles.
+	 */
+	public static final int MAX_BATCH = 16;
+
+	/**
+	 * Spread of a new cloud about the pose it starts from: cm and degrees.
+	 */
+	public static final float INITIAL_SPREAD = 10;
+	public static final float INITIAL_HEADING_SPREAD = 10;
+
+	/**
+	 * Odometry travel, in cm, in one update that can only be the pose being set.
+	 */
+	public static final float JUMP = 50;
+
+	/**
+	 * Particles drawn on the map, at most.
+	 */
+	public static final int MAX_DRAWN = 2000;
+
+	// odometry noise: standard deviation per unit of motion
+	private static final float ALPHA_ROTATION = 0.05f; // rad per rad turned
+	private static final float ALPHA_ROTATION_TRAVEL = 0.0005f; // rad per cm travelled
+	private static final float ALPHA_TRAVEL = 0.05f; // cm per cm travelled
+	private static final float ALPHA_TRAVEL_ROTATION = 0.5f; // cm per rad turned
+
+	private static final EventLog log = new EventLog("ParticleFilter");
+	private static final int RING_CAPACITY = 4096;
+	private static final float TWO_PI = (float) (2 * Math.PI);
+	private static final int SINES = 4096; // sine table entries over a turn; a power of two
+	private static final float[] SINE = sines();
+	private static final float SINE_SCALE = SINES / TWO_PI;
+	private static final int GAUSSIANS = 4096; // a power of two
+	private static final float[] GAUSSIAN = gaussians();
+	private static final int FIELD_REACH = (int) Math.ceil(3 * SENSOR_SIGMA); // cells farther are Z_RANDOM
+
+	// passes over the particles
+	private static final int MOTION = 0;
+	private static final int WEIGHT = 1;
+	private static final int PREFIX = 2;
+	private static final int DRAW = 3;
+	private static final int ESTIMATE = 4;
+	private static final int SUMS = 8; // partial sums per chunk
+
+	private final int count;
+	private final int chunks;
+	private float[] xs;
+	private float[] ys;
+	private float[] headings; // radians
+	private float[] nextXs; // resampling writes here, then swaps
+	private float[] nextYs;
+	private float[] nextHeadings;
+	private final float[] weights; // relative; scale times weight sums to count
+	private final float[] cumulative; // running weight within each chunk
+	private final double[] partials; // SUMS per chunk
+	private final double[] squares; // sum of the squared weights of each chunk
+	private final double[] chunkStarts; // total weight before each chunk
+	private final double[] sums = new double[SUMS]; // partials added up
+	private ForkJoinPool pool; // null until needed, and again after stop()
+	private final Random random = new Random();
+	private volatile float[] field; // likelihood of an echo from each OccupancyGrid cell
+
+	// the pass being run; written before the pool is invoked
+	private int seed;
+	private float rotation1;
+	private float travel;
+	private float rotation2;
+	private float sigmaRotation1;
+	private float sigmaTravel;
+	private float sigmaRotation2;
+	private final float[] forwards = new float[MAX_BATCH]; // each point ahead of the robot
+	private final float[] lefts = new float[MAX_BATCH]; // and to its left
+	private int measured;
+	private float scale = 1; // multiplies every weight
+	private double drawStart; // systematic resampling's first draw, in unscaled weight
+	private double drawStep;
+
+	// odometry; filter thread only, but for start() clearing isStarted
+	private boolean isStarted = false;
+	private float odometryX;
+	private float odometryY;
+	private float odometryHeading; // radians
+
+	// published for drawing
+	private final Object snapshotLock = new Object();
+	private final float[] estimate = new float[6];
+	private final float[] drawnX = new float[MAX_DRAWN];
+	private final float[] drawnY = new float[MAX_DRAWN];
+	private int drawn = 0;
+	private volatile long updates = 0;
+
+	private final TelemetryRing ring = new TelemetryRing(RING_CAPACITY);
+	private Thread thread;
+	private volatile boolean isRunning = false;
+	private volatile long dropped = 0; // written by the producer only
+
+	/**
+	 * @param count - the number of particles
+	 */
+	public ParticleFilter(int count) {
+		this.count = count;
+		chunks = (count + CHUNK - 1) / CHUNK;
+		xs = new float[count];
+		ys = new float[count];
+		headings = new float[count];
+		nextXs = new float[count];
+		nextYs = new float[count];
+		nextHeadings = new float[count];
+		weights = new float[count];
+		cumulative = new float[count];
+		partials = new double[chunks * SUMS];
+		squares = new double[chunks];
+		chunkStarts = new double[chunks + 1];
+		setMap(arenaWalls());
+	}
+
+	/**
+	 * @return the walls around the area OffScreenDrawing draws, as x1, y1,
+	 * x2, y2 of each
+	 */
+	public static float[] arenaWalls() {
+		float left = OccupancyGrid.XMIN;
+		float right = OccupancyGrid.XMAX;
+		float bottom = OccupancyGrid.YMIN;
+		float top = OccupancyGrid.YMAX;
+		return new float[] { left, bottom, right, bottom, right, bottom, right, top, right, top, left, top,
+				left, top, left, bottom };
+	}
+
+	/**
+	 * Sets the walls echoes are weighed against, building the likelihood
+	 * field; may be called while the filter runs.
+	 * @param walls - x1, y1, x2, y2 of each wall, in cm, as from
+	 * WallExtractor.readMap()
+	 */
+	public void setMap(float[] walls) {
+		float[] distances = new float[OccupancyGrid.COLUMNS * OccupancyGrid.ROWS];
+		for (int i = 0; i < distances.length; i++) {
+			distances[i] = FIELD_REACH;
+		}
+		for (int w = 0; w + 3 < walls.length; w += 4) {
+			float x1 = walls[w];
+			float y1 = walls[w + 1];
+			float dx = walls[w + 2] - x1;
+			float dy = walls[w + 3] - y1;
+			float lengthSquared = dx * dx + dy * dy;
+			int minColumn = Math.max(0, Math.round(Math.min(x1, x1 + dx)) - FIELD_REACH - OccupancyGrid.XMIN);
+			int maxColumn = Math.min(OccupancyGrid.COLUMNS - 1,
+					Math.round(Math.max(x1, x1 + dx)) + FIELD_REACH - OccupancyGrid.XMIN);
+			int minRow = Math.max(0, Math.round(Math.min(y1, y1 + dy)) - FIELD_REACH - OccupancyGrid.YMIN);
+			int maxRow = Math.min(OccupancyGrid.ROWS - 1,
+					Math.round(Math.max(y1, y1 + dy)) + FIELD_REACH - OccupancyGrid.YMIN);
+			for (int row = minRow; row <= maxRow; row++) {
+				float y = row + OccupancyGrid.YMIN;
+				for (int column = minColumn; column <= maxColumn; column++) {
+					float x = column + OccupancyGrid.XMIN;
+					// distance to the nearest point of the wall
+					float t = lengthSquared == 0 ? 0
+							: Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+					float ex = x1 + t * dx - x;
+					float ey = y1 + t * dy - y;
+					int index = row * OccupancyGrid.COLUMNS + column;
+					distances[index] = Math.min(distances[index], (float) Math.sqrt(ex * ex + ey * ey));
+				}
+			}
+		}
+		float[] likelihoods = new float[distances.length];
+		for (int i = 0; i < distances.length; i++) {
+			float d = distances[i];
+			likelihoods[i] = d >= FIELD_REACH ? Z_RANDOM
+					: Z_HIT * (float) Math.exp(-d * d / (2 * SENSOR_SIGMA * SENSOR_SIGMA)) + Z_RANDOM;
+		}
+		field = likelihoods;
+	}
+
+	/**
+	 * Starts the cloud again about a pose.
+	 * @param heading - in degrees
+	 */
+	public void reset(float x, float y, float heading) {
+		float h = (float) Math.toRadians(heading);
+		float headingSpread = (float) Math.toRadians(INITIAL_HEADING_SPREAD);
+		for (int i = 0; i < count; i++) {
+			xs[i] = x + INITIAL_SPREAD * (float) random.nextGaussian();
+			ys[i] = y + INITIAL_SPREAD * (float) random.nextGaussian();
+			headings[i] = h + headingSpread * (float) random.nextGaussian();
+			weights[i] = 1;
+		}
+		scale = 1;
+		odometryX = x;
+		odometryY = y;
+		odometryHeading = h;
+		isStarted = true;
+	}
+
+	/**
+	 * Moves every particle by the change in odometry since the last reading.
+	 * The first reading, or one more than JUMP from the last, starts the
+	 * cloud about it instead.
+	 * @param heading - in degrees
+	 */
+	public void move(float x, float y, float heading) {
+		float dx = x - odometryX;
+		float dy = y - odometryY;
+		float distance = (float) Math.sqrt(dx * dx + dy * dy);
+		if (!isStarted || distance > JUMP) {
+			reset(x, y, heading);
+			return;
+		}
+		float h = (float) Math.toRadians(heading);
+		float turn = wrap(h - odometryHeading);
+		if (distance == 0 && turn == 0) {
+			return;
+		}
+		rotation1 = distance < 0.1f ? 0 : wrap((float) Math.atan2(dy, dx) - odometryHeading);
+		if (Math.abs(rotation1) > Math.PI / 2) { // backing up
+			rotation1 = wrap(rotation1 + (float) Math.PI);
+			distance = -distance;
+		}
+		travel = distance;
+		rotation2 = wrap(turn - rotation1);
+		float moved = Math.abs(distance);
+		sigmaRotation1 = ALPHA_ROTATION * Math.abs(rotation1) + ALPHA_ROTATION_TRAVEL * moved;
+		sigmaTravel = ALPHA_TRAVEL * moved + ALPHA_TRAVEL_ROTATION * (Math.abs(rotation1) + Math.abs(rotation2));
+		sigmaRotation2 = ALPHA_ROTATION * Math.abs(rotation2) + ALPHA_ROTATION_TRAVEL * moved;
+		odometryX = x;
+		odometryY = y;
+		odometryHeading = h;
+		run(MOTION);
+	}
+
+	/**
+	 * Weights every particle by sonar points seen from the latest odometry
+	 * pose: each point's range and bearing from that pose are laid off from
+	 * the particle and looked up in the likelihood field.
+	 * @param points - x, y pairs, in cm, as the robot placed them
+	 * @param offset - where the first x is in points
+	 * @param pairs - the number of points; at most MAX_BATCH are used,
+	 * evenly spread
+	 */
+	public void sense(float[] points, int offset, int pairs) {
+		if (!isStarted || pairs <= 0) {
+			return;
+		}
+		int stride = (pairs + MAX_BATCH - 1) / MAX_BATCH;
+		measured = 0;
+		for (int i = 0; i < pairs; i += stride) {
+			float dx = points[offset + 2 * i] - odometryX;
+			float dy = points[offset + 2 * i + 1] - odometryY;
+			float range = (float) Math.sqrt(dx * dx + dy * dy);
+			if (range > 0 && range <= MAX_RANGE) {
+				double bearing = Math.atan2(dy, dx) - odometryHeading;
+				forwards[measured] = range * (float) Math.cos(bearing);
+				lefts[measured] = range * (float) Math.sin(bearing);
+				measured++;
+			}
+		}
+		if (measured == 0) {
+			return;
+		}
+		run(WEIGHT);
+		double sum = 0;
+		for (int c = 0; c < chunks; c++) {
+			sum += partials[c * SUMS];
+		}
+		if (sum > 0 && !Double.isInfinite(sum)) {
+			scale = (float) (count / sum);
+		}
+		else { // nothing fits; forget the weights rather than divide by 0
+			for (int i = 0; i < count; i++) {
+				weights[i] = 1;
+			}
+			scale = 1;
+		}
+	}
+
+	/**
+	 * Resamples if too few particles carry the weight, then publishes the
+	 * estimate and a sample of the cloud.
+	 * @return true if the cloud was resampled
+	 */
+	public boolean update() {
+		if (!isStarted) {
+			return false;
+		}
+		run(ESTIMATE);
+		for (int k = 0; k < SUMS; k++) {
+			sums[k] = 0;
+		}
+		for (int c = 0; c < chunks; c++) {
+			for (int k = 0; k < SUMS; k++) {
+				sums[k] += partials[c * SUMS + k];
+			}
+		}
+		boolean isResampling = false;
+		double total = sums[0];
+		if (total > 0) {
+			double meanX = sums[1] / total;
+			double meanY = sums[2] / total;
+			synchronized (snapshotLock) {
+				estimate[0] = (float) meanX;
+				estimate[1] = (float) meanY;
+				estimate[2] = (float) Math.toDegrees(Math.atan2(sums[3], sums[4]));
+				estimate[3] = (float) (sums[5] / total - meanX * meanX);
+				estimate[4] = (float) (sums[6] / total - meanX * meanY);
+				estimate[5] = (float) (sums[7] / total - meanY * meanY);
+			}
+			// effective number of particles, from the sum of squared weights
+			double squared = 0;
+			for (int c = 0; c < chunks; c++) {
+				squared += squares[c];
+			}
+			isResampling = total * total / squared < count / 2.0;
+		}
+		if (isResampling) {
+			resample();
+		}
+		synchronized (snapshotLock) {
+			int stride = Math.max(1, count / MAX_DRAWN);
+			drawn = 0;
+			for (int i = 0; i < count && drawn < MAX_DRAWN; i += stride) {
+				drawnX[drawn] = xs[i];
+				drawnY[drawn] = ys[i];
+				drawn++;
+			}
+		}
+		updates++;
+		return isResampling;
+	}
+
+	/**
+	 * Systematic resampling: count evenly spaced draws, from one random
+	 * start, through the running total of the weights.
+	 */
+	private void resample() {
+		run(PREFIX);
+		chunkStarts[0] = 0;
+		for (int c = 0; c < chunks; c++) {
+			chunkStarts[c + 1] = chunkStarts[c] + partials[c * SUMS];
+		}
+		drawStep = chunkStarts[chunks] / count;
+		drawStart = random.nextDouble() * drawStep;
+		run(DRAW);
+		float[] swap = xs;
+		xs = nextXs;
+		nextXs = swap;
+		swap = ys;
+		ys = nextYs;
+		nextYs = swap;
+		swap = headings;
+		headings = nextHeadings;
+		nextHeadings = swap;
+		scale = 1;
+	}
+
+	/**
+	 * Runs a pass over every chunk, in parallel if there is more than one.
+	 */
+	private void run(int pass) {
+		seed++;
+		if (chunks == 1) {
+			runChunk(pass, 0);
+		}
+		else {
+			if (pool == null) {
+				pool = new ForkJoinPool();
+			}
+			pool.invoke(new Pass(pass, 0, chunks));
+		}
+	}
+
+	/**
+	 * A pass over a range of chunks, halved until it is one chunk.
+	 */
+	private class Pass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int pass;
+		private final int from;
+		private final int to;
+
+		Pass(int pass, int from, int to) {
+			this.pass = pass;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from == 1) {
+				runChunk(pass, from);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Pass(pass, from, middle), new Pass(pass, middle, to));
+		}
+	}
+
+	private void runChunk(int pass, int chunk) {
+		int from = chunk * CHUNK;
+		int to = Math.min(count, from + CHUNK);
+		switch (pass) {
+		case MOTION:
+			moveChunk(chunk, from, to);
+			break;
+		case WEIGHT:
+			weighChunk(chunk, from, to);
+			break;
+		case PREFIX:
+			float running = 0;
+			for (int i = from; i < to; i++) {
+				running += weights[i];
+				cumulative[i] = running;
+			}
+			partials[chunk * SUMS] = running;
+			break;
+		case DRAW:
+			drawChunk(chunk, from, to);
+			break;
+		case ESTIMATE:
+			estimateChunk(chunk, from, to);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void moveChunk(int chunk, int from, int to) {
+		int state = (seed * 0x9E3779B9) ^ (chunk * 0x85EBCA6B) | 1;
+		for (int i = from; i < to; i++) {
+			state ^= state << 13;
+			state ^= state >>> 17;
+			state ^= state << 5;
+			float h = headings[i] + rotation1 + sigmaRotation1 * GAUSSIAN[state & (GAUSSIANS - 1)];
+			float t = travel + sigmaTravel * GAUSSIAN[(state >>> 12) & (GAUSSIANS - 1)];
+			xs[i] += t * cos(h);
+			ys[i] += t * sin(h);
+			headings[i] = wrap(h + rotation2 + sigmaRotation2 * GAUSSIAN[(state >>> 20) & (GAUSSIANS - 1)]);
+		}
+	}
+
+	private void weighChunk(int chunk, int from, int to) {
+		float[] likelihoods = field;
+		double sum = 0;
+		for (int i = from; i < to; i++) {
+			float w = weights[i] * scale;
+			float cosine = cos(headings[i]);
+			float sine = sin(headings[i]);
+			// cell origin offsets, plus a half for rounding
+			float x = xs[i] - OccupancyGrid.XMIN + 0.5f;
+			float y = ys[i] - OccupancyGrid.YMIN + 0.5f;
+			for (int k = 0; k < measured; k++) {
+				// the point at range along the heading turned by the bearing
+				int column = (int) (x + cosine * forwards[k] - sine * lefts[k]);
+				int row = (int) (y + sine * forwards[k] + cosine * lefts[k]);
+				if (column >= 0 && column < OccupancyGrid.COLUMNS && row >= 0 && row < OccupancyGrid.ROWS) {
+					w *= likelihoods[row * OccupancyGrid.COLUMNS + column];
+				}
+				else {
+					w *= Z_RANDOM;
+				}
+			}
+			weights[i] = w;
+			sum += w;
+		}
+		partials[chunk * SUMS] = sum;
+	}
+
+	/**
+	 * Copies the particles this chunk's draws land on, and gives each the
+	 * same weight.
+	 */
+	private void drawChunk(int chunk, int from, int to) {
+		double target = drawStart + from * drawStep;
+		// the chunk the first draw lands in, then walk to the particle
+		int low = 0;
+		int high = chunks - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (chunkStarts[middle] <= target) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		int source = low * CHUNK;
+		for (int i = from; i < to; i++, target += drawStep) {
+			while (source < count - 1) {
+				int c = source / CHUNK;
+				if (chunkStarts[c] + cumulative[source] > target) {
+					break;
+				}
+				source++;
+			}
+			nextXs[i] = xs[source];
+			nextYs[i] = ys[source];
+			nextHeadings[i] = headings[source];
+			weights[i] = 1;
+		}
+	}
+
+	private void estimateChunk(int chunk, int from, int to) {
+		double w = 0;
+		double wx = 0;
+		double wy = 0;
+		double wsin = 0;
+		double wcos = 0;
+		double wxx = 0;
+		double wxy = 0;
+		double wyy = 0;
+		double ww = 0;
+		for (int i = from; i < to; i++) {
+			float weight = weights[i];
+			float x = xs[i];
+			float y = ys[i];
+			w += weight;
+			wx += weight * x;
+			wy += weight * y;
+			wsin += weight * sin(headings[i]);
+			wcos += weight * cos(headings[i]);
+			wxx += weight * x * x;
+			wxy += weight * x * y;
+			wyy += weight * y * y;
+			ww += (double) weight * weight;
+		}
+		int at = chunk * SUMS;
+		partials[at] = w;
+		partials[at + 1] = wx;
+		partials[at + 2] = wy;
+		partials[at + 3] = wsin;
+		partials[at + 4] = wcos;
+		partials[at + 5] = wxx;
+		partials[at + 6] = wxy;
+		partials[at + 7] = wyy;
+		squares[chunk] = ww;
+	}
+
+	/**
+	 * Starts the filter thread and its pool. The cloud starts again about the
+	 * first POS_UPDATE accepted after this; anything left from before the
+	 * last stop() is dropped, as are the counts. Add the filter as a sink
+	 * only once it has started.
+	 */
+	public void start() {
+		if (thread != null) {
+			return;
+		}
+		ring.drain(new TelemetrySink() {
+			public boolean accept(long timeNanos, int type, float[] values, int count) {
+				return true; // stale; the robot has moved on
+			}
+		}, RING_CAPACITY);
+		isStarted = false;
+		updates = 0;
+		dropped = 0;
+		if (pool == null) {
+			pool = new ForkJoinPool();
+		}
+		isRunning = true;
+		thread = new Thread(this, "ParticleFilter");
+		thread.setDaemon(true);
+		thread.start();
+		log.info("Localizing with " + count + " particles on " + pool.getParallelism() + " threads");
+	}
+
+	/**
+	 * Stops the filter thread and shuts its pool down; the last estimate
+	 * stays published. Remove the filter as a sink first.
+	 */
+	public void stop() {
+		isRunning = false;
+		if (thread != null) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Queues odometry and sonar points for the filter thread; called from the
+	 * Reader thread and never blocks.
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		MessageType header = MessageType.of(type);
+		if (header == null) {
+			return true;
+		}
+		switch (header) {
+		case POS_UPDATE:
+		case WALL:
+		case ECHO:
+		case EXPLORE_RECEIVED:
+		case SCAN_BATCH:
+			if (!ring.offer(timeNanos, type, values, count)) {
+				dropped++;
+				return false;
+			}
+			break;
+		default:
+			break;
+		}
+		return true;
+	}
+
+	public void run() {
+		Handler handler = new Handler();
+		try {
+			while (isRunning) {
+				if (ring.drain(handler, RING_CAPACITY) == 0) {
+					LockSupport.parkNanos(1000000L);
+					continue;
+				}
+				handler.flush();
+				update();
+			}
+		}
+		catch (RuntimeException e) {
+			log.error("Localization failed", e);
+		}
+		finally {
+			isRunning = false;
+		}
+	}
+
+	/**
+	 * Applies drained messages on the filter thread, moving the particles
+	 * once for a run of POS_UPDATEs rather than once each.
+	 */
+	private class Handler implements TelemetrySink {
+		private boolean isMoving = false; // odometry not applied yet
+		private float x;
+		private float y;
+		private float heading;
+
+		public boolean accept(long timeNanos, int type, float[] values, int count) {
+			MessageType header = MessageType.of(type);
+			if (header == MessageType.POS_UPDATE) {
+				x = values[0];
+				y = values[1];
+				heading = values[2];
+				isMoving = true;
+				return true;
+			}
+			flush(); // points are seen from the latest pose
+			if (header == MessageType.SCAN_BATCH) {
+				// source type, then x, y pairs
+				sense(values, 1, (count - 1) / 2);
+			}
+			else {
+				sense(values, 0, 1);
+			}
+			return true;
+		}
+
+		void flush() {
+			if (isMoving) {
+				move(x, y, heading);
+				isMoving = false;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages dropped because the filter fell behind,
+	 * since start()
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of updates published since start()
+	 */
+	public long getUpdateCount() {
+		return updates;
+	}
+
+	public int getParticleCount() {
+		return count;
+	}
+
+	/**
+	 * Copies out the latest estimate.
+	 * @param into - receives mean x, y and heading in degrees, then the
+	 * covariance of x and y: xx, xy, yy
+	 */
+	public void getEstimate(float[] into) {
+		synchronized (snapshotLock) {
+			System.arraycopy(estimate, 0, into, 0, estimate.length);
+		}
+	}
+
+	/**
+	 * Copies out the sample of the cloud last published.
+	 * @param intoX - receives x of each particle drawn; MAX_DRAWN long
+	 * @param intoY - receives y of each
+	 * @return the number of particles drawn
+	 */
+	public int getParticles(float[] intoX, float[] intoY) {
+		synchronized (snapshotLock) {
+			System.arraycopy(drawnX, 0, intoX, 0, drawn);
+			System.arraycopy(drawnY, 0, intoY, 0, drawn);
+			return drawn;
+		}
+	}
+
+	private static float sin(float radians) {
+		return SINE[(int) (radians * SINE_SCALE) & (SINES - 1)];
+	}
+
+	private static float cos(float radians) {
+		return SINE[((int) (radians * SINE_SCALE) + SINES / 4) & (SINES - 1)];
+	}
+
+	/**
+	 * @return an angle brought into -pi to pi
+	 */
+	private static float wrap(float radians) {
+		while (radians > Math.PI) {
+			radians -= TWO_PI;
+		}
+		while (radians < -Math.PI) {
+			radians += TWO_PI;
+		}
+		return radians;
+	}
+
+	private static float[] sines() {
+		float[] table = new float[SINES];
+		for (int i = 0; i < SINES; i++) {
+			table[i] = (float) Math.sin((i + 0.5) * 2 * Math.PI / SINES);
+		}
+		return table;
+	}
+
+	private static float[] gaussians() {
+		Random random = new Random(1);
+		float[] table = new float[GAUSSIANS];
+		for (int i = 0; i < GAUSSIANS; i++) {
+			table[i] = (float) random.nextGaussian();
+		}
+		return table;
+	}
+}
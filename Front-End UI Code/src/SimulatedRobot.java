@@ -0,0 +1,732 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A stand-in for the NXT robot that speaks the MessageType int/float protocol
+ * over a local TCP socket. Each telemetry MessageType can be emitted at its own
+ * rate so the Reader, the drawing code and the GUI can be load tested without
+ * a physical robot.
+ *
+ * Run stand-alone with:
+ * 	java SimulatedRobot [port] [POS_UPDATE=hz] [WALL=hz] [STD_DEV=hz] ...
+ * then connect the GUI to "tcp:localhost:port", or connect to "sim" to start
+ * one in-process. Like a robot with current firmware, it answers a HELLO: it
+ * agrees to WireFrame version 2, framing everything in both directions, and
+ * to CompactPose encodings of its poses if the PC offers them. A SUBSCRIBE
+ * changes the rate of a telemetry type, or puts back the one setRate() gave. If sequence
+ * numbers are agreed it answers each command with an ACK, and with a DONE
+ * once a GOTO arrives or is cut short, or at once for anything else. It
+ * runs uploaded missions step by step, reporting each step's progress.
+ * DRIVE setpoints are followed until GridControlCommunicator.DRIVE_TIMEOUT
+ * passes without one; after being driven it stays where it was left.
+ * @author Corey Short
+ */
+public class SimulatedRobot implements Runnable {
+
+	public static final int DEFAULT_PORT = 7360;
+	private static final EventLog log = new EventLog("SimulatedRobot");
+
+	/**
+	 * Arena bounds in cm, matching the grid drawn by OffScreenDrawing.
+	 */
+	private static final float XMIN = -292;
+	private static final float XMAX = 278;
+	private static final float YMAX = 238;
+	private static final float SPEED = 30; // cm per second towards a GOTO target
+	private static final int SWEEP_POINTS = 36; // points in one SCAN_BATCH
+
+	private ServerSocket server;
+	private Thread thread;
+	private volatile boolean isRunning = false;
+	private volatile Socket client;
+	private volatile Thread commandReader; // reads the current client's commands
+	private static final long DISCONNECT_WAIT = 200; // ms a failed write waits for the reader
+
+	/**
+	 * Messages per second for each MessageType, indexed by ordinal.
+	 */
+	private final float[] rates = new float[MessageType.count()];
+	private final float[] defaultRates = new float[rates.length]; // as set by setRate()
+	private final long[] nextDue = new long[rates.length];
+	private final Object rateLock = new Object(); // guards rates and nextDue
+	private final Random random = new Random(42);
+
+	private volatile float x = 0;
+	private volatile float y = 30;
+	private volatile float heading = 90;
+	private volatile float targetX = Float.NaN;
+	private volatile float targetY = Float.NaN;
+	private volatile float driveSpeed = 0; // cm per second, from the last DRIVE
+	private volatile float driveTurnRate = 0; // degrees per second
+	private volatile long driveUntil = 0; // ms; DRIVE is followed until then
+	private volatile boolean isParked = false; // no laps once driven by hand
+	private final AtomicInteger pendingEchoes = new AtomicInteger();
+	private final AtomicInteger pendingMapSweeps = new AtomicInteger(); // answers to SEND_MAP
+	private final AtomicInteger pendingExploreSweeps = new AtomicInteger(); // answers to EXPLORE
+	private MessageType sweepSource = MessageType.WALL; // what the next sweep's points are; emit thread only
+	private long messagesSent = 0;
+	private volatile boolean isHelloPending = false; // a HELLO awaits its reply
+	private volatile boolean isDisconnected = false; // the PC said DISCONNECT on this link
+	private volatile int agreedFraming = 1; // what the reply will agree to
+	private volatile int agreedCapabilities = 0;
+	private int framing = 1; // the wire format emit() writes; emit thread only
+	private CompactPose.Encoder poseEncoder; // null unless compact poses were agreed; emit thread only
+	private volatile long bytesSent = 0;
+	private final ConcurrentLinkedQueue<int[]> replies = new ConcurrentLinkedQueue<int[]>(); // type, sequence, status
+	private final AtomicInteger gotoSequence = new AtomicInteger(-1); // the GOTO under way, if sequenced
+	private int[] reply; // the reply being written; emit thread only
+	private final Object missionLock = new Object(); // guards the mission fields
+	private float[] missionSteps = new float[0]; // MissionStep.FLOATS per step
+	private int missionId = -1;
+	private volatile int missionLength = 0; // 0 while no mission is running
+	private int missionStep = -1; // the step under way
+	private final Scratch payload = new Scratch();
+	private final DataOutputStream payloadOut = new DataOutputStream(payload);
+	private final CRC32 crc = new CRC32();
+	private final byte[] frame = new byte[WireFrame.HEADER_SIZE + WireFrame.MAX_PAYLOAD + WireFrame.CRC_SIZE];
+
+	/**
+	 * Creates a simulator listening on the given localhost port; 0 picks a free port.
+	 * Sends POS_UPDATE at 10 Hz until told otherwise.
+	 */
+	public SimulatedRobot(int port) throws IOException {
+		server = new ServerSocket(port, 1, InetAddress.getByName("localhost"));
+		setRate(MessageType.POS_UPDATE, 10);
+	}
+
+	/**
+	 * Launch a stand-alone simulator.
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int first = 0;
+		if (args.length > 0 && args[0].indexOf('=') < 0) {
+			port = Integer.parseInt(args[0]);
+			first = 1;
+		}
+		SimulatedRobot robot = new SimulatedRobot(port);
+		for (int i = first; i < args.length; i++) {
+			String[] rate = args[i].split("=");
+			robot.setRate(MessageType.valueOf(rate[0]), Float.parseFloat(rate[1]));
+		}
+		System.out.println("Simulated robot listening on port " + robot.getPort());
+		robot.run();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Sets how often the simulator emits a telemetry message.
+	 * @param type - POS_UPDATE, STD_DEV, WALL, ECHO, EXPLORE_RECEIVED, CRASH
+	 * or SCAN_BATCH
+	 * @param messagesPerSecond - 0 to stop sending the type
+	 */
+	public void setRate(MessageType type, float messagesPerSecond) {
+		defaultRates[type.ordinal()] = messagesPerSecond;
+		subscribe(type, messagesPerSecond);
+	}
+
+	/**
+	 * Changes the rate of a type for the PC; setRate() still decides the
+	 * rate it goes back to.
+	 * @param messagesPerSecond - 0 to stop sending the type, or
+	 * GridControlCommunicator.ROBOT_RATE for the rate setRate() gave
+	 */
+	private void subscribe(MessageType type, float messagesPerSecond) {
+		if (messagesPerSecond < 0) {
+			messagesPerSecond = defaultRates[type.ordinal()];
+		}
+		synchronized (rateLock) {
+			rates[type.ordinal()] = messagesPerSecond;
+			nextDue[type.ordinal()] = 0;
+		}
+	}
+
+	/**
+	 * @return the number of telemetry messages written since the simulator started
+	 */
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * @return the bytes written since the simulator started, headers and
+	 * framing included
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Starts serving connections on a background thread.
+	 */
+	public void start() {
+		thread = new Thread(this, "SimulatedRobot");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the simulator and closes the listening socket.
+	 */
+	public void stop() {
+		isRunning = false;
+		try {
+			server.close();
+			if (client != null) {
+				client.close();
+			}
+		}
+		catch (IOException e) {
+			log.warn("Close failed", e);
+		}
+	}
+
+	/**
+	 * Accepts one client at a time and streams telemetry to it until it
+	 * disconnects.
+	 */
+	public void run() {
+		isRunning = true;
+		while (isRunning) {
+			try {
+				client = server.accept();
+				client.setTcpNoDelay(true);
+				framing = 1;
+				poseEncoder = null;
+				isHelloPending = false;
+				isDisconnected = false;
+				DataOutputStream dataOut = new DataOutputStream(
+						new BufferedOutputStream(client.getOutputStream(), 8192));
+				commandReader = startCommandReader(new DataInputStream(
+						new BufferedInputStream(client.getInputStream())));
+				emit(dataOut);
+			}
+			catch (IOException e) {
+				// a write fails as the PC hangs up; give its DISCONNECT time to be read
+				Thread reading = commandReader;
+				if (reading != null) {
+					try {
+						reading.join(DISCONNECT_WAIT);
+					}
+					catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				connectionLost(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes every message that has come due, flushes once, then sleeps until
+	 * the next one is due.
+	 */
+	private void emit(DataOutputStream dataOut) throws IOException {
+		long start = System.nanoTime();
+		long last = start;
+		synchronized (rateLock) {
+			for (int i = 0; i < nextDue.length; i++) {
+				nextDue[i] = start;
+			}
+		}
+		while (isRunning && !client.isClosed()) {
+			long now = System.nanoTime();
+			advanceMission();
+			move((now - last) / 1e9f);
+			last = now;
+			boolean wrote = false;
+			if (isHelloPending) {
+				isHelloPending = false;
+				int capabilities = agreedCapabilities;
+				dataOut.writeInt(MessageType.HELLO.ordinal()); // the reply is unframed
+				dataOut.writeFloat(agreedFraming);
+				dataOut.writeFloat(capabilities);
+				bytesSent += 12;
+				framing = agreedFraming;
+				if ((capabilities & CompactPose.CAPABILITY_COMPACT) != 0) {
+					poseEncoder = new CompactPose.Encoder((capabilities & CompactPose.CAPABILITY_DELTA) != 0);
+				}
+				wrote = true;
+			}
+			long earliest = now + 10000000L;
+			for (int i = 0; i < rates.length; i++) {
+				int due = 0;
+				synchronized (rateLock) {
+					if (rates[i] <= 0) {
+						continue;
+					}
+					long period = (long) (1e9 / rates[i]);
+					if (now - nextDue[i] > 1000000000L) {
+						nextDue[i] = now; // fell more than a second behind; do not burst
+					}
+					while (nextDue[i] <= now) {
+						nextDue[i] += period;
+						due++;
+					}
+					earliest = Math.min(earliest, nextDue[i]);
+				}
+				for (; due > 0; due--) {
+					writeMessage(dataOut, MessageType.of(i));
+					wrote = true;
+				}
+			}
+			while (pendingEchoes.get() > 0) {
+				pendingEchoes.decrementAndGet();
+				writeMessage(dataOut, MessageType.ECHO);
+				wrote = true;
+			}
+			wrote |= writeSweeps(dataOut, pendingMapSweeps, MessageType.WALL);
+			wrote |= writeSweeps(dataOut, pendingExploreSweeps, MessageType.EXPLORE_RECEIVED);
+			while ((reply = replies.poll()) != null) {
+				writeMessage(dataOut, MessageType.of(reply[0]));
+				wrote = true;
+			}
+			sweepSource = MessageType.WALL; // for sweeps sent at a rate
+			if (wrote) {
+				dataOut.flush();
+			}
+			long sleepMillis = (earliest - System.nanoTime()) / 1000000L;
+			if (sleepMillis > 0) {
+				try {
+					Thread.sleep(sleepMillis);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the sweeps asked for by commands.
+	 * @param pending - the number of sweeps owed; counted down here
+	 * @param source - the type the sweep's points stand for
+	 * @return true if anything was written
+	 */
+	private boolean writeSweeps(DataOutputStream dataOut, AtomicInteger pending, MessageType source)
+			throws IOException {
+		boolean wrote = false;
+		sweepSource = source;
+		while (pending.get() > 0) {
+			pending.decrementAndGet();
+			writeMessage(dataOut, MessageType.SCAN_BATCH);
+			wrote = true;
+		}
+		return wrote;
+	}
+
+	/**
+	 * Advances the simulated pose: straight towards a GOTO target if there is
+	 * one, otherwise a slow lap around the arena.
+	 */
+	private void move(float seconds) {
+		if (System.currentTimeMillis() < driveUntil) {
+			heading = (heading + driveTurnRate * seconds) % 360;
+			double theta = Math.toRadians(heading);
+			x += driveSpeed * seconds * (float) Math.cos(theta);
+			y += driveSpeed * seconds * (float) Math.sin(theta);
+		}
+		else if (!Float.isNaN(targetX)) {
+			float dx = targetX - x;
+			float dy = targetY - y;
+			float dist = (float) Math.sqrt(dx * dx + dy * dy);
+			float step = SPEED * seconds;
+			heading = (float) Math.toDegrees(Math.atan2(dy, dx));
+			if (dist <= step) {
+				x = targetX;
+				y = targetY;
+				targetX = Float.NaN;
+				finish(gotoSequence.getAndSet(-1), InFlightCommands.STATUS_OK);
+			}
+			else {
+				x += dx / dist * step;
+				y += dy / dist * step;
+			}
+		}
+		else if (missionLength == 0 && !isParked) {
+			heading = (heading + 10 * seconds) % 360;
+			double theta = Math.toRadians(heading - 90);
+			x = (float) (150 * Math.cos(theta));
+			y = (float) (119 + 80 * Math.sin(theta));
+		}
+	}
+
+	/**
+	 * Replaces any running mission with a new one; a repeat of the running
+	 * mission is ignored.
+	 * @param steps - MissionStep.FLOATS per step
+	 */
+	private void startMission(int id, float[] steps) {
+		synchronized (missionLock) {
+			if (id == missionId && missionLength > 0) {
+				return;
+			}
+			abortMission();
+			missionId = id;
+			missionSteps = steps;
+			missionStep = -1;
+			missionLength = steps.length / MissionStep.FLOATS;
+		}
+	}
+
+	/**
+	 * Ends the running mission, if any, where it is.
+	 */
+	private void abortMission() {
+		synchronized (missionLock) {
+			if (missionLength > 0 && missionStep >= 0) {
+				progress(missionStep, MissionStep.ABORTED);
+			}
+			missionLength = 0;
+			missionStep = -1;
+		}
+	}
+
+	/**
+	 * Finishes the mission step under way once the robot has arrived, and
+	 * starts the next; emit thread only.
+	 */
+	private void advanceMission() {
+		synchronized (missionLock) {
+			if (missionLength == 0) {
+				return;
+			}
+			if (missionStep >= 0) {
+				if (!Float.isNaN(targetX)) {
+					return; // still driving
+				}
+				progress(missionStep, MissionStep.FINISHED);
+			}
+			missionStep++;
+			if (missionStep == missionLength) {
+				missionLength = 0;
+				missionStep = -1;
+				return;
+			}
+			progress(missionStep, MissionStep.STARTED);
+			int at = missionStep * MissionStep.FLOATS;
+			MessageType type = MessageType.of((int) missionSteps[at]);
+			float a = missionSteps[at + 1];
+			float b = missionSteps[at + 2];
+			if (type == null) {
+				return;
+			}
+			switch (type) {
+			case GOTO:
+				finish(gotoSequence.getAndSet(-1), InFlightCommands.STATUS_ABORTED);
+				targetX = a;
+				targetY = b;
+				break;
+			case ROTATE:
+				heading = (heading + a) % 360;
+				break;
+			case TRAVEL:
+				targetX = x + a * (float) Math.cos(Math.toRadians(heading));
+				targetY = y + a * (float) Math.sin(Math.toRadians(heading));
+				break;
+			case EXPLORE:
+				pendingExploreSweeps.incrementAndGet();
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Queues a MISSION_PROGRESS for a step of the running mission.
+	 */
+	private void progress(int step, int state) {
+		replies.add(new int[] { MessageType.MISSION_PROGRESS.ordinal(), missionId, step, state });
+	}
+
+	/**
+	 * Queues a DONE for a sequenced command.
+	 * @param sequence - -1 if the command had no sequence number
+	 */
+	private void finish(int sequence, int status) {
+		if (sequence >= 0) {
+			replies.add(new int[] { MessageType.DONE.ordinal(), sequence, status });
+		}
+	}
+
+	/**
+	 * Writes one message in the same layout the Reader expects, framed if
+	 * version 2 was agreed.
+	 */
+	private void writeMessage(DataOutputStream dataOut, MessageType type) throws IOException {
+		if (poseEncoder != null) {
+			if (type == MessageType.POS_UPDATE) {
+				type = poseEncoder.choose(x, y, heading);
+			}
+			else if (type == MessageType.STD_DEV) {
+				type = MessageType.STD_DEV_COMPACT;
+			}
+		}
+		if (framing == WireFrame.VERSION) {
+			payload.reset();
+			writePayload(payloadOut, type);
+			int length = WireFrame.encode(type.ordinal(), payload.array(), 0, payload.size(), crc, frame);
+			dataOut.write(frame, 0, length);
+			bytesSent += length;
+		}
+		else {
+			int before = dataOut.size();
+			dataOut.writeInt(type.ordinal());
+			writePayload(dataOut, type);
+			bytesSent += dataOut.size() - before;
+		}
+		messagesSent++;
+	}
+
+	private void writePayload(DataOutputStream dataOut, MessageType type) throws IOException {
+		switch (type) {
+		case POS_UPDATE:
+			dataOut.writeFloat(x);
+			dataOut.writeFloat(y);
+			dataOut.writeFloat(heading);
+			break;
+		case POSE_COMPACT:
+		case POSE_DELTA:
+			poseEncoder.writePayload(dataOut);
+			break;
+		case STD_DEV_COMPACT:
+			CompactPose.writeStdDev(dataOut, x, y, heading,
+					1 + random.nextFloat(), 1 + random.nextFloat(), 2 * random.nextFloat());
+			break;
+		case STD_DEV:
+			dataOut.writeFloat(x);
+			dataOut.writeFloat(y);
+			dataOut.writeFloat(heading);
+			dataOut.writeFloat(1 + random.nextFloat());
+			dataOut.writeFloat(1 + random.nextFloat());
+			dataOut.writeFloat(2 * random.nextFloat());
+			break;
+		case CRASH:
+			dataOut.writeFloat(x);
+			dataOut.writeFloat(y);
+			break;
+		case WALL:
+		case ECHO:
+		case EXPLORE_RECEIVED:
+			writeWallPoint(dataOut);
+			break;
+		case ACK:
+			dataOut.writeFloat(reply[1]);
+			break;
+		case DONE:
+			dataOut.writeFloat(reply[1]);
+			dataOut.writeFloat(reply[2]);
+			break;
+		case MISSION_PROGRESS:
+			dataOut.writeFloat(reply[1]);
+			dataOut.writeFloat(reply[2]);
+			dataOut.writeFloat(reply[3]);
+			break;
+		case SCAN_BATCH:
+			dataOut.writeFloat(sweepSource.ordinal());
+			dataOut.writeInt(SWEEP_POINTS);
+			for (int i = 0; i < SWEEP_POINTS; i++) {
+				writeWallPoint(dataOut);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Writes a point somewhere along the arena boundary, as if the scanner
+	 * had just pinged a wall.
+	 */
+	private void writeWallPoint(DataOutputStream dataOut) throws IOException {
+		float wx;
+		float wy;
+		if (random.nextBoolean()) {
+			wx = XMIN + random.nextFloat() * (XMAX - XMIN);
+			wy = random.nextBoolean() ? 0 : YMAX;
+		}
+		else {
+			wx = random.nextBoolean() ? XMIN : XMAX;
+			wy = random.nextFloat() * YMAX;
+		}
+		dataOut.writeFloat(wx);
+		dataOut.writeFloat(wy);
+	}
+
+	/**
+	 * Consumes the commands sent by GridControlCommunicator so its writes
+	 * never block, and reacts to the few that change the simulated pose.
+	 */
+	private Thread startCommandReader(final DataInputStream link) {
+		Thread commandReader = new Thread("SimulatedRobot commands") {
+			public void run() {
+				FrameReader frames = null; // once version 2 is agreed
+				int sequence = -1; // from a SEQ, for the command that follows it
+				try {
+					while (isRunning) {
+						DataInputStream dataIn = link;
+						MessageType type;
+						if (frames != null) {
+							type = MessageType.of(frames.next());
+							dataIn = frames.getPayload();
+						}
+						else {
+							type = MessageType.of(link.readInt());
+						}
+						if (type == null) {
+							continue;
+						}
+						if (type == MessageType.SEQ) {
+							sequence = (int) dataIn.readFloat();
+							continue;
+						}
+						int done = sequence; // answered with DONE once handled
+						switch (type) {
+						case GOTO:
+							targetX = dataIn.readFloat();
+							targetY = dataIn.readFloat();
+							int previous = gotoSequence.getAndSet(sequence);
+							if (previous != sequence) {
+								finish(previous, InFlightCommands.STATUS_ABORTED);
+							}
+							done = -1; // when it arrives
+							break;
+						case SET_POSE:
+							x = dataIn.readFloat();
+							y = dataIn.readFloat();
+							heading = dataIn.readFloat();
+							targetX = Float.NaN;
+							finish(gotoSequence.getAndSet(-1), InFlightCommands.STATUS_ABORTED);
+							break;
+						case DRIVE:
+							driveSpeed = dataIn.readFloat();
+							driveTurnRate = dataIn.readFloat();
+							targetX = Float.NaN;
+							isParked = true;
+							driveUntil = System.currentTimeMillis() + GridControlCommunicator.DRIVE_TIMEOUT;
+							break;
+						case STOP:
+							driveUntil = 0;
+							targetX = Float.NaN;
+							finish(gotoSequence.getAndSet(-1), InFlightCommands.STATUS_ABORTED);
+							abortMission();
+							break;
+						case MISSION:
+							int id = (int) dataIn.readFloat();
+							int steps = (int) dataIn.readFloat();
+							if (steps < 1 || steps > MissionStep.MAX_STEPS) {
+								break; // framed, the rest of the payload is skipped
+							}
+							float[] mission = new float[MissionStep.FLOATS * steps];
+							for (int i = 0; i < mission.length; i++) {
+								mission[i] = dataIn.readFloat();
+							}
+							startMission(id, mission);
+							break;
+						case ECHO:
+							dataIn.readFloat();
+							pendingEchoes.incrementAndGet();
+							break;
+						case TRAVEL:
+						case ROTATE:
+						case ROTATE_TO:
+							dataIn.readFloat();
+							break;
+						case EXPLORE:
+							dataIn.readFloat();
+							pendingExploreSweeps.incrementAndGet();
+							break;
+						case SEND_MAP:
+							dataIn.readFloat();
+							dataIn.readFloat();
+							dataIn.readFloat();
+							pendingMapSweeps.incrementAndGet();
+							break;
+						case SUBSCRIBE:
+							MessageType subscribed = MessageType.of((int) dataIn.readFloat());
+							float hz = dataIn.readFloat();
+							if (subscribed != null) {
+								subscribe(subscribed, hz);
+							}
+							break;
+						case HELLO:
+							int version = (int) dataIn.readFloat();
+							int offered = (int) dataIn.readFloat();
+							if (frames != null) {
+								break; // already agreed on this link
+							}
+							agreedFraming = version == WireFrame.VERSION ? WireFrame.VERSION : 1;
+							agreedCapabilities = offered & (CompactPose.CAPABILITY_COMPACT
+									| CompactPose.CAPABILITY_DELTA | InFlightCommands.CAPABILITY_SEQUENCE
+									| MissionStep.CAPABILITY_MISSION | Teleop.CAPABILITY_DRIVE
+									| GridControlCommunicator.CAPABILITY_SUBSCRIBE);
+							if (agreedFraming == WireFrame.VERSION) {
+								frames = new FrameReader(link, null);
+							}
+							isHelloPending = true;
+							break;
+						case DISCONNECT:
+							isDisconnected = true;
+							client.close();
+							return;
+						default:
+							break;
+						}
+						if (sequence >= 0) {
+							replies.add(new int[] { MessageType.ACK.ordinal(), sequence, 0 });
+							finish(done, InFlightCommands.STATUS_OK);
+							sequence = -1;
+						}
+					}
+				}
+				catch (EOFException e) {
+					// client went away
+				}
+				catch (IOException e) {
+					connectionLost(e);
+				}
+			}
+		};
+		commandReader.setDaemon(true);
+		commandReader.start();
+		return commandReader;
+	}
+
+	/**
+	 * Logs a failed read or write: quietly if the PC had said DISCONNECT or
+	 * the simulator is stopping, when it is the expected end of the link.
+	 */
+	private void connectionLost(IOException e) {
+		if (!isRunning || isDisconnected) {
+			log.debug("Connection closed: " + e.getMessage());
+		}
+		else {
+			log.warn("Connection lost", e);
+		}
+	}
+
+	/**
+	 * A byte buffer whose contents can be framed without copying.
+	 */
+	private static class Scratch extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+}
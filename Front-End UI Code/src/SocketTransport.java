@@ -0,0 +1,56 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Transport over a TCP socket. Used to talk to a SimulatedRobot, either one
+ * started in-process or one running in another JVM.
+ * The name passed to open() is "host:port", or just "port" for localhost.
+ * @author Corey Short
+ */
+public class SocketTransport implements Transport {
+	private static final EventLog log = new EventLog("SocketTransport");
+
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	public boolean open(String address) throws IOException {
+		close();
+		String host = "localhost";
+		String port = address;
+		int colon = address.lastIndexOf(':');
+		if (colon >= 0) {
+			host = address.substring(0, colon);
+			port = address.substring(colon + 1);
+		}
+		socket = new Socket(host, Integer.parseInt(port.trim()));
+		socket.setTcpNoDelay(true);
+		in = new BufferedInputStream(socket.getInputStream());
+		out = new BufferedOutputStream(socket.getOutputStream());
+		return true;
+	}
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				log.warn("Close failed", e);
+			}
+			socket = null;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * Every distinct point the robot has mapped, indexed by position. Points
+ * within MERGE_RADIUS of one already indexed are merged into it, counting
+ * one more hit, so a wall pinged a hundred times is one feature rather than
+ * a hundred. Lookups go through a uniform grid of BUCKET_SIZE cm buckets
+ * over the arena, each a linked list threaded through primitive arrays, so
+ * adding a point and finding the nearest to a click each look at a handful
+ * of buckets, and no point is an object. Points beyond the arena fall into
+ * its edge buckets. At most MAX_POINTS are kept; once that many are
+ * indexed, new points still merge into old ones but are otherwise ignored
+ * until clear().
+ *
+ * As a TelemetrySink the index sees every wall point, scan and crash on the
+ * Reader thread; queries may come from any thread.
+ * @author Corey Short
+ */
+public class SpatialIndex implements TelemetrySink {
+
+	/**
+	 * Points closer than this, in cm, to an indexed one are merged into it.
+	 */
+	public static final float MERGE_RADIUS = 2f;
+
+	/**
+	 * Width of a bucket, in cm; larger than MERGE_RADIUS, so a merge looks at
+	 * no more than four buckets.
+	 */
+	public static final int BUCKET_SIZE = 8;
+
+	/**
+	 * The most distinct points indexed; several times what the arena holds at
+	 * MERGE_RADIUS spacing, so only a robot lost far outside it reaches it.
+	 */
+	public static final int MAX_POINTS = 1 << 18;
+
+	private static final EventLog log = new EventLog("SpatialIndex");
+
+	private static final int BUCKET_COLUMNS = (OccupancyGrid.COLUMNS + BUCKET_SIZE - 1) / BUCKET_SIZE;
+	private static final int BUCKET_ROWS = (OccupancyGrid.ROWS + BUCKET_SIZE - 1) / BUCKET_SIZE;
+
+	private final int[] heads = new int[BUCKET_COLUMNS * BUCKET_ROWS]; // first point in each bucket, or -1
+	private int[] next; // the next point in the same bucket, or -1
+	private float[] xs;
+	private float[] ys;
+	private int[] hits;
+	private byte[] sources; // MessageType ordinals
+	private long[] firstSeen; // the time of the message that added each point
+	private int size = 0;
+	private boolean isFull = false; // warned that MAX_POINTS was reached
+
+	public SpatialIndex() {
+		allocate(1024);
+		clear();
+	}
+
+	/**
+	 * Forgets every point.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < heads.length; i++) {
+			heads[i] = -1;
+		}
+		size = 0;
+		isFull = false;
+	}
+
+	/**
+	 * Indexes a point, or merges it into one within MERGE_RADIUS.
+	 * @param source - the message the point came in
+	 * @param timeNanos - when it was received
+	 * @return the point it was indexed as, or -1 if it is new and MAX_POINTS
+	 * are already indexed
+	 */
+	public synchronized int add(float x, float y, MessageType source, long timeNanos) {
+		int found = find(x, y, MERGE_RADIUS);
+		if (found >= 0) {
+			hits[found]++;
+			return found;
+		}
+		if (size == MAX_POINTS) {
+			if (!isFull) {
+				log.warn("Holding " + MAX_POINTS + " points; ignoring new ones until cleared");
+				isFull = true;
+			}
+			return -1;
+		}
+		if (size == xs.length) {
+			allocate(Math.min(2 * size, MAX_POINTS));
+		}
+		int bucket = bucket(column(x), row(y));
+		xs[size] = x;
+		ys[size] = y;
+		hits[size] = 1;
+		sources[size] = (byte) source.ordinal();
+		firstSeen[size] = timeNanos;
+		next[size] = heads[bucket];
+		heads[bucket] = size;
+		return size++;
+	}
+
+	/**
+	 * @return true if a point received at the given time was merged into one
+	 * added by an earlier message, so it is nothing new
+	 */
+	public synchronized boolean isDuplicate(float x, float y, long timeNanos) {
+		int found = find(x, y, MERGE_RADIUS);
+		return found >= 0 && firstSeen[found] != timeNanos;
+	}
+
+	/**
+	 * Finds the indexed point nearest a position, looking outward a ring of
+	 * buckets at a time until no unvisited bucket could hold anything closer.
+	 * @param maxDistance - how far to look, in cm
+	 * @return the point, or -1 if there is none within maxDistance
+	 */
+	public synchronized int nearest(float x, float y, float maxDistance) {
+		int column = column(x);
+		int row = row(y);
+		int rings = (int) Math.ceil(maxDistance / BUCKET_SIZE);
+		int best = -1;
+		float bestSquared = maxDistance * maxDistance;
+		for (int ring = 0; ring <= rings; ring++) {
+			for (int c = column - ring; c <= column + ring; c++) {
+				boolean isEdge = c == column - ring || c == column + ring;
+				for (int r = row - ring; r <= row + ring; r += isEdge || ring == 0 ? 1 : 2 * ring) {
+					if (c < 0 || c >= BUCKET_COLUMNS || r < 0 || r >= BUCKET_ROWS) {
+						continue;
+					}
+					for (int i = heads[bucket(c, r)]; i >= 0; i = next[i]) {
+						float dx = xs[i] - x;
+						float dy = ys[i] - y;
+						float squared = dx * dx + dy * dy;
+						if (squared <= bestSquared) {
+							bestSquared = squared;
+							best = i;
+						}
+					}
+				}
+			}
+			// anything in the next ring is at least this far away
+			float reach = ring * (float) BUCKET_SIZE;
+			if (best >= 0 && bestSquared <= reach * reach) {
+				break;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Finds the indexed points inside a box.
+	 * @param into - receives the points found, as many as fit
+	 * @return the number of points in the box, which may be more than into
+	 * could hold
+	 */
+	public synchronized int query(float minX, float minY, float maxX, float maxY, int[] into) {
+		int found = 0;
+		int lastColumn = column(maxX);
+		int lastRow = row(maxY);
+		for (int c = column(minX); c <= lastColumn; c++) {
+			for (int r = row(minY); r <= lastRow; r++) {
+				for (int i = heads[bucket(c, r)]; i >= 0; i = next[i]) {
+					if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY) {
+						if (found < into.length) {
+							into[found] = i;
+						}
+						found++;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of distinct points indexed
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized float getX(int point) {
+		return xs[point];
+	}
+
+	public synchronized float getY(int point) {
+		return ys[point];
+	}
+
+	/**
+	 * @return how many reports were merged into the point, the first included
+	 */
+	public synchronized int getHits(int point) {
+		return hits[point];
+	}
+
+	/**
+	 * @return the message type the point first came in
+	 */
+	public synchronized MessageType getSource(int point) {
+		return MessageType.of(sources[point]);
+	}
+
+	/**
+	 * Indexes wall points, scans and crashes as they are decoded.
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		MessageType header = MessageType.of(type);
+		if (header == null) {
+			return true;
+		}
+		switch (header) {
+		case WALL:
+		case ECHO:
+		case EXPLORE_RECEIVED:
+		case CRASH:
+			add(values[0], values[1], header, timeNanos);
+			break;
+		case SCAN_BATCH:
+			// source type, then x, y pairs
+			MessageType source = MessageType.of((int) values[0]);
+			if (source == null) {
+				source = header;
+			}
+			for (int i = 1; i + 1 < count; i += 2) {
+				add(values[i], values[i + 1], source, timeNanos);
+			}
+			break;
+		default:
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the first point found closer than radius to a position, or -1
+	 */
+	private int find(float x, float y, float radius) {
+		float limit = radius * radius;
+		int lastColumn = column(x + radius);
+		int lastRow = row(y + radius);
+		for (int c = column(x - radius); c <= lastColumn; c++) {
+			for (int r = row(y - radius); r <= lastRow; r++) {
+				for (int i = heads[bucket(c, r)]; i >= 0; i = next[i]) {
+					float dx = xs[i] - x;
+					float dy = ys[i] - y;
+					if (dx * dx + dy * dy < limit) {
+						return i;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static int column(float x) {
+		int column = (int) Math.floor((x - OccupancyGrid.XMIN) / BUCKET_SIZE);
+		return Math.max(0, Math.min(BUCKET_COLUMNS - 1, column));
+	}
+
+	private static int row(float y) {
+		int row = (int) Math.floor((y - OccupancyGrid.YMIN) / BUCKET_SIZE);
+		return Math.max(0, Math.min(BUCKET_ROWS - 1, row));
+	}
+
+	private static int bucket(int column, int row) {
+		return row * BUCKET_COLUMNS + column;
+	}
+
+	/**
+	 * Grows the point arrays, keeping the points.
+	 */
+	private void allocate(int capacity) {
+		next = grow(next, capacity);
+		hits = grow(hits, capacity);
+		float[] grownX = new float[capacity];
+		float[] grownY = new float[capacity];
+		byte[] grownSources = new byte[capacity];
+		long[] grownSeen = new long[capacity];
+		if (size > 0) {
+			System.arraycopy(xs, 0, grownX, 0, size);
+			System.arraycopy(ys, 0, grownY, 0, size);
+			System.arraycopy(sources, 0, grownSources, 0, size);
+			System.arraycopy(firstSeen, 0, grownSeen, 0, size);
+		}
+		xs = grownX;
+		ys = grownY;
+		sources = grownSources;
+		firstSeen = grownSeen;
+	}
+
+	private int[] grow(int[] array, int capacity) {
+		int[] grown = new int[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, grown, 0, size);
+		}
+		return grown;
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Thins telemetry down to the rate the display wants before it reaches the
+ * TelemetryDispatcher, while the Reader still hands every message to the
+ * recorder and any other sink. Each MessageType has its own limit; a message
+ * arriving sooner than 1/rate after the last one forwarded is held back in
+ * place of any older one held. The dispatcher takes a held message at its
+ * next frame once the interval has passed, unless a newer one was forwarded
+ * first, so the last pose the robot sends is always shown.
+ * Types without a limit, such as walls and crashes, always pass, since
+ * losing one would lose part of the map rather than an in-between pose.
+ * accept() runs on the producer's thread and allocates nothing.
+ * @author Corey Short
+ */
+public class TelemetryDecimator implements TelemetrySink {
+
+	private final TelemetrySink downstream;
+	// ns per type, 0 for no limit; replaced whole by setRate(), never changed in place
+	private volatile long[] intervals = new long[MessageType.count()];
+	// the rest is guarded by this, being shared with the thread calling flush()
+	private final long[] lastForwarded = new long[MessageType.count()];
+	private final float[][] held = new float[MessageType.count()][]; // allocated when a type is limited
+	private final int[] heldCounts = new int[MessageType.count()]; // -1 if nothing is held
+	private final long[] heldTimes = new long[MessageType.count()];
+	private final float[] flushed = new float[TelemetryRing.MAX_FLOATS]; // used by flush() only
+	private volatile int heldTypes = 0;
+	private volatile long decimated = 0; // written by the producer only
+
+	/**
+	 * @param downstream - receives the messages that are kept
+	 */
+	public TelemetryDecimator(TelemetrySink downstream) {
+		this.downstream = downstream;
+		for (int i = 0; i < lastForwarded.length; i++) {
+			lastForwarded[i] = Long.MIN_VALUE / 2;
+			heldCounts[i] = -1;
+		}
+	}
+
+	/**
+	 * Sets the most messages of a type forwarded per second; may be called
+	 * from any thread while messages flow.
+	 * @param type - the MessageType to limit
+	 * @param messagesPerSecond - 0 to forward every message
+	 */
+	public synchronized void setRate(MessageType type, float messagesPerSecond) {
+		if (messagesPerSecond > 0 && held[type.ordinal()] == null) {
+			held[type.ordinal()] = new float[TelemetryRing.MAX_FLOATS];
+		}
+		long[] next = intervals.clone();
+		next[type.ordinal()] = messagesPerSecond <= 0 ? 0 : (long) (1e9 / messagesPerSecond);
+		intervals = next;
+	}
+
+	/**
+	 * @return the limit for a type in messages per second, 0 if none
+	 */
+	public float getRate(MessageType type) {
+		long interval = intervals[type.ordinal()];
+		return interval == 0 ? 0 : (float) (1e9 / interval);
+	}
+
+	/**
+	 * @return the number of messages dropped to keep to the limits; a held
+	 * message counts once a newer one replaces it
+	 */
+	public long getDecimatedCount() {
+		return decimated;
+	}
+
+	/**
+	 * @return true if the message was held back or downstream took it; false
+	 * if downstream was full
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		long[] limits = intervals;
+		if (type >= 0 && type < limits.length) {
+			long interval = limits[type];
+			if (interval > 0) {
+				synchronized (this) {
+					if (timeNanos - lastForwarded[type] < interval) {
+						hold(timeNanos, type, values, count);
+						return true;
+					}
+				}
+				if (!downstream.accept(timeNanos, type, values, count)) {
+					return false;
+				}
+				synchronized (this) {
+					lastForwarded[type] = timeNanos;
+					discard(type); // anything held is older than this
+				}
+				return true;
+			}
+			if (heldTypes > 0) {
+				synchronized (this) {
+					discard(type); // held before the limit was lifted
+				}
+			}
+		}
+		return downstream.accept(timeNanos, type, values, count);
+	}
+
+	/**
+	 * @return true if flush() would hand on a held message now
+	 */
+	public boolean isFlushDue(long nowNanos) {
+		if (heldTypes == 0) {
+			return false;
+		}
+		long[] limits = intervals;
+		synchronized (this) {
+			for (int type = 0; type < heldCounts.length; type++) {
+				if (heldCounts[type] >= 0 && nowNanos - lastForwarded[type] >= limits[type]) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands each held message whose interval has passed to a sink, as if it
+	 * had been forwarded. Called by the consumer of downstream, after it
+	 * has taken everything downstream holds, so a held message always
+	 * arrives after the older ones forwarded before it; only one thread may
+	 * call it.
+	 * @param into - where the messages go, normally downstream's consumer
+	 * @param nowNanos - the current System.nanoTime()
+	 */
+	public void flush(TelemetrySink into, long nowNanos) {
+		if (heldTypes == 0) {
+			return;
+		}
+		long[] limits = intervals;
+		for (int type = 0; type < heldCounts.length; type++) {
+			int count;
+			long time;
+			synchronized (this) {
+				count = heldCounts[type];
+				if (count < 0 || nowNanos - lastForwarded[type] < limits[type]) {
+					continue;
+				}
+				time = heldTimes[type];
+				System.arraycopy(held[type], 0, flushed, 0, count);
+				heldCounts[type] = -1;
+				heldTypes--;
+				lastForwarded[type] = time;
+			}
+			into.accept(time, type, flushed, count);
+		}
+	}
+
+	/**
+	 * Keeps a message in place of any older one of its type; holds the lock.
+	 */
+	private void hold(long timeNanos, int type, float[] values, int count) {
+		if (heldCounts[type] >= 0) {
+			decimated++;
+		}
+		else {
+			heldTypes++;
+		}
+		System.arraycopy(values, 0, held[type], 0, count);
+		heldCounts[type] = count;
+		heldTimes[type] = timeNanos;
+	}
+
+	/**
+	 * Drops the message held for a type, if any; holds the lock.
+	 */
+	private void discard(int type) {
+		if (heldCounts[type] >= 0) {
+			heldCounts[type] = -1;
+			heldTypes--;
+			decimated++;
+		}
+	}
+}
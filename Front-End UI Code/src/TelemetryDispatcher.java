@@ -0,0 +1,233 @@
+import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+/**
+ * Moves decoded robot messages from the Reader thread onto the Swing event
+ * thread. The Reader only drops each message into a lock-free TelemetryRing;
+ * once per frame a single task on the event thread drains everything pending,
+ * draws it in one pass, and lets the drawing repaint once.
+ * @author Corey Short
+ */
+public class TelemetryDispatcher implements TelemetrySink {
+
+	/**
+	 * Milliseconds between frames; about 60 Hz.
+	 */
+	public static final int FRAME_PERIOD = 16;
+	private static final int RING_CAPACITY = 8192;
+	private static final int KNOWN = 1 << 16; // or'd into a wall point's type if the index had it
+
+	private final MissionControlGUI control;
+	private final TelemetryRing ring = new TelemetryRing(RING_CAPACITY);
+	private final Timer timer;
+	private final Frame frame = new Frame();
+	private volatile long dropped = 0; // written by the Reader thread only
+	private TelemetryDecimator decimator; // holds back what the display rates skip; may be null
+	private volatile SpatialIndex features; // tells repeated wall points from new ones; may be null
+
+	// the last pose seen; used by the messages of types that carry no heading
+	private float x = 0;
+	private float y = 0;
+	private float heading = 0;
+
+	/**
+	 * @param control - the GUI that draws and lists the messages
+	 */
+	public TelemetryDispatcher(MissionControlGUI control) {
+		this.control = control;
+		timer = new Timer(FRAME_PERIOD, new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				drainFrame();
+			}
+		});
+		timer.setCoalesce(true);
+	}
+
+	/**
+	 * Takes the messages a decimator feeding this dispatcher held back, once
+	 * each is due, at the end of every frame; call before start().
+	 */
+	public void setDecimator(TelemetryDecimator decimator) {
+		this.decimator = decimator;
+	}
+
+	/**
+	 * Lists a wall point only if the index has nothing near it from an
+	 * earlier message. The Reader asks the index before queuing each point,
+	 * so the index must be a sink after this one, seeing the point only
+	 * once the dispatcher has checked it.
+	 * @param index - the features mapped so far; null to list every point
+	 */
+	public void setSpatialIndex(SpatialIndex index) {
+		features = index;
+	}
+
+	/**
+	 * Starts the per-frame drain on the Swing event thread.
+	 */
+	public void start() {
+		timer.start();
+	}
+
+	public void stop() {
+		timer.stop();
+	}
+
+	/**
+	 * Queues a message for the next frame; called from the Reader thread.
+	 * Never blocks: if the event thread has fallen a whole ring behind the
+	 * message is dropped and counted.
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		SpatialIndex index = features;
+		if (index != null && isWallPoint(type) && index.isDuplicate(values[0], values[1], timeNanos)) {
+			type |= KNOWN;
+		}
+		if (!ring.offer(timeNanos, type, values, count)) {
+			dropped++;
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isWallPoint(int type) {
+		return type == MessageType.WALL.ordinal() || type == MessageType.EXPLORE_RECEIVED.ordinal()
+				|| type == MessageType.ECHO.ordinal();
+	}
+
+	/**
+	 * @return the number of messages dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Draws everything that arrived since the last frame, then updates the
+	 * data fields and status line once with the latest values.
+	 */
+	private void drainFrame() {
+		long now = System.nanoTime();
+		boolean isFlushDue = decimator != null && decimator.isFlushDue(now);
+		if (ring.size() == 0 && !isFlushDue) {
+			return;
+		}
+		control.beginDrawing();
+		try {
+			frame.reset();
+			ring.drain(frame, ring.capacity());
+			if (isFlushDue) {
+				decimator.flush(frame, now);
+			}
+			if (frame.poseChanged) {
+				control.updateXAndYDataFields(x, y);
+			}
+			if (frame.kind != 0) {
+				control.setMessage(CoordinateLogModel.format(frame.kind, frame.a, frame.b, frame.c));
+			}
+		}
+		finally {
+			control.endDrawing();
+		}
+	}
+
+	/**
+	 * Applies each drained message to the GUI; runs on the event thread.
+	 * Nothing here allocates: messages go to the coordinate list as records,
+	 * and only the last one of the frame is formatted, for the status line.
+	 */
+	private class Frame implements TelemetrySink {
+		boolean poseChanged;
+		int kind; // the CoordinateLogModel kind of the status message, 0 for none
+		float a;
+		float b;
+		float c;
+
+		void reset() {
+			poseChanged = false;
+			kind = 0;
+		}
+
+		public boolean accept(long timeNanos, int type, float[] values, int count) {
+			boolean isKnown = (type & KNOWN) != 0;
+			MessageType header = MessageType.of(type & ~KNOWN);
+			if (header == null) {
+				return true;
+			}
+			switch (header) {
+			case POS_UPDATE:
+				x = values[0];
+				y = values[1];
+				heading = values[2];
+				control.drawRobotPath((int) x, (int) y, (int) heading);
+				report(CoordinateLogModel.POSITION, x, y, heading);
+				poseChanged = true;
+				break;
+			case CRASH:
+				control.drawObstacle((int) values[0], (int) values[1]);
+				report(CoordinateLogModel.CRASH, values[0], values[1], heading);
+				break;
+			case WALL:
+			case EXPLORE_RECEIVED:
+			case ECHO:
+				drawWall(isKnown, values, colorOf(header));
+				break;
+			case SCAN_BATCH:
+				// source type, then x, y pairs
+				int points = (count - 1) / 2;
+				control.drawScan(values, 1, points, colorOf(MessageType.of((int) values[0])));
+				report(CoordinateLogModel.SCAN, points, heading, 0);
+				break;
+			case STD_DEV:
+				heading = values[2];
+				control.drawStdDev((int) values[0], (int) values[1], (int) values[3], (int) values[4]);
+				report(CoordinateLogModel.STD_DEV, values[3], values[4], values[5]);
+				break;
+			case MISSION_PROGRESS:
+				// mission id, step index, MissionStep state
+				control.updateMissionProgress((int) values[0], (int) values[1], (int) values[2]);
+				report(CoordinateLogModel.MISSION, values[0], values[1], values[2]);
+				break;
+			default:
+				break;
+			}
+			return true;
+		}
+
+		/**
+		 * @return the colour points from a message of the given type are drawn in
+		 */
+		private Color colorOf(MessageType source) {
+			if (source == MessageType.EXPLORE_RECEIVED) {
+				return Color.yellow;
+			}
+			return source == MessageType.ECHO ? Color.cyan : Color.magenta;
+		}
+
+		/**
+		 * Draws a wall point, listing it only if it is a new feature; a point
+		 * merged into one mapped earlier adds nothing to read.
+		 * @param isKnown - true if the Reader found the point already indexed
+		 */
+		private void drawWall(boolean isKnown, float[] values, Color color) {
+			control.drawWall((int) values[0], (int) values[1], color);
+			if (!isKnown) {
+				report(CoordinateLogModel.MAPPING, values[0], values[1], heading);
+			}
+		}
+
+		/**
+		 * Lists a message and keeps it as the frame's status message.
+		 */
+		private void report(int kind, float a, float b, float c) {
+			control.updateCoordList(kind, a, b, c);
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size, lock-free ring of decoded messages for exactly one producer
+ * thread and one consumer thread. Messages are stored in primitive arrays, so
+ * neither offering nor draining allocates.
+ *
+ * Payloads live in a second ring of floats, so a message may carry anything
+ * from no floats up to MAX_FLOATS: most carry two or three, a SCAN_BATCH a
+ * whole sweep. The float ring holds STRIDE floats per message slot, which is
+ * plenty on average; a message is refused if either ring is full.
+ * @author Corey Short
+ */
+public class TelemetryRing {
+
+	/**
+	 * Floats set aside per message slot; STD_DEV uses all six.
+	 */
+	public static final int STRIDE = 6;
+
+	/**
+	 * Most floats a single message may carry; a mission log record stores its
+	 * float count in a byte.
+	 */
+	public static final int MAX_FLOATS = 255;
+
+	private final int mask;
+	private final long[] times;
+	private final int[] types;
+	private final int[] counts;
+	private final long[] offsets; // where each message's floats start in values
+	private final int valueMask;
+	private final float[] values;
+	private final float[] scratch = new float[MAX_FLOATS]; // consumer side only
+	private final AtomicLong head = new AtomicLong(); // next slot to drain
+	private final AtomicLong tail = new AtomicLong(); // next slot to fill
+	private final AtomicLong valueHead = new AtomicLong(); // first float still in use
+	private long valueTail = 0; // next float to fill; producer only
+
+	/**
+	 * @param capacity - rounded up to a power of two
+	 */
+	public TelemetryRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		times = new long[size];
+		types = new int[size];
+		counts = new int[size];
+		offsets = new long[size];
+		int valueSize = Integer.highestOneBit(Math.max(size * STRIDE, 2 * MAX_FLOATS) - 1) << 1;
+		valueMask = valueSize - 1;
+		values = new float[valueSize];
+	}
+
+	/**
+	 * Adds a message; called only by the producer thread.
+	 * @return false if the ring is full, or count is over MAX_FLOATS, and the
+	 * message was not stored
+	 */
+	public boolean offer(long timeNanos, int type, float[] payload, int count) {
+		long t = tail.get();
+		if (t - head.get() > mask || count > MAX_FLOATS
+				|| valueTail + count - valueHead.get() > values.length) {
+			return false;
+		}
+		int slot = (int) t & mask;
+		times[slot] = timeNanos;
+		types[slot] = type;
+		counts[slot] = count;
+		offsets[slot] = valueTail;
+		int from = (int) valueTail & valueMask;
+		int first = Math.min(count, values.length - from);
+		System.arraycopy(payload, 0, values, from, first);
+		System.arraycopy(payload, first, values, 0, count - first);
+		valueTail += count;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Hands queued messages to the sink in order; called only by the consumer
+	 * thread.
+	 * @param sink - receives each message
+	 * @param max - most messages to drain in this call
+	 * @return the number of messages drained
+	 */
+	public int drain(TelemetrySink sink, int max) {
+		long h = head.get();
+		long available = Math.min(tail.get() - h, max);
+		for (long i = 0; i < available; i++) {
+			int slot = (int) (h + i) & mask;
+			int count = counts[slot];
+			long offset = offsets[slot];
+			int from = (int) offset & valueMask;
+			int first = Math.min(count, values.length - from);
+			System.arraycopy(values, from, scratch, 0, first);
+			System.arraycopy(values, 0, scratch, first, count - first);
+			sink.accept(times[slot], types[slot], scratch, count);
+			valueHead.lazySet(offset + count);
+			head.lazySet(h + i + 1);
+		}
+		return (int) available;
+	}
+
+	/**
+	 * @return the number of messages waiting to be drained
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * Anything that consumes decoded robot messages. The Reader hands each message
+ * it decodes to a TelemetrySink as primitives so nothing is allocated per
+ * message; the values array is reused by the caller and must be copied if it
+ * is kept.
+ * @author Corey Short
+ */
+public interface TelemetrySink {
+	/**
+	 * @param timeNanos - System.nanoTime() when the message was decoded
+	 * @param type - the MessageType ordinal
+	 * @param values - the message payload, in wire order
+	 * @param count - how many entries of values are used
+	 * @return false if the message could not be taken and was dropped
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count);
+}
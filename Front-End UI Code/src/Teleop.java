@@ -0,0 +1,157 @@
+import java.awt.KeyEventDispatcher;
+import java.awt.KeyboardFocusManager;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
+
+import javax.swing.Timer;
+
+/**
+ * Drives the robot from the keyboard: while enabled, the arrow keys or WASD
+ * set a speed and turn rate, sent as a DRIVE setpoint every PERIOD
+ * milliseconds for as long as a key is held. Setpoints replace one another
+ * in the command queue rather than queueing, so what reaches the robot is
+ * always the newest.
+ *
+ * When the keys are let go the robot is sent a STOP. The same happens, as a
+ * dead man's switch, if no key event has arrived for DEADMAN_TIMEOUT, which
+ * covers a release lost to a change of focus; keys held down repeat well
+ * within it. Should the PC stop sending altogether, the robot stops itself
+ * after GridControlCommunicator.DRIVE_TIMEOUT.
+ *
+ * While enabled, the driving keys go to the robot and not to the focused
+ * text field. Only robots that agreed to CAPABILITY_DRIVE in their HELLO
+ * can be driven; older firmware does not know DRIVE. Runs on the Swing
+ * event thread.
+ * @author Corey Short
+ */
+public class Teleop {
+
+	public static final int PERIOD = 100; // ms between setpoints
+	public static final long DEADMAN_TIMEOUT = 1000; // ms without a key event before stopping
+	public static final float SPEED = 20; // cm per second
+	public static final float TURN_RATE = 45; // degrees per second
+	public static final int CAPABILITY_DRIVE = 16; // HELLO bit: the robot follows DRIVE setpoints
+
+	private static final EventLog log = new EventLog("Teleop");
+
+	private final GridControlCommunicator communicator;
+	private final Timer timer;
+	private boolean isForward;
+	private boolean isBack;
+	private boolean isLeft;
+	private boolean isRight;
+	private long lastKeyEvent = 0; // ms
+	private boolean isMoving = false; // a setpoint other than a stop was the last thing sent
+
+	private final KeyEventDispatcher keys = new KeyEventDispatcher() {
+		public boolean dispatchKeyEvent(KeyEvent event) {
+			if (event.getID() == KeyEvent.KEY_TYPED) {
+				return isDrivingKey(event.getKeyChar());
+			}
+			boolean isPressed = event.getID() == KeyEvent.KEY_PRESSED;
+			switch (event.getKeyCode()) {
+			case KeyEvent.VK_UP:
+			case KeyEvent.VK_W:
+				isForward = isPressed;
+				break;
+			case KeyEvent.VK_DOWN:
+			case KeyEvent.VK_S:
+				isBack = isPressed;
+				break;
+			case KeyEvent.VK_LEFT:
+			case KeyEvent.VK_A:
+				isLeft = isPressed;
+				break;
+			case KeyEvent.VK_RIGHT:
+			case KeyEvent.VK_D:
+				isRight = isPressed;
+				break;
+			default:
+				return false;
+			}
+			lastKeyEvent = System.currentTimeMillis();
+			return true;
+		}
+	};
+
+	/**
+	 * @param communicator - sends the setpoints
+	 */
+	public Teleop(GridControlCommunicator communicator) {
+		this.communicator = communicator;
+		timer = new Timer(PERIOD, new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				tick();
+			}
+		});
+	}
+
+	/**
+	 * Starts taking the driving keys, if the robot takes DRIVE.
+	 * @return false if the robot did not agree to CAPABILITY_DRIVE
+	 */
+	public boolean enable() {
+		if ((communicator.getCapabilities() & CAPABILITY_DRIVE) == 0) {
+			log.info("Robot does not take DRIVE; teleop stays off");
+			return false;
+		}
+		if (timer.isRunning()) {
+			return true;
+		}
+		release();
+		KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(keys);
+		timer.start();
+		log.info("Teleop on");
+		return true;
+	}
+
+	/**
+	 * Gives the keys back, stopping the robot if it was being driven.
+	 */
+	public void disable() {
+		if (!timer.isRunning()) {
+			return;
+		}
+		KeyboardFocusManager.getCurrentKeyboardFocusManager().removeKeyEventDispatcher(keys);
+		timer.stop();
+		release();
+		tick();
+		log.info("Teleop off");
+	}
+
+	public boolean isEnabled() {
+		return timer.isRunning();
+	}
+
+	/**
+	 * Sends the setpoint for the keys held, or a single STOP once they are
+	 * all let go or the dead man's switch trips.
+	 */
+	private void tick() {
+		if (System.currentTimeMillis() - lastKeyEvent > DEADMAN_TIMEOUT) {
+			release();
+		}
+		float speed = (isForward ? SPEED : 0) - (isBack ? SPEED : 0);
+		float turnRate = (isLeft ? TURN_RATE : 0) - (isRight ? TURN_RATE : 0);
+		if (speed != 0 || turnRate != 0) {
+			isMoving = communicator.sendDrive(speed, turnRate) || isMoving;
+		}
+		else if (isMoving) {
+			communicator.sendStop();
+			isMoving = false;
+		}
+	}
+
+	private void release() {
+		isForward = false;
+		isBack = false;
+		isLeft = false;
+		isRight = false;
+	}
+
+	private static boolean isDrivingKey(char c) {
+		c = Character.toLowerCase(c);
+		return c == 'w' || c == 'a' || c == 's' || c == 'd';
+	}
+}
@@ -0,0 +1,28 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte-stream link between the PC(GUI) and a robot. GridControlCommunicator
+ * reads and writes the MessageType int/float protocol over whatever Transport
+ * it is given, so the same Reader can be driven by the NXT over Bluetooth or by
+ * a SimulatedRobot over a local socket.
+ * @author Corey Short
+ */
+public interface Transport {
+	/**
+	 * Opens the link.
+	 * @param name - the robot name, or an address understood by the transport
+	 * @return true if the link is open and the streams are ready to use
+	 */
+	public boolean open(String name) throws IOException;
+
+	public InputStream getInputStream();
+
+	public OutputStream getOutputStream();
+
+	/**
+	 * Closes the link; safe to call when it is not open.
+	 */
+	public void close();
+}
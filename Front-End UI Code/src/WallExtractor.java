@@ -0,0 +1,483 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fits straight wall segments to the points in a SpatialIndex, so the map
+ * can be drawn as a few hundred lines instead of thousands of dots, and
+ * kept as a few bytes per wall.
+ *
+ * The arena is cut into TILE_SIZE cm tiles, each with its own segments. As
+ * a TelemetrySink the extractor only notes, on the Reader thread, which
+ * tiles new wall points fell in; refit() then fits those tiles again from
+ * the index and leaves the rest alone. A tile is fitted with RANSAC: the
+ * line through the random pair of points most others lie within
+ * INLIER_DISTANCE of is refined by least squares over those points, cut
+ * wherever its points are more than MAX_GAP apart, and the points taken
+ * away before looking for the next line. Runs of fewer than MIN_POINTS are
+ * dropped as noise.
+ *
+ * A long wall is a chain of collinear pieces, one per tile; writeMap()
+ * joins them before saving the vector map:
+ * 	int   MAGIC ("WMAP")
+ * 	short VERSION
+ * 	short reserved, 0
+ * 	int   number of segments
+ * 	short x1, y1, x2, y2 per segment, in mm
+ * big-endian, like the robot protocol and the mission logs.
+ *
+ * refit() and the getters are meant for one thread, the Swing event thread,
+ * which should refit no more often than it needs to show the walls.
+ * @author Corey Short
+ */
+public class WallExtractor implements TelemetrySink {
+
+	public static final int MAGIC = 0x574D4150; // "WMAP"
+	public static final short VERSION = 1;
+	public static final String EXTENSION = ".wmap";
+
+	/**
+	 * Width of a tile, in cm.
+	 */
+	public static final int TILE_SIZE = 32;
+
+	/**
+	 * Farthest a point may be from a line, in cm, and still lie on it.
+	 */
+	public static final float INLIER_DISTANCE = 2f;
+
+	/**
+	 * Widest gap, in cm, between neighbouring points of one segment.
+	 */
+	public static final float MAX_GAP = 8f;
+
+	/**
+	 * Fewest points a segment is fitted to.
+	 */
+	public static final int MIN_POINTS = 5;
+
+	private static final int ITERATIONS = 50; // random pairs tried per line
+	private static final int MAX_TILE_SEGMENTS = 8;
+	private static final double JOIN_ANGLE = Math.toRadians(5); // pieces joined if within this
+	private static final float JOIN_DISTANCE = 2 * INLIER_DISTANCE; // and their ends this near a line
+	private static final int TILE_COLUMNS = (OccupancyGrid.COLUMNS + TILE_SIZE - 1) / TILE_SIZE;
+	private static final int TILE_ROWS = (OccupancyGrid.ROWS + TILE_SIZE - 1) / TILE_SIZE;
+
+	private final SpatialIndex points;
+	private final boolean[] dirtyTiles = new boolean[TILE_COLUMNS * TILE_ROWS]; // guarded by itself
+	private boolean isAnyDirty = false;
+
+	// x1, y1, x2, y2 of each segment, MAX_TILE_SEGMENTS slots to a tile
+	private final float[] segments = new float[TILE_COLUMNS * TILE_ROWS * MAX_TILE_SEGMENTS * 4];
+	private final int[] tileCounts = new int[TILE_COLUMNS * TILE_ROWS];
+	private int segmentCount = 0;
+
+	// scratch for fitting a tile
+	private final Random random = new Random(1);
+	private int[] found = new int[256];
+	private float[] xs = new float[256];
+	private float[] ys = new float[256];
+	private float[] along = new float[256];
+
+	// scratch for joining two pieces
+	private final float[] ends = new float[8];
+	private final float[] positions = new float[4];
+
+	/**
+	 * @param points - the mapped points to fit; fed before the extractor, so
+	 * it holds every point the extractor hears of
+	 */
+	public WallExtractor(SpatialIndex points) {
+		this.points = points;
+	}
+
+	/**
+	 * Notes the tiles wall points land in.
+	 */
+	public boolean accept(long timeNanos, int type, float[] values, int count) {
+		MessageType header = MessageType.of(type);
+		if (header == null) {
+			return true;
+		}
+		switch (header) {
+		case WALL:
+		case ECHO:
+		case EXPLORE_RECEIVED:
+			markDirty(values[0], values[1]);
+			break;
+		case SCAN_BATCH:
+			// source type, then x, y pairs
+			for (int i = 1; i + 1 < count; i += 2) {
+				markDirty(values[i], values[i + 1]);
+			}
+			break;
+		default:
+			break;
+		}
+		return true;
+	}
+
+	private void markDirty(float x, float y) {
+		int tile = tile(x, y);
+		synchronized (dirtyTiles) {
+			dirtyTiles[tile] = true;
+			isAnyDirty = true;
+		}
+	}
+
+	/**
+	 * Fits the tiles new points have landed in since the last call.
+	 * @return the number of tiles fitted; 0 if the segments are unchanged
+	 */
+	public int refit() {
+		synchronized (dirtyTiles) {
+			if (!isAnyDirty) {
+				return 0;
+			}
+			isAnyDirty = false;
+		}
+		int fitted = 0;
+		for (int tile = 0; tile < dirtyTiles.length; tile++) {
+			synchronized (dirtyTiles) {
+				if (!dirtyTiles[tile]) {
+					continue;
+				}
+				dirtyTiles[tile] = false;
+			}
+			fitTile(tile);
+			fitted++;
+		}
+		return fitted;
+	}
+
+	/**
+	 * Forgets every segment; the index is cleared separately.
+	 */
+	public void clear() {
+		synchronized (dirtyTiles) {
+			for (int i = 0; i < dirtyTiles.length; i++) {
+				dirtyTiles[i] = false;
+			}
+			isAnyDirty = false;
+		}
+		for (int i = 0; i < tileCounts.length; i++) {
+			tileCounts[i] = 0;
+		}
+		segmentCount = 0;
+	}
+
+	/**
+	 * @return the number of segments fitted, before joining
+	 */
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * Copies out the segments fitted.
+	 * @param into - receives x1, y1, x2, y2 per segment, as many as fit
+	 * @return the number of segments, which may be more than into could hold
+	 */
+	public int getSegments(float[] into) {
+		int written = 0;
+		for (int tile = 0; tile < tileCounts.length; tile++) {
+			int base = tile * MAX_TILE_SEGMENTS * 4;
+			for (int i = 0; i < tileCounts[tile]; i++) {
+				if (4 * written + 4 <= into.length) {
+					System.arraycopy(segments, base + 4 * i, into, 4 * written, 4);
+				}
+				written++;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Fits one tile's segments from the points now in it.
+	 */
+	private void fitTile(int tile) {
+		int count = loadTile(tile);
+		int base = tile * MAX_TILE_SEGMENTS * 4;
+		int fitted = 0;
+		int remaining = count; // points [0, remaining) are not on a line yet
+		while (remaining >= MIN_POINTS && fitted < MAX_TILE_SEGMENTS) {
+			// the line through the random pair that most points lie on
+			int best = 0;
+			float bestNormalX = 0;
+			float bestNormalY = 0;
+			float bestOffset = 0;
+			for (int i = 0; i < ITERATIONS; i++) {
+				int a = random.nextInt(remaining);
+				int b = random.nextInt(remaining);
+				float dx = xs[b] - xs[a];
+				float dy = ys[b] - ys[a];
+				float length = (float) Math.sqrt(dx * dx + dy * dy);
+				if (length < INLIER_DISTANCE) {
+					continue;
+				}
+				float normalX = -dy / length;
+				float normalY = dx / length;
+				float offset = -(normalX * xs[a] + normalY * ys[a]);
+				int inliers = 0;
+				for (int p = 0; p < remaining; p++) {
+					if (Math.abs(normalX * xs[p] + normalY * ys[p] + offset) <= INLIER_DISTANCE) {
+						inliers++;
+					}
+				}
+				if (inliers > best) {
+					best = inliers;
+					bestNormalX = normalX;
+					bestNormalY = normalY;
+					bestOffset = offset;
+				}
+			}
+			if (best < MIN_POINTS) {
+				break;
+			}
+
+			// refine: the principal axis of the inliers
+			float meanX = 0;
+			float meanY = 0;
+			for (int p = 0; p < remaining; p++) {
+				if (Math.abs(bestNormalX * xs[p] + bestNormalY * ys[p] + bestOffset) <= INLIER_DISTANCE) {
+					meanX += xs[p];
+					meanY += ys[p];
+				}
+			}
+			meanX /= best;
+			meanY /= best;
+			float sxx = 0;
+			float sxy = 0;
+			float syy = 0;
+			for (int p = 0; p < remaining; p++) {
+				if (Math.abs(bestNormalX * xs[p] + bestNormalY * ys[p] + bestOffset) <= INLIER_DISTANCE) {
+					float dx = xs[p] - meanX;
+					float dy = ys[p] - meanY;
+					sxx += dx * dx;
+					sxy += dx * dy;
+					syy += dy * dy;
+				}
+			}
+			double angle = 0.5 * Math.atan2(2 * sxy, sxx - syy);
+			float directionX = (float) Math.cos(angle);
+			float directionY = (float) Math.sin(angle);
+			float offset = directionY * meanX - directionX * meanY; // normal is (-directionY, directionX)
+
+			// take the refined line's points out, keeping where each lies along it
+			int inliers = 0;
+			for (int p = 0; p < remaining; p++) {
+				if (Math.abs(-directionY * xs[p] + directionX * ys[p] + offset) <= INLIER_DISTANCE) {
+					along[inliers++] = directionX * xs[p] + directionY * ys[p];
+					remaining--;
+					swap(p, remaining);
+					p--;
+				}
+			}
+			if (inliers == 0) {
+				break;
+			}
+
+			// a segment for each run of points without a wide gap
+			Arrays.sort(along, 0, inliers);
+			float meanAlong = directionX * meanX + directionY * meanY;
+			int start = 0;
+			for (int i = 1; i <= inliers && fitted < MAX_TILE_SEGMENTS; i++) {
+				if (i == inliers || along[i] - along[i - 1] > MAX_GAP) {
+					if (i - start >= MIN_POINTS) {
+						int at = base + 4 * fitted++;
+						segments[at] = meanX + directionX * (along[start] - meanAlong);
+						segments[at + 1] = meanY + directionY * (along[start] - meanAlong);
+						segments[at + 2] = meanX + directionX * (along[i - 1] - meanAlong);
+						segments[at + 3] = meanY + directionY * (along[i - 1] - meanAlong);
+					}
+					start = i;
+				}
+			}
+		}
+		segmentCount += fitted - tileCounts[tile];
+		tileCounts[tile] = fitted;
+	}
+
+	/**
+	 * Copies the indexed points in a tile into xs and ys.
+	 * @return the number of points
+	 */
+	private int loadTile(int tile) {
+		int column = tile % TILE_COLUMNS;
+		int row = tile / TILE_COLUMNS;
+		// edge tiles also take the points beyond the arena
+		float minX = column == 0 ? -Float.MAX_VALUE : OccupancyGrid.XMIN + column * TILE_SIZE;
+		float maxX = column == TILE_COLUMNS - 1 ? Float.MAX_VALUE : OccupancyGrid.XMIN + (column + 1) * TILE_SIZE;
+		float minY = row == 0 ? -Float.MAX_VALUE : OccupancyGrid.YMIN + row * TILE_SIZE;
+		float maxY = row == TILE_ROWS - 1 ? Float.MAX_VALUE : OccupancyGrid.YMIN + (row + 1) * TILE_SIZE;
+		int found;
+		while ((found = points.query(minX, minY, maxX, maxY, this.found)) > this.found.length) {
+			this.found = new int[2 * found];
+			xs = new float[2 * found];
+			ys = new float[2 * found];
+			along = new float[2 * found];
+		}
+		int count = 0;
+		for (int i = 0; i < found; i++) {
+			float x = points.getX(this.found[i]);
+			float y = points.getY(this.found[i]);
+			if (tile(x, y) == tile) { // a point on a tile's edge belongs to one tile only
+				xs[count] = x;
+				ys[count] = y;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void swap(int a, int b) {
+		float x = xs[a];
+		float y = ys[a];
+		xs[a] = xs[b];
+		ys[a] = ys[b];
+		xs[b] = x;
+		ys[b] = y;
+	}
+
+	private static int tile(float x, float y) {
+		int column = (int) Math.floor((x - OccupancyGrid.XMIN) / TILE_SIZE);
+		int row = (int) Math.floor((y - OccupancyGrid.YMIN) / TILE_SIZE);
+		column = Math.max(0, Math.min(TILE_COLUMNS - 1, column));
+		row = Math.max(0, Math.min(TILE_ROWS - 1, row));
+		return row * TILE_COLUMNS + column;
+	}
+
+	/**
+	 * Joins the pieces of each wall that tiles cut apart: pieces at about
+	 * the same angle, on the same line, that meet or overlap.
+	 * @return x1, y1, x2, y2 of each wall
+	 */
+	public float[] joinedSegments() {
+		float[] joined = new float[4 * segmentCount];
+		int count = getSegments(joined);
+		boolean isJoining = true;
+		while (isJoining) {
+			isJoining = false;
+			for (int i = 0; i < count && !isJoining; i++) {
+				for (int j = i + 1; j < count; j++) {
+					if (join(joined, i, j)) {
+						System.arraycopy(joined, 4 * (count - 1), joined, 4 * j, 4); // last fills the hole
+						count--;
+						isJoining = true;
+						break;
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(joined, 4 * count);
+	}
+
+	/**
+	 * Replaces segment a by one spanning a and b if they are pieces of one
+	 * wall: about the same angle, b's ends within JOIN_DISTANCE of a's line,
+	 * and no more than MAX_GAP apart along it. The joined segment runs
+	 * between the two ends farthest apart, so pieces fitted a little askew
+	 * do not carry their error along the whole wall.
+	 * @return true if they were joined
+	 */
+	private boolean join(float[] s, int a, int b) {
+		int i = 4 * a;
+		int j = 4 * b;
+		float dx = s[i + 2] - s[i];
+		float dy = s[i + 3] - s[i + 1];
+		float length = (float) Math.sqrt(dx * dx + dy * dy);
+		float otherX = s[j + 2] - s[j];
+		float otherY = s[j + 3] - s[j + 1];
+		float otherLength = (float) Math.sqrt(otherX * otherX + otherY * otherY);
+		if (length == 0 || otherLength == 0) {
+			return false;
+		}
+		dx /= length;
+		dy /= length;
+		double angle = Math.acos(Math.min(1, Math.abs(dx * otherX + dy * otherY) / otherLength));
+		if (angle > JOIN_ANGLE) {
+			return false;
+		}
+		for (int end = j; end <= j + 2; end += 2) {
+			if (Math.abs(-dy * (s[end] - s[i]) + dx * (s[end + 1] - s[i + 1])) > JOIN_DISTANCE) {
+				return false;
+			}
+		}
+		float b1 = dx * (s[j] - s[i]) + dy * (s[j + 1] - s[i + 1]);
+		float b2 = dx * (s[j + 2] - s[i]) + dy * (s[j + 3] - s[i + 1]);
+		if (Math.min(b1, b2) > length + MAX_GAP || Math.max(b1, b2) < -MAX_GAP) {
+			return false;
+		}
+		// the ends farthest apart along a's direction
+		System.arraycopy(s, i, ends, 0, 4);
+		System.arraycopy(s, j, ends, 4, 4);
+		positions[0] = 0;
+		positions[1] = length;
+		positions[2] = b1;
+		positions[3] = b2;
+		int first = 0;
+		int last = 0;
+		for (int end = 1; end < 4; end++) {
+			if (positions[end] < positions[first]) {
+				first = end;
+			}
+			if (positions[end] > positions[last]) {
+				last = end;
+			}
+		}
+		s[i] = ends[2 * first];
+		s[i + 1] = ends[2 * first + 1];
+		s[i + 2] = ends[2 * last];
+		s[i + 3] = ends[2 * last + 1];
+		return true;
+	}
+
+	/**
+	 * Saves the walls, joined, as a vector map.
+	 * @param out - where to write; not closed
+	 * @return the number of walls written
+	 */
+	public int writeMap(OutputStream out) throws IOException {
+		float[] walls = joinedSegments();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeShort(0);
+		data.writeInt(walls.length / 4);
+		for (int i = 0; i < walls.length; i++) {
+			data.writeShort(Math.round(walls[i] * 10));
+		}
+		data.flush();
+		return walls.length / 4;
+	}
+
+	/**
+	 * Loads a vector map written by writeMap().
+	 * @param in - where to read from; not closed
+	 * @return x1, y1, x2, y2 of each wall, in cm
+	 */
+	public static float[] readMap(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a wall map");
+		}
+		short version = data.readShort();
+		if (version != VERSION) {
+			throw new IOException("Unsupported wall map version " + version);
+		}
+		data.readShort();
+		int count = data.readInt();
+		if (count < 0) {
+			throw new IOException("Bad wall count " + count);
+		}
+		float[] walls = new float[4 * count];
+		for (int i = 0; i < walls.length; i++) {
+			walls[i] = data.readShort() / 10f;
+		}
+		return walls;
+	}
+}
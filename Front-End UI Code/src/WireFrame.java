@@ -0,0 +1,67 @@
+import java.util.zip.CRC32;
+
+/**
+ * Version 2 of the wire format, used in both directions once both ends have
+ * agreed to it with a HELLO. Version 1 is a bare int header followed by the
+ * payload, so a single corrupted byte misaligns every message after it.
+ * A version 2 frame is:
+ * 	byte  SYNC_0, SYNC_1
+ * 	byte  MessageType ordinal
+ * 	short payload length in bytes, unsigned
+ * 	...   payload, laid out as in version 1
+ * 	int   CRC32 of the type, length and payload
+ * A reader that finds a bad length or CRC skips ahead to the next sync
+ * marker; see FrameReader.
+ *
+ * To negotiate, the PC sends HELLO with the version it wants and the
+ * CompactPose capability bits it accepts, as two floats, in version 1. A
+ * robot that understands HELLO replies the same way with the version and the
+ * capabilities it will use, in version 1, and if that version is 2 frames
+ * everything after the reply; the PC frames everything after receiving it.
+ * A robot that does not reply is left on version 1 and float poses.
+ * @author Corey Short
+ */
+public class WireFrame {
+
+	public static final int VERSION = 2;
+	public static final byte SYNC_0 = (byte) 0xA5;
+	public static final byte SYNC_1 = (byte) 0x5A;
+	public static final int HEADER_SIZE = 5; // sync, type, length
+	public static final int CRC_SIZE = 4;
+	public static final int MAX_PAYLOAD = 4096;
+
+	private WireFrame() {
+	}
+
+	/**
+	 * Frames a payload.
+	 * @param type - the MessageType ordinal
+	 * @param payload - holds the payload bytes
+	 * @param offset - where in payload they start
+	 * @param length - how many there are, at most MAX_PAYLOAD
+	 * @param crc - used to compute the checksum; reset here
+	 * @param frame - receives the frame; at least length + HEADER_SIZE +
+	 * CRC_SIZE long
+	 * @return the frame's length
+	 */
+	public static int encode(int type, byte[] payload, int offset, int length, CRC32 crc, byte[] frame) {
+		if (length > MAX_PAYLOAD) {
+			throw new IllegalArgumentException("Payload of " + length + " bytes is over " + MAX_PAYLOAD);
+		}
+		frame[0] = SYNC_0;
+		frame[1] = SYNC_1;
+		frame[2] = (byte) type;
+		frame[3] = (byte) (length >>> 8);
+		frame[4] = (byte) length;
+		System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+		crc.reset();
+		crc.update(frame, 2, HEADER_SIZE - 2 + length);
+		int end = HEADER_SIZE + length;
+		int value = (int) crc.getValue();
+		frame[end] = (byte) (value >>> 24);
+		frame[end + 1] = (byte) (value >>> 16);
+		frame[end + 2] = (byte) (value >>> 8);
+		frame[end + 3] = (byte) value;
+		return end + CRC_SIZE;
+	}
+}
@@ -0,0 +1,91 @@
+import java.awt.Color;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import benchmarks.Fixtures;
+
+/**
+ * Fixtures over the real Mission Control classes, for the JMH benchmarks in
+ * the benchmarks package. Lives in the unnamed package with them, so it can
+ * reach OffScreenDrawing's package-private transforms.
+ * @author Corey Short
+ */
+public class BenchmarkFixtures implements Fixtures {
+
+	static {
+		EventLog.setLevel(EventLog.Level.WARN);
+	}
+
+	public Decoder newDecoder() throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new MissionBenchmark.LoopingTransport(MissionBenchmark.sampleStream()).getInputStream());
+		// no GUI and no sinks: decoding ends at an empty publish
+		final MessageRegistry registry = new GridControlCommunicator(null, null).getRegistry();
+		final float[] values = new float[registry.getMaxFloats()];
+		return new Decoder() {
+			public int next() throws IOException {
+				int header = in.readInt();
+				if (!registry.isRegistered(header) || !registry.decode(in, header, values, -1)) {
+					throw new IOException("Sample stream out of step at header " + header);
+				}
+				return header;
+			}
+		};
+	}
+
+	public Drawing newDrawing(int width, int height) {
+		final OffScreenDrawing drawing = new OffScreenDrawing();
+		drawing.setSize(width, height);
+		drawing.makeImage();
+		return new Drawing() {
+			public void beginUpdate() {
+				drawing.beginUpdate();
+			}
+
+			public void endUpdate() {
+				drawing.endUpdate();
+			}
+
+			public void drawRobotPath(int x, int y, int heading) {
+				drawing.drawRobotPath(x, y, heading);
+			}
+
+			public void drawWall(int x, int y) {
+				drawing.drawWall(x, y, Color.cyan);
+			}
+
+			public int xpixel(float x) {
+				return drawing.xpixel(x);
+			}
+
+			public int ypixel(float y) {
+				return drawing.ypixel(y);
+			}
+
+			public int gridX(int xpixel) {
+				return drawing.gridX(xpixel);
+			}
+
+			public int gridY(int ypixel) {
+				return drawing.gridY(ypixel);
+			}
+		};
+	}
+
+	public CoordList newCoordList() {
+		final CoordinateLogModel model = new CoordinateLogModel();
+		return new CoordList() {
+			public void appendPosition(float x, float y, float heading) {
+				model.append(CoordinateLogModel.POSITION, x, y, heading);
+			}
+
+			public void append(String message) {
+				model.append(message);
+			}
+
+			public int size() {
+				return model.getSize();
+			}
+		};
+	}
+}
@@ -0,0 +1,672 @@
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks for the PC side, to judge every performance change
+ * against: decoding the robot protocol in the Reader, drawing into
+ * OffScreenDrawing, the pixel/grid coordinate transforms, and appending to
+ * the coordinate list, plus the bytes each of the hot paths allocates per
+ * message and the bytes each pose encoding costs on the wire, and the
+ * occupancy grid's updates and rendering, the spatial index's merges
+ * and queries, fitting wall segments, and particle filter updates at
+ * 10k, 100k and 1M particles. Runs headless from the benchmarks jar:
+ * 	java -Djava.awt.headless=true -cp benchmarks.jar MissionBenchmark [name ...]
+ * Each benchmark is warmed up, then timed over several one-second rounds;
+ * the mean, min and max rates are printed. The JMH benchmarks in the
+ * benchmarks package cover decoding, drawing, the transforms and the
+ * coordinate list more rigorously; this harness keeps the rest, and the
+ * fixtures they share.
+ * @author Corey Short
+ */
+public class MissionBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+	private static final long ROUND_NANOS = 1000000000L;
+
+	/**
+	 * Something to time; returns a value derived from its work so the JIT
+	 * cannot discard it.
+	 */
+	interface Operation {
+		long run(int iterations);
+	}
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		EventLog.setLevel(EventLog.Level.WARN);
+		if (selected(args, "decode")) {
+			benchmarkDecode();
+		}
+		if (selected(args, "draw")) {
+			benchmarkDrawing();
+		}
+		if (selected(args, "transform")) {
+			benchmarkTransforms();
+		}
+		if (selected(args, "coordlist")) {
+			benchmarkCoordList();
+		}
+		if (selected(args, "alloc")) {
+			benchmarkAllocation();
+		}
+		if (selected(args, "pose")) {
+			benchmarkPoseEncoding();
+		}
+		if (selected(args, "grid")) {
+			benchmarkOccupancy();
+			benchmarkSpatialIndex();
+			benchmarkWallExtractor();
+		}
+		if (selected(args, "particles")) {
+			benchmarkParticleFilter(10000);
+			benchmarkParticleFilter(100000);
+			benchmarkParticleFilter(1000000);
+		}
+		if (blackhole == 42) {
+			System.out.println();
+		}
+		System.exit(0); // the Reader thread does not end on its own
+	}
+
+	private static boolean selected(String[] args, String name) {
+		return args.length == 0 || Arrays.asList(args).contains(name);
+	}
+
+	/**
+	 * Times an operation, growing the batch size until a batch takes about a
+	 * millisecond so timer overhead does not count.
+	 */
+	static void measure(String name, Operation operation) {
+		int batch = 1;
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < 1000000L && batch < (1 << 24)) {
+			blackhole += operation.run(batch);
+			batch <<= 1;
+		}
+		double[] rates = new double[ROUNDS];
+		for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+			long operations = 0;
+			long roundStart = System.nanoTime();
+			long now;
+			while ((now = System.nanoTime()) - roundStart < ROUND_NANOS) {
+				blackhole += operation.run(batch);
+				operations += batch;
+			}
+			if (round >= 0) {
+				rates[round] = operations * 1e9 / (now - roundStart);
+			}
+		}
+		report(name, rates, "ops/s");
+	}
+
+	static void report(String name, double rate, String unit) {
+		System.out.println(String.format("%-28s %14.1f %s", name, rate, unit));
+	}
+
+	static void report(String name, double[] rates, String unit) {
+		double sum = 0;
+		double min = Double.MAX_VALUE;
+		double max = 0;
+		for (double rate : rates) {
+			sum += rate;
+			min = Math.min(min, rate);
+			max = Math.max(max, rate);
+		}
+		System.out.println(String.format("%-28s %14.0f %s  (min %.0f, max %.0f)",
+				name, sum / rates.length, unit, min, max));
+	}
+
+	/**
+	 * Decodes a looping stream of POS_UPDATE, WALL, ECHO and STD_DEV messages
+	 * through the real Reader, counting what reaches a sink.
+	 */
+	static void benchmarkDecode() throws Exception {
+		GridControlCommunicator communicator = new GridControlCommunicator(null,
+				new LoopingTransport(sampleStream()));
+		final long[] decoded = new long[1];
+		communicator.addTelemetrySink(new TelemetrySink() {
+			public boolean accept(long timeNanos, int type, float[] values, int count) {
+				decoded[0]++;
+				return true;
+			}
+		});
+		communicator.connect("benchmark");
+		Thread.sleep(WARMUP_ROUNDS * ROUND_NANOS / 1000000L);
+		double[] rates = new double[ROUNDS];
+		for (int round = 0; round < ROUNDS; round++) {
+			long before = decoded[0];
+			long start = System.nanoTime();
+			Thread.sleep(ROUND_NANOS / 1000000L);
+			rates[round] = (decoded[0] - before) * 1e9 / (System.nanoTime() - start);
+		}
+		report("Reader decode", rates, "msg/s");
+	}
+
+	/**
+	 * @return one pass of the protocol as the robot would send it
+	 */
+	static byte[] sampleStream() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int i = 0; i < 1000; i++) {
+			out.writeInt(MessageType.POS_UPDATE.ordinal());
+			out.writeFloat(i % 200);
+			out.writeFloat(i % 100);
+			out.writeFloat(i % 360);
+			if (i % 4 == 0) {
+				out.writeInt(MessageType.WALL.ordinal());
+				out.writeFloat(-100 + i % 50);
+				out.writeFloat(200);
+			}
+			if (i % 10 == 0) {
+				out.writeInt(MessageType.ECHO.ordinal());
+				out.writeFloat(150);
+				out.writeFloat(i % 200);
+			}
+			if (i % 50 == 0) {
+				out.writeInt(MessageType.STD_DEV.ordinal());
+				for (int f = 0; f < 6; f++) {
+					out.writeFloat(f);
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Draws poses and walls into a headless OffScreenDrawing, a frame of 100
+	 * calls at a time as the TelemetryDispatcher would.
+	 */
+	static void benchmarkDrawing() {
+		final OffScreenDrawing drawing = new OffScreenDrawing();
+		drawing.setSize(1400, 600);
+		drawing.makeImage();
+		measure("drawRobotPath", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				for (int i = 0; i < iterations; i++) {
+					if (i % 100 == 0) {
+						drawing.endUpdate();
+						drawing.beginUpdate();
+					}
+					step++;
+					drawing.drawRobotPath(step % 250 - 125, step % 200, step % 360);
+				}
+				drawing.endUpdate();
+				return step;
+			}
+		});
+		measure("drawWall", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				for (int i = 0; i < iterations; i++) {
+					if (i % 100 == 0) {
+						drawing.endUpdate();
+						drawing.beginUpdate();
+					}
+					step++;
+					drawing.drawWall(step % 570 - 292, step % 238, Color.cyan);
+				}
+				drawing.endUpdate();
+				return step;
+			}
+		});
+		final float[] sweep = new float[1 + 2 * 36];
+		for (int i = 1; i < sweep.length; i += 2) {
+			sweep[i] = i * 7 % 570 - 292;
+			sweep[i + 1] = i * 3 % 238;
+		}
+		measure("drawScan, 36 points", new Operation() {
+			public long run(int iterations) {
+				for (int i = 0; i < iterations; i++) {
+					drawing.beginUpdate();
+					drawing.drawScan(sweep, 1, 36, Color.magenta);
+					drawing.endUpdate();
+				}
+				return iterations;
+			}
+		});
+	}
+
+	/**
+	 * Wall hits into an OccupancyGrid, and a sweep mapped then rendered from
+	 * the grid as the GUI does each frame.
+	 */
+	static void benchmarkOccupancy() {
+		final OccupancyGrid grid = new OccupancyGrid();
+		final float[] wall = new float[2];
+		measure("OccupancyGrid WALL hit", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				for (int i = 0; i < iterations; i++) {
+					step++;
+					wall[0] = step % 570 - 292;
+					wall[1] = step % 238;
+					grid.accept(0, MessageType.WALL.ordinal(), wall, 2);
+				}
+				return step;
+			}
+		});
+		measure("sonar ray, 100 cm + cone", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				for (int i = 0; i < iterations; i++) {
+					step++;
+					double angle = Math.toRadians(step % 180);
+					grid.sense(0, 30, 100 * (float) Math.cos(angle), 30 + 100 * (float) Math.sin(angle),
+							MessageType.EXPLORE_RECEIVED);
+				}
+				return step;
+			}
+		});
+		final OffScreenDrawing drawing = new OffScreenDrawing();
+		drawing.setSize(1400, 600);
+		drawing.makeImage();
+		drawing.setOccupancyGrid(grid);
+		final float[] sweep = new float[1 + 2 * 36];
+		sweep[0] = MessageType.WALL.ordinal();
+		for (int i = 1; i < sweep.length; i += 2) {
+			sweep[i] = i * 2 - 40; // a 72 cm wall
+			sweep[i + 1] = 200;
+		}
+		measure("grid sweep + render", new Operation() {
+			public long run(int iterations) {
+				for (int i = 0; i < iterations; i++) {
+					grid.accept(0, MessageType.SCAN_BATCH.ordinal(), sweep, sweep.length);
+					drawing.beginUpdate();
+					drawing.drawScan(sweep, 1, 36, Color.magenta);
+					drawing.endUpdate();
+				}
+				return iterations;
+			}
+		});
+	}
+
+	static void benchmarkSpatialIndex() {
+		final SpatialIndex index = new SpatialIndex();
+		final Random random = new Random(1);
+		for (int i = 0; i < 200000; i++) {
+			index.add(OccupancyGrid.XMIN + random.nextFloat() * OccupancyGrid.COLUMNS,
+					random.nextFloat() * OccupancyGrid.ROWS, MessageType.WALL, i);
+		}
+		System.out.println("SpatialIndex: 200000 random points merged into " + index.size());
+		measure("SpatialIndex add", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					step++;
+					sum += index.add(step % 570 - 292, step % 238, MessageType.WALL, step);
+				}
+				return sum;
+			}
+		});
+		measure("SpatialIndex nearest, 10 cm", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					step++;
+					sum += index.nearest(step % 570 - 292.5f, step % 238 + 0.5f, 10);
+				}
+				return sum;
+			}
+		});
+		final int[] found = new int[4096];
+		measure("SpatialIndex query, 40x40", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					step++;
+					float x = step % 530 - 292;
+					float y = step % 198;
+					sum += index.query(x, y, x + 40, y + 40, found);
+				}
+				return sum;
+			}
+		});
+	}
+
+	static void benchmarkWallExtractor() {
+		final SpatialIndex index = new SpatialIndex();
+		final WallExtractor walls = new WallExtractor(index);
+		final Random random = new Random(1);
+		final float[] wall = new float[2];
+		for (int i = 0; i < 20000; i++) { // a noisy rectangular room
+			float along = random.nextFloat();
+			switch (i % 4) {
+			case 0:
+				wall[0] = -280 + 550 * along;
+				wall[1] = 5;
+				break;
+			case 1:
+				wall[0] = -280 + 550 * along;
+				wall[1] = 230;
+				break;
+			case 2:
+				wall[0] = -280;
+				wall[1] = 5 + 225 * along;
+				break;
+			default:
+				wall[0] = 270;
+				wall[1] = 5 + 225 * along;
+				break;
+			}
+			wall[0] += (float) random.nextGaussian() * 0.7f;
+			wall[1] += (float) random.nextGaussian() * 0.7f;
+			index.accept(i, MessageType.WALL.ordinal(), wall, 2);
+			walls.accept(i, MessageType.WALL.ordinal(), wall, 2);
+		}
+		walls.refit();
+		System.out.println("WallExtractor: " + index.size() + " points, " + walls.getSegmentCount()
+				+ " segments, " + walls.joinedSegments().length / 4 + " joined");
+		measure("WallExtractor refit, 1 tile", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					step++;
+					wall[0] = step % 550 - 280;
+					wall[1] = 5;
+					walls.accept(step, MessageType.WALL.ordinal(), wall, 2);
+					sum += walls.refit();
+				}
+				return sum;
+			}
+		});
+	}
+
+	/**
+	 * One update is a motion step, a 16-point sonar sweep against the arena
+	 * walls, the estimate, and resampling whenever the weights call for it.
+	 */
+	static void benchmarkParticleFilter(int count) {
+		final ParticleFilter filter = new ParticleFilter(count);
+		final float[] sweep = new float[2 * ParticleFilter.MAX_BATCH];
+		filter.move(0, 119, 0);
+		String size = count >= 1000000 ? count / 1000000 + "M" : count / 1000 + "k";
+		measure("ParticleFilter " + size + " update", new Operation() {
+			int step = 0;
+
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					step++;
+					// circling the middle of the arena, seeing its walls all round
+					double theta = step * 0.02;
+					float x = (float) (100 * Math.cos(theta));
+					float y = (float) (119 + 60 * Math.sin(theta));
+					double heading = theta + Math.PI / 2;
+					filter.move(x, y, (float) Math.toDegrees(heading));
+					for (int k = 0; k < ParticleFilter.MAX_BATCH; k++) {
+						double bearing = heading + k * 2 * Math.PI / ParticleFilter.MAX_BATCH;
+						double c = Math.cos(bearing);
+						double s = Math.sin(bearing);
+						double range = Math.min(c > 0 ? (OccupancyGrid.XMAX - x) / c : (OccupancyGrid.XMIN - x) / c,
+								s > 0 ? (OccupancyGrid.YMAX - y) / s : (OccupancyGrid.YMIN - y) / s);
+						sweep[2 * k] = x + (float) (range * c);
+						sweep[2 * k + 1] = y + (float) (range * s);
+					}
+					filter.sense(sweep, 0, ParticleFilter.MAX_BATCH);
+					sum += filter.update() ? 1 : 0;
+				}
+				return sum;
+			}
+		});
+		filter.stop(); // shuts its pool down
+	}
+
+	static void benchmarkTransforms() {
+		final OffScreenDrawing drawing = new OffScreenDrawing();
+		drawing.setSize(1400, 600);
+		drawing.makeImage();
+		measure("xpixel+ypixel", new Operation() {
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					sum += drawing.xpixel(i * 0.25f) + drawing.ypixel(i * 0.5f);
+				}
+				return sum;
+			}
+		});
+		measure("gridX+gridY", new Operation() {
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					sum += drawing.gridX(i & 1023) + drawing.gridY(i & 511);
+				}
+				return sum;
+			}
+		});
+	}
+
+	/**
+	 * Appends POS_UPDATE-sized messages to the coordinate list model, which
+	 * is what MissionControlGUI.updateCoordList does.
+	 */
+	static void benchmarkCoordList() throws Exception {
+		final CoordinateLogModel model = new CoordinateLogModel();
+		final String message = "Current robot position is:\nx: 12.5, y: 100.25, h: 90.0";
+		final long[] appended = new long[1];
+		// the model belongs to the event thread, so time it there
+		javax.swing.SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				measure("updateCoordList text", new Operation() {
+					public long run(int iterations) {
+						for (int i = 0; i < iterations; i++) {
+							model.append(message);
+						}
+						appended[0] += iterations;
+						return model.getSize();
+					}
+				});
+				measure("updateCoordList record", new Operation() {
+					public long run(int iterations) {
+						for (int i = 0; i < iterations; i++) {
+							model.append(CoordinateLogModel.POSITION, 12.5f, i, 90);
+						}
+						appended[0] += iterations;
+						return model.getSize();
+					}
+				});
+			}
+		});
+		blackhole += appended[0];
+	}
+
+	/**
+	 * Measures the bytes allocated per message, in steady state, by the
+	 * Reader's decode loop, the TelemetryRing hand-off, and recording a
+	 * message in the coordinate list. Each should be zero.
+	 */
+	static void benchmarkAllocation() throws Exception {
+		final com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("Allocation measurement is not supported by this JVM");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		// the Reader: watch its thread from outside while it decodes
+		GridControlCommunicator communicator = new GridControlCommunicator(null,
+				new LoopingTransport(sampleStream()));
+		final long[] decoded = new long[1];
+		final long[] readerId = new long[1];
+		communicator.addTelemetrySink(new TelemetrySink() {
+			public boolean accept(long timeNanos, int type, float[] values, int count) {
+				readerId[0] = Thread.currentThread().getId();
+				decoded[0]++;
+				return true;
+			}
+		});
+		communicator.connect("benchmark");
+		Thread.sleep(WARMUP_ROUNDS * ROUND_NANOS / 1000000L);
+		long messages = decoded[0];
+		long bytes = threads.getThreadAllocatedBytes(readerId[0]);
+		Thread.sleep(ROUND_NANOS / 1000000L);
+		messages = decoded[0] - messages;
+		bytes = threads.getThreadAllocatedBytes(readerId[0]) - bytes;
+		report("Reader decode", bytes / (double) messages, "bytes/msg");
+
+		final TelemetryRing ring = new TelemetryRing(8192);
+		final float[] payload = {1, 2, 3, 4, 5, 6};
+		final TelemetrySink counter = new TelemetrySink() {
+			public boolean accept(long timeNanos, int type, float[] values, int count) {
+				blackhole += count;
+				return true;
+			}
+		};
+		report("TelemetryRing offer+drain", allocatedPerOperation(threads, new Operation() {
+			public long run(int iterations) {
+				for (int i = 0; i < iterations; i++) {
+					ring.offer(i, MessageType.POS_UPDATE.ordinal(), payload, 3);
+					ring.drain(counter, 1);
+				}
+				return ring.size();
+			}
+		}), "bytes/msg");
+
+		final CoordinateLogModel model = new CoordinateLogModel();
+		final double[] perAppend = new double[1];
+		javax.swing.SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				perAppend[0] = allocatedPerOperation(threads, new Operation() {
+					public long run(int iterations) {
+						for (int i = 0; i < iterations; i++) {
+							model.append(CoordinateLogModel.POSITION, 12.5f, i, 90);
+						}
+						return model.getSize();
+					}
+				});
+			}
+		});
+		report("updateCoordList record", perAppend[0], "bytes/msg");
+	}
+
+	/**
+	 * @return bytes the current thread allocates per operation, after warmup
+	 */
+	static double allocatedPerOperation(com.sun.management.ThreadMXBean threads, Operation operation) {
+		long id = Thread.currentThread().getId();
+		for (int round = 0; round < 20; round++) {
+			blackhole += operation.run(100000); // warm up until compiled
+		}
+		int iterations = 1000000;
+		long before = threads.getThreadAllocatedBytes(id);
+		blackhole += operation.run(iterations);
+		return (threads.getThreadAllocatedBytes(id) - before) / (double) iterations;
+	}
+
+	/**
+	 * Streams poses from a SimulatedRobot in each wire format and pose
+	 * encoding, and reports the bytes each update costs on the wire, how
+	 * many updates per second the PC decoded, and how many updates per
+	 * second each kB/s of link bandwidth can carry.
+	 */
+	static void benchmarkPoseEncoding() throws Exception {
+		int compact = CompactPose.CAPABILITY_COMPACT;
+		int delta = CompactPose.CAPABILITY_COMPACT | CompactPose.CAPABILITY_DELTA;
+		int[][] modes = { {1, 0}, {1, compact}, {1, delta}, {2, 0}, {2, compact}, {2, delta} };
+		String[] names = { "float", "compact", "compact+delta" };
+		for (int[] mode : modes) {
+			SimulatedRobot simulator = new SimulatedRobot(0);
+			simulator.setRate(MessageType.POS_UPDATE, 2000);
+			simulator.start();
+			GridControlCommunicator communicator = new GridControlCommunicator(null);
+			communicator.setFraming(mode[0]);
+			communicator.setCapabilities(mode[1]);
+			final long[] poses = new long[1];
+			communicator.addTelemetrySink(new TelemetrySink() {
+				public boolean accept(long timeNanos, int type, float[] values, int count) {
+					if (type == MessageType.POS_UPDATE.ordinal()) {
+						poses[0]++;
+					}
+					return true;
+				}
+			});
+			communicator.connect("tcp:localhost:" + simulator.getPort());
+			Thread.sleep(500);
+			long messages = simulator.getMessagesSent();
+			long bytes = simulator.getBytesSent();
+			long decoded = poses[0];
+			long start = System.nanoTime();
+			Thread.sleep(ROUND_NANOS / 1000000L);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			double perUpdate = (simulator.getBytesSent() - bytes)
+					/ (double) (simulator.getMessagesSent() - messages);
+			System.out.println(String.format("%-28s %6.1f bytes/update %8.0f updates/s %6.1f updates/s per kB/s",
+					"pose v" + mode[0] + " " + names[Integer.bitCount(mode[1])], perUpdate,
+					(poses[0] - decoded) / seconds, 1000 / perUpdate));
+			communicator.sendDisconnect();
+			communicator.disconnect();
+			while (communicator.isConnected()) {
+				Thread.sleep(10);
+			}
+			simulator.stop();
+		}
+	}
+
+	/**
+	 * A Transport whose input endlessly repeats the same bytes and whose
+	 * output is discarded.
+	 */
+	static class LoopingTransport implements Transport {
+		private final byte[] data;
+
+		LoopingTransport(byte[] data) {
+			this.data = data;
+		}
+
+		public boolean open(String name) {
+			return true;
+		}
+
+		public InputStream getInputStream() {
+			return new InputStream() {
+				int position = 0;
+
+				public int read() {
+					int b = data[position] & 0xff;
+					position = (position + 1) % data.length;
+					return b;
+				}
+
+				public int read(byte[] buffer, int offset, int length) {
+					int n = Math.min(length, data.length - position);
+					System.arraycopy(data, position, buffer, offset, n);
+					position = (position + n) % data.length;
+					return n;
+				}
+			};
+		}
+
+		public OutputStream getOutputStream() {
+			return new OutputStream() {
+				public void write(int b) {
+				}
+			};
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appends to the coordinate list's model, which keeps its retention's worth
+ * and drops the oldest: positions as updateCoordList() lists them, and the
+ * same position as preformatted text for comparison.
+ * @author Corey Short
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CoordListBenchmark {
+
+	private static final String MESSAGE = "Current robot position is:\nx: 12.5, y: 100.25, h: 90.0";
+
+	private Fixtures.CoordList list;
+	private int step = 0;
+
+	@Setup
+	public void setUp() {
+		list = MissionControl.fixtures().newCoordList();
+	}
+
+	@Benchmark
+	public int updateCoordList() {
+		list.appendPosition(12.5f, step++, 90);
+		return list.size();
+	}
+
+	@Benchmark
+	public int appendText() {
+		list.append(MESSAGE);
+		return list.size();
+	}
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Poses and wall points drawn into a headless OffScreenDrawing, FRAME calls
+ * to an update, as the TelemetryDispatcher draws them.
+ * @author Corey Short
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DrawingBenchmark {
+
+	private static final int FRAME = 100;
+
+	private Fixtures.Drawing drawing;
+	private int step = 0;
+
+	@Setup
+	public void setUp() {
+		drawing = MissionControl.fixtures().newDrawing(1400, 600);
+		drawing.beginUpdate();
+	}
+
+	@Benchmark
+	public int drawRobotPath() {
+		nextStep();
+		drawing.drawRobotPath(step % 250 - 125, step % 200, step % 360);
+		return step;
+	}
+
+	@Benchmark
+	public int drawWall() {
+		nextStep();
+		drawing.drawWall(step % 570 - 292, step % 238);
+		return step;
+	}
+
+	/**
+	 * Counts a call, ending the update and starting the next every FRAME.
+	 */
+	private void nextStep() {
+		if (++step % FRAME == 0) {
+			drawing.endUpdate();
+			drawing.beginUpdate();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.io.IOException;
+
+/**
+ * What the benchmarks drive in Mission Control. Mission Control's classes
+ * are in the unnamed package, which JMH generates no code for and a named
+ * package cannot import, so BenchmarkFixtures implements this interface
+ * over them from the unnamed package of this source set, package-private
+ * methods included. Each call is one monomorphic interface call, which the
+ * JIT inlines.
+ * @author Corey Short
+ */
+public interface Fixtures {
+
+	/**
+	 * The Reader's decode step over a looping sample of robot traffic.
+	 */
+	interface Decoder {
+		/**
+		 * Reads one header and decodes its payload, as Reader.run() does.
+		 * @return the header
+		 */
+		int next() throws IOException;
+	}
+
+	/**
+	 * A headless OffScreenDrawing with its image made.
+	 */
+	interface Drawing {
+		void beginUpdate();
+
+		void endUpdate();
+
+		void drawRobotPath(int x, int y, int heading);
+
+		void drawWall(int x, int y);
+
+		int xpixel(float x);
+
+		int ypixel(float y);
+
+		int gridX(int xpixel);
+
+		int gridY(int ypixel);
+	}
+
+	/**
+	 * The model behind MissionControlGUI's coordinate list.
+	 */
+	interface CoordList {
+		/**
+		 * Appends a position as updateCoordList() does.
+		 */
+		void appendPosition(float x, float y, float heading);
+
+		/**
+		 * Appends preformatted text, the way messages were listed before.
+		 */
+		void append(String message);
+
+		int size();
+	}
+
+	Decoder newDecoder() throws IOException;
+
+	/**
+	 * @param width - pixels, as the panel would be laid out
+	 * @param height - pixels
+	 */
+	Drawing newDrawing(int width, int height);
+
+	CoordList newCoordList();
+}
@@ -0,0 +1,20 @@
+package benchmarks;
+
+/**
+ * Finds the Fixtures implementation in the unnamed package.
+ * @author Corey Short
+ */
+final class MissionControl {
+
+	private MissionControl() {
+	}
+
+	static Fixtures fixtures() {
+		try {
+			return (Fixtures) Class.forName("BenchmarkFixtures").newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("BenchmarkFixtures is not on the classpath", e);
+		}
+	}
+}
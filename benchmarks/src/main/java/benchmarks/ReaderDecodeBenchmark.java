@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages per second through the Reader's decode step, from a looping
+ * byte stream of POS_UPDATE, WALL, ECHO and STD_DEV as the robot sends them.
+ * @author Corey Short
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ReaderDecodeBenchmark {
+
+	private Fixtures.Decoder decoder;
+
+	@Setup
+	public void setUp() throws IOException {
+		decoder = MissionControl.fixtures().newDecoder();
+	}
+
+	@Benchmark
+	public int decode() throws IOException {
+		return decoder.next();
+	}
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * OffScreenDrawing's transforms between arena cm and panel pixels, each
+ * pair called as the drawing and mouse code call them.
+ * @author Corey Short
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TransformBenchmark {
+
+	private Fixtures.Drawing drawing;
+	private int step = 0; // varies the inputs so nothing folds to a constant
+
+	@Setup
+	public void setUp() {
+		drawing = MissionControl.fixtures().newDrawing(1400, 600);
+	}
+
+	@Benchmark
+	public int xpixelYpixel() {
+		step++;
+		return drawing.xpixel(step * 0.25f) + drawing.ypixel(step * 0.5f);
+	}
+
+	@Benchmark
+	public int gridXGridY() {
+		step++;
+		return drawing.gridX(step & 1023) + drawing.gridY(step & 511);
+	}
+}
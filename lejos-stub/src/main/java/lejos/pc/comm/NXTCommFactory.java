@@ -0,0 +1,13 @@
+package lejos.pc.comm;
+
+/**
+ * Build-time stand-in for the leJOS class of the same name; only the
+ * protocol constants the front end passes to NXTConnector.
+ * @author Corey Short
+ */
+public class NXTCommFactory {
+
+	public static final int USB = 1;
+	public static final int BLUETOOTH = 2;
+	public static final int ALL_PROTOCOLS = USB | BLUETOOTH;
+}
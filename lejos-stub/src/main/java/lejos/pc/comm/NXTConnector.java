@@ -0,0 +1,33 @@
+package lejos.pc.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Build-time stand-in for the leJOS class of the same name, with the
+ * methods NXTTransport calls. It never finds a brick: connectTo() always
+ * fails, so a build run with the stub on its classpath can only reach the
+ * robot simulator.
+ * @author Corey Short
+ */
+public class NXTConnector {
+
+	/**
+	 * @return false; there is no brick behind the stub
+	 */
+	public boolean connectTo(String name, String address, int protocols) {
+		return false;
+	}
+
+	public InputStream getInputStream() {
+		return null;
+	}
+
+	public OutputStream getOutputStream() {
+		return null;
+	}
+
+	public void close() throws IOException {
+	}
+}